@@ -0,0 +1,81 @@
+package ca.bkaw.svcraftaudio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding a volume message like {@link User#setVolumePercentFor} does
+ * with the {@link MessageEncoder}, against the string concatenation it replaced.
+ * <p>
+ * Both produce the UTF-8 bytes that are handed to the websocket library, the old
+ * way by concatenating and encoding a string like
+ * {@code WebSocketClient.send(String)} does. Run with the gc profiler to see the
+ * allocations per message in gc.alloc.rate.norm:
+ * <pre>
+ * mvn -P jmh test-compile exec:exec
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncoderBenchmark {
+    @Param({ "true", "false" })
+    public boolean spatialAudio;
+
+    private final String userId = "u-k3j9x0qa";
+    private final String otherId = "u-7f2mzp1c";
+    private int volumePercent;
+    private int azimuth;
+
+    @Setup
+    public void setup() {
+        this.volumePercent = 0;
+        this.azimuth = -180;
+    }
+
+    /**
+     * Vary the values like consecutive updates do, without allocating.
+     */
+    private void next() {
+        this.volumePercent = this.volumePercent == 100 ? 0 : this.volumePercent + 1;
+        this.azimuth = this.azimuth == 180 ? -180 : this.azimuth + 10;
+    }
+
+    @Benchmark
+    public ByteBuffer encoder() {
+        this.next();
+        MessageEncoder encoder = MessageEncoder.get().beginTo(this.userId)
+            .append("Volume ").append(this.otherId).append(": ")
+            .appendVolume(this.volumePercent);
+        if (this.spatialAudio) {
+            encoder.append(" at ").append(this.azimuth);
+        }
+        return encoder.finish();
+    }
+
+    @Benchmark
+    public ByteBuffer concatenation() {
+        this.next();
+        double volume = VolumeCurve.toVolume(this.volumePercent);
+        String message = this.spatialAudio
+            ? "Volume " + this.otherId + ": " + volume + " at " + this.azimuth
+            : "Volume " + this.otherId + ": " + volume;
+        return ByteBuffer.wrap(("To " + this.userId + ": " + message).getBytes(StandardCharsets.UTF_8));
+    }
+}
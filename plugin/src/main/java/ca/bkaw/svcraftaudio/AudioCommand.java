@@ -4,6 +4,7 @@ import com.destroystokyo.paper.brigadier.BukkitBrigadierCommandSource;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.LiteralMessage;
 import com.mojang.brigadier.arguments.ArgumentType;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
 import com.mojang.brigadier.builder.RequiredArgumentBuilder;
@@ -11,20 +12,37 @@ import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.exceptions.DynamicCommandExceptionType;
 import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.event.ClickEvent;
 import net.kyori.adventure.text.format.NamedTextColor;
 import net.kyori.adventure.text.format.TextDecoration;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.util.StringUtil;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 
 public class AudioCommand {
     private static final SimpleCommandExceptionType PLAYER_ONLY = new SimpleCommandExceptionType(new LiteralMessage("This is a player only command."));
+    private static final DynamicCommandExceptionType WORLD_NOT_FOUND = new DynamicCommandExceptionType(world -> new LiteralMessage("The world \"" + world + "\" does not exist."));
+    private static final DynamicCommandExceptionType PLAYER_NOT_FOUND = new DynamicCommandExceptionType(name -> new LiteralMessage("The player \"" + name + "\" is not online."));
+    private static final SimpleCommandExceptionType CANNOT_TARGET_SELF = new SimpleCommandExceptionType(new LiteralMessage("You can't change your own volume, use /audio gain <percent>."));
     private static final DynamicCommandExceptionType USER_NOT_FOUND = new DynamicCommandExceptionType(userId -> new LiteralMessage("The user \"" + userId + "\" does not exist / is not connected."));
 
     private final SVCraftAudio svcraftAudio;
@@ -42,23 +60,157 @@ public class AudioCommand {
                 .executes(ctx -> {
                     Player player = getPlayer(ctx);
 
-                    String connectId = UUID.randomUUID().toString().substring(0, 8);
+                    String connectId = this.svcraftAudio.getConnectIdPool().take();
                     String userId = IdUtil.randomUserId();
                     Connection connectionRaw = this.svcraftAudio.getConnectionRaw();
 
                     if (connectionRaw.isOpen()) {
                         connectionRaw.addConnectId(connectId, userId, player.getName());
-                        sendLink(player, connectId);
                     } else {
-                        player.sendMessage("Connecting to svcraft-audio...");
-                        this.svcraftAudio.getConnectionAsync().thenAccept(connection -> {
-                           connection.addConnectId(connectId, userId, player.getName());
-                           sendLink(player, connectId);
-                        });
+                        // The link works once the connection is established
+                        this.svcraftAudio.getConnectionAsync().thenAccept(connection ->
+                            connection.addConnectId(connectId, userId, player.getName())
+                        );
                     }
+                    sendLink(player, connectId);
 
                     return 1;
                 })
+                .then(
+                    literal("mute")
+                        .then(
+                            argument("player", StringArgumentType.word())
+                                .executes(ctx -> this.setPlayerGain(ctx, 0))
+                                .suggests(this::suggestPlayers)
+                        )
+                )
+                .then(
+                    literal("unmute")
+                        .then(
+                            argument("player", StringArgumentType.word())
+                                .executes(ctx -> this.setPlayerGain(ctx, 100))
+                                .suggests(this::suggestPlayers)
+                        )
+                )
+                .then(
+                    literal("gain")
+                        .then(
+                            argument("percent", IntegerArgumentType.integer(0, (int) (AudioSettings.MAX_GAIN * 100)))
+                                .executes(ctx -> {
+                                    Player player = getPlayer(ctx);
+                                    int percent = IntegerArgumentType.getInteger(ctx, "percent");
+                                    this.svcraftAudio.getAudioSettings().setGain(player, percent / 100f);
+                                    player.sendMessage("You now hear everyone at " + percent + "% volume.");
+                                    return percent;
+                                })
+                                .then(
+                                    argument("player", StringArgumentType.word())
+                                        .executes(ctx -> this.setPlayerGain(ctx, IntegerArgumentType.getInteger(ctx, "percent")))
+                                        .suggests(this::suggestPlayers)
+                                )
+                        )
+                )
+                .then(
+                    literal("deafen")
+                        .executes(ctx -> {
+                            Player player = getPlayer(ctx);
+                            AudioSettings settings = this.svcraftAudio.getAudioSettings();
+                            boolean deafened = !settings.isDeafened(player);
+                            settings.setDeafened(player, deafened);
+                            player.sendMessage(deafened ? "You are now deafened." : "You are no longer deafened.");
+                            return 1;
+                        })
+                )
+                .then(
+                    literal("pushtotalk")
+                        .executes(ctx -> {
+                            Player player = getPlayer(ctx);
+                            AudioSettings settings = this.svcraftAudio.getAudioSettings();
+                            boolean pushToTalk = !settings.isPushToTalk(player);
+                            settings.setPushToTalk(player, pushToTalk);
+                            player.sendMessage(pushToTalk
+                                ? "Push-to-talk is now enabled, sneak to talk."
+                                : "Push-to-talk is now disabled.");
+                            return 1;
+                        })
+                )
+                .then(
+                    literal("channel")
+                        .requires(obj -> obj.getBukkitSender().hasPermission("svcraftaudio.command.channel"))
+                        .then(
+                            literal("join")
+                                .then(
+                                    argument("channel", StringArgumentType.word())
+                                        .executes(ctx -> {
+                                            Player player = getPlayer(ctx);
+                                            String channel = StringArgumentType.getString(ctx, "channel");
+                                            if (this.svcraftAudio.getChannelManager().join(player, channel)) {
+                                                player.sendMessage(Component.text("You joined the audio channel " + channel, NamedTextColor.GREEN));
+                                            } else {
+                                                player.sendMessage(Component.text("You are already in the audio channel " + channel, NamedTextColor.RED));
+                                            }
+                                            return 1;
+                                        })
+                                        .suggests((ctx, builder) -> {
+                                            for (String channel : this.svcraftAudio.getChannelManager().getChannelNames()) {
+                                                if (StringUtil.startsWithIgnoreCase(channel, builder.getRemaining())) {
+                                                    builder.suggest(channel);
+                                                }
+                                            }
+                                            return builder.buildFuture();
+                                        })
+                                )
+                        )
+                        .then(
+                            literal("leave")
+                                .then(
+                                    argument("channel", StringArgumentType.word())
+                                        .executes(ctx -> {
+                                            Player player = getPlayer(ctx);
+                                            String channel = StringArgumentType.getString(ctx, "channel");
+                                            if (this.svcraftAudio.getChannelManager().leave(player, channel)) {
+                                                player.sendMessage(Component.text("You left the audio channel " + channel, NamedTextColor.GREEN));
+                                            } else {
+                                                player.sendMessage(Component.text("You are not in the audio channel " + channel, NamedTextColor.RED));
+                                            }
+                                            return 1;
+                                        })
+                                        .suggests((ctx, builder) -> {
+                                            Entity entity = ctx.getSource().getBukkitEntity();
+                                            if (entity instanceof Player) {
+                                                for (String channel : this.svcraftAudio.getChannelManager().getChannels((Player) entity)) {
+                                                    if (StringUtil.startsWithIgnoreCase(channel, builder.getRemaining())) {
+                                                        builder.suggest(channel);
+                                                    }
+                                                }
+                                            }
+                                            return builder.buildFuture();
+                                        })
+                                )
+                        )
+                        .then(
+                            literal("list")
+                                .executes(ctx -> {
+                                    Player player = getPlayer(ctx);
+                                    ChannelManager channelManager = this.svcraftAudio.getChannelManager();
+                                    Set<String> channels = channelManager.getChannels(player);
+                                    if (channels.isEmpty()) {
+                                        player.sendMessage("You are not in any audio channel.");
+                                    }
+                                    for (String channel : channels) {
+                                        List<String> names = new ArrayList<>();
+                                        for (UUID uuid : channelManager.getMembers(channel)) {
+                                            Player member = Bukkit.getPlayer(uuid);
+                                            if (member != null) {
+                                                names.add(member.getName());
+                                            }
+                                        }
+                                        player.sendMessage(channel + ": " + String.join(", ", names));
+                                    }
+                                    return channels.size();
+                                })
+                        )
+                )
                 .then(
                     literal("admin")
                         .requires(obj -> obj.getBukkitSender().hasPermission("svcraftaudio.command.admin"))
@@ -108,35 +260,27 @@ public class AudioCommand {
                                 })
                         )
                         .then(
-                            literal("resync")
-                                .executes(ctx -> {
-                                    resync(ctx, false);
-                                    return 1;
-                                })
+                            this.withTargets(literal("resync"), (ctx, users) -> this.resync(ctx, users, false))
                                 .then(
-                                    literal("silent")
-                                        .executes(ctx -> {
-                                            resync(ctx, true);
-                                            return 1;
-                                        })
+                                    this.withTargets(literal("silent"), (ctx, users) -> this.resync(ctx, users, true))
                                 )
                         )
                         .then(
-                            literal("peersinfo")
-                                .executes(ctx -> {
-                                    Connection connection = this.svcraftAudio.getConnection();
-                                    connection.setPeerInfoSender(ctx.getSource().getBukkitSender());
-                                    connection.send("peersinfo");
-                                    return 1;
-                                })
+                            this.withTargets(literal("peersinfo"), (ctx, users) -> {
+                                this.svcraftAudio.getUserRequestQueue().peersInfo(users, ctx.getSource().getBukkitSender());
+                                ctx.getSource().getBukkitSender().sendMessage(
+                                    "Requesting peer info from " + users.size() + " user" + (users.size() == 1 ? "" : "s") + "..."
+                                );
+                                return users.size();
+                            })
                         )
                         .then(
                             literal("resendvolumes")
                                 .executes(ctx -> {
                                     for (User user : this.userManager.getUsers()) {
                                         for (User hearingUser : user.getHearingUsers()) {
-                                            double volume = user.getVolumeFor(hearingUser);
-                                            user.setVolumeFor(hearingUser, volume);
+                                            int volume = user.computeVolumePercentFor(hearingUser);
+                                            user.setVolumePercentFor(hearingUser, volume, user.getLastSentAzimuthFor(hearingUser));
                                         }
                                     }
                                     ctx.getSource().getBukkitSender().sendMessage("Resent all volumes.");
@@ -178,9 +322,49 @@ public class AudioCommand {
                             literal("state")
                                 .executes(ctx -> {
                                     Connection connection = this.svcraftAudio.getConnectionRaw();
-                                    ctx.getSource().getBukkitSender().sendMessage(
-                                        "The connection is in ready state: " + connection.getReadyState().name()
-                                    );
+                                    RelayMonitor monitor = this.svcraftAudio.getRelayMonitor();
+                                    CommandSender sender = ctx.getSource().getBukkitSender();
+                                    sender.sendMessage("The connection is in ready state: " + connection.getReadyState().name());
+                                    long latency = monitor.getLatency();
+                                    sender.sendMessage("Websocket latency: " + (latency < 0 ? "unknown" : latency + " ms"));
+                                    if (monitor.isFailingOver()) {
+                                        sender.sendMessage(Component.text("Failing over to another relay.", NamedTextColor.YELLOW));
+                                    }
+                                    List<RelayEndpoint> endpoints = monitor.getEndpoints();
+                                    if (endpoints.size() > 1) {
+                                        sender.sendMessage("Relays:");
+                                        long now = System.currentTimeMillis();
+                                        for (RelayEndpoint endpoint : endpoints) {
+                                            boolean current = endpoint == connection.getEndpoint();
+                                            String status = "not checked yet";
+                                            NamedTextColor color = NamedTextColor.GRAY;
+                                            if (endpoint.getCheckedAt() != 0) {
+                                                String ago = " (" + (now - endpoint.getCheckedAt()) / 1000 + " seconds ago)";
+                                                if (endpoint.isReachable()) {
+                                                    status = endpoint.getLatency() + " ms" + ago;
+                                                    color = current ? NamedTextColor.GREEN : NamedTextColor.WHITE;
+                                                } else {
+                                                    status = "unreachable, " + endpoint.getError() + ago;
+                                                    color = NamedTextColor.RED;
+                                                }
+                                            }
+                                            sender.sendMessage(Component.text(
+                                                (current ? "* " : "  ") + endpoint.getUrl() + ": " + status, color
+                                            ));
+                                        }
+                                    }
+                                    long lastHeartbeatAt = monitor.getLastHeartbeatAt();
+                                    if (lastHeartbeatAt == 0) {
+                                        sender.sendMessage("No heartbeat has been sent yet.");
+                                    } else {
+                                        String error = monitor.getLastHeartbeatError();
+                                        sender.sendMessage(Component.text(
+                                            "Last heartbeat " + (System.currentTimeMillis() - lastHeartbeatAt) / 1000 + " seconds ago: "
+                                                + (error == null ? "ok" : "failed " + monitor.getFailedHeartbeats() + " times in a row, " + error)
+                                                + " (" + monitor.getHeartbeatCount() + " sent)",
+                                            error == null ? NamedTextColor.GREEN : NamedTextColor.RED
+                                        ));
+                                    }
                                     return 1;
                                 })
                         )
@@ -192,6 +376,98 @@ public class AudioCommand {
                                     return 1;
                                 })
                         )
+                        .then(
+                            literal("checkparallel")
+                                .executes(ctx -> {
+                                    // Compute the pass on the last snapshots both serially
+                                    // and in parallel, without applying it
+                                    Config config = this.svcraftAudio.getConfiguration();
+                                    List<User> users = this.userManager.getUsers();
+                                    OcclusionCache occlusion = config.occlusion ? this.svcraftAudio.getOcclusionCache() : null;
+                                    AudioSettings settings = this.svcraftAudio.getAudioSettings();
+                                    List<PassCommand> serial = new ProximityPass(config, users, occlusion, settings).compute(false);
+                                    List<PassCommand> parallel = new ProximityPass(config, users, occlusion, settings).compute(true);
+                                    boolean equal = serial.equals(parallel);
+                                    ctx.getSource().getBukkitSender().sendMessage(Component.text(
+                                        (equal ? "The parallel pass matches" : "The parallel pass does NOT match")
+                                            + " the serial pass (" + users.size() + " users, "
+                                            + serial.size() + " serial and " + parallel.size() + " parallel commands).",
+                                        equal ? NamedTextColor.GREEN : NamedTextColor.RED
+                                    ));
+                                    return equal ? 1 : 0;
+                                })
+                        )
+                        .then(
+                            literal("export")
+                                .executes(ctx -> {
+                                    CommandSender sender = ctx.getSource().getBukkitSender();
+                                    GraphExport export = new GraphExport(this.userManager.getUsers());
+                                    String name = "graph-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jsonl";
+                                    File file = new File(new File(this.svcraftAudio.getDataFolder(), "exports"), name);
+                                    sender.sendMessage("Exporting the hearing graph...");
+                                    Bukkit.getScheduler().runTaskAsynchronously(this.svcraftAudio, () -> {
+                                        Component message;
+                                        try {
+                                            export.write(file);
+                                            GraphExport.Summary summary = export.summarize();
+                                            message = Component.text()
+                                                .append(Component.text("Exported the hearing graph to " + file.getName(), NamedTextColor.GREEN))
+                                                .append(Component.newline())
+                                                .append(Component.text(summary.users + " users, " + summary.pairs + " pairs hear each other, "
+                                                    + summary.isolated + " users hear nobody"))
+                                                .append(Component.newline())
+                                                .append(Component.text(String.format("Users heard per user: %.1f average, %d median, %d p99, %d max",
+                                                    summary.averageDegree, summary.medianDegree, summary.p99Degree, summary.maxDegree)))
+                                                .append(Component.newline())
+                                                .append(Component.text(summary.clusters + " clusters, the largest has " + summary.largestCluster + " users"))
+                                                .build();
+                                        } catch (IOException e) {
+                                            this.svcraftAudio.getLogger().log(Level.SEVERE, "Failed to export the hearing graph", e);
+                                            message = Component.text("Failed to export the hearing graph: " + e.getMessage(), NamedTextColor.RED);
+                                        }
+                                        Component finalMessage = message;
+                                        Bukkit.getScheduler().runTask(this.svcraftAudio, () -> sender.sendMessage(finalMessage));
+                                    });
+                                    return 1;
+                                })
+                        )
+                        .then(
+                            literal("trace")
+                                .then(
+                                    literal("start")
+                                        .executes(ctx -> {
+                                            CommandSender sender = ctx.getSource().getBukkitSender();
+                                            try {
+                                                TraceRecorder recorder = this.svcraftAudio.startTrace();
+                                                sender.sendMessage(Component.text(
+                                                    "Recording a trace to " + recorder.getFile().getName(), NamedTextColor.GREEN
+                                                ));
+                                                return 1;
+                                            } catch (IOException e) {
+                                                sender.sendMessage(Component.text(
+                                                    "Failed to start the trace: " + e.getMessage(), NamedTextColor.RED
+                                                ));
+                                                return 0;
+                                            }
+                                        })
+                                )
+                                .then(
+                                    literal("stop")
+                                        .executes(ctx -> {
+                                            CommandSender sender = ctx.getSource().getBukkitSender();
+                                            TraceRecorder recorder = this.svcraftAudio.stopTrace();
+                                            if (recorder == null) {
+                                                sender.sendMessage(Component.text("No trace is being recorded.", NamedTextColor.RED));
+                                                return 0;
+                                            }
+                                            sender.sendMessage(Component.text(
+                                                "Recorded " + recorder.getTickCount() + " ticks to " + recorder.getFile().getName(),
+                                                NamedTextColor.GREEN
+                                            ));
+                                            return 1;
+                                        })
+                                )
+                        )
                         .then(
                             literal("reloadpage")
                                 .then(
@@ -251,25 +527,128 @@ public class AudioCommand {
         player.sendMessage(Component.text()
             .content("Click here to open your link to svcraft-audio")
             .clickEvent(
-                ClickEvent.openUrl(this.svcraftAudio.getConfiguration().url + "?connectId=" + connectId)
+                ClickEvent.openUrl(this.svcraftAudio.getConnectionRaw().getEndpoint().getUrl() + "?connectId=" + connectId)
             )
             .color(NamedTextColor.BLUE)
             .decorate(TextDecoration.UNDERLINED));
     }
 
-    private void resync(CommandContext<BukkitBrigadierCommandSource> ctx, boolean silent) {
-        this.svcraftAudio.getConnection().send("resync");
+    /**
+     * Add arguments that select which users a command applies to: all users (no
+     * arguments), a single user, the users in a world, or the users within a
+     * radius of the sender.
+     *
+     * @param builder The command to add the arguments to.
+     * @param action The action to run with the selected users.
+     * @return The builder.
+     */
+    private LiteralArgumentBuilder<BukkitBrigadierCommandSource> withTargets(
+        LiteralArgumentBuilder<BukkitBrigadierCommandSource> builder,
+        TargetedAction action
+    ) {
+        return builder
+            .executes(ctx -> action.run(ctx, new ArrayList<>(this.userManager.getUsers())))
+            .then(
+                literal("user")
+                    .then(
+                        argument("userId", StringArgumentType.string())
+                            .executes(ctx -> {
+                                String userId = StringArgumentType.getString(ctx, "userId");
+                                User user = this.userManager.getUser(userId);
+                                if (user == null) {
+                                    throw USER_NOT_FOUND.create(userId);
+                                }
+                                return action.run(ctx, Collections.singletonList(user));
+                            })
+                    )
+            )
+            .then(
+                literal("world")
+                    .then(
+                        argument("world", StringArgumentType.string())
+                            .executes(ctx -> {
+                                String worldName = StringArgumentType.getString(ctx, "world");
+                                World world = Bukkit.getWorld(worldName);
+                                if (world == null) {
+                                    throw WORLD_NOT_FOUND.create(worldName);
+                                }
+                                List<User> users = new ArrayList<>();
+                                for (User user : this.userManager.getUsers()) {
+                                    if (user.getPlayer().getWorld() == world) {
+                                        users.add(user);
+                                    }
+                                }
+                                return action.run(ctx, users);
+                            })
+                    )
+            )
+            .then(
+                literal("region")
+                    .then(
+                        argument("radius", IntegerArgumentType.integer(1))
+                            .executes(ctx -> {
+                                int radius = IntegerArgumentType.getInteger(ctx, "radius");
+                                Location center = getPlayer(ctx).getLocation();
+                                double radiusSq = (double) radius * radius;
+                                List<User> users = new ArrayList<>();
+                                for (User user : this.userManager.getUsers()) {
+                                    Location location = user.getPlayer().getLocation();
+                                    if (location.getWorld() == center.getWorld()
+                                        && location.distanceSquared(center) <= radiusSq) {
+                                        users.add(user);
+                                    }
+                                }
+                                return action.run(ctx, users);
+                            })
+                    )
+            );
+    }
+
+    private int setPlayerGain(CommandContext<BukkitBrigadierCommandSource> ctx, int percent) throws CommandSyntaxException {
+        Player player = getPlayer(ctx);
+        String name = StringArgumentType.getString(ctx, "player");
+        Player other = Bukkit.getPlayerExact(name);
+        if (other == null) {
+            throw PLAYER_NOT_FOUND.create(name);
+        }
+        if (other == player) {
+            throw CANNOT_TARGET_SELF.create();
+        }
+        this.svcraftAudio.getAudioSettings().setPlayerGain(player, other.getUniqueId(), percent / 100f);
+        if (percent == 0) {
+            player.sendMessage("You muted " + other.getName() + ", you will not hear each other.");
+        } else {
+            player.sendMessage("You now hear " + other.getName() + " at " + percent + "% volume.");
+        }
+        return 1;
+    }
 
-        if (!silent) {
-            for (User user : this.userManager.getUsers()) {
-                user.getPlayer().sendMessage("svcraft-audio is reconnecting.");
+    private CompletableFuture<Suggestions> suggestPlayers(CommandContext<BukkitBrigadierCommandSource> ctx, SuggestionsBuilder builder) {
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            if (StringUtil.startsWithIgnoreCase(player.getName(), builder.getRemaining())) {
+                builder.suggest(player.getName());
             }
         }
+        return builder.buildFuture();
+    }
 
-        for (User user : this.userManager.getUsers()) {
-            user.getHearingUsers().clear();
-        }
+    private int resync(CommandContext<BukkitBrigadierCommandSource> ctx, List<User> users, boolean silent) {
+        int count = this.svcraftAudio.getUserRequestQueue().resync(users, silent);
+        int skipped = users.size() - count;
+
+        ctx.getSource().getBukkitSender().sendMessage(
+            count + " user" + (count == 1 ? " is" : "s are") + " being resynchronised"
+                + (skipped > 0 ? " (" + skipped + " skipped, resynchronised recently)" : "")
+        );
+        return count;
+    }
 
-        ctx.getSource().getBukkitSender().sendMessage("Everybody is being resynchronised");
+    /**
+     * An action that runs with the users that were selected by the command.
+     *
+     * @see #withTargets(LiteralArgumentBuilder, TargetedAction)
+     */
+    private interface TargetedAction {
+        int run(CommandContext<BukkitBrigadierCommandSource> ctx, List<User> users) throws CommandSyntaxException;
     }
 }
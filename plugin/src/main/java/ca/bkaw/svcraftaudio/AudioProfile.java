@@ -0,0 +1,113 @@
+package ca.bkaw.svcraftaudio;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Locale;
+
+/**
+ * The distances and falloff used in a world.
+ * <p>
+ * The top level of the configuration is the default profile. Worlds can override
+ * any of the values in the worlds section, or disable proximity audio, see
+ * {@link Config#getProfile(org.bukkit.World)}.
+ */
+public class AudioProfile {
+    /** Whether players in the world hear each other by proximity. */
+    public final boolean enabled;
+    /** The distance in blocks you need to be to another player to hear them. */
+    public final int hearDistance;
+    /**
+     * The distance in blocks you need to be to another player to hear them at
+     * full volume.
+     */
+    public final int maxVolumeDistance;
+    /** How the volume falls off between maxVolumeDistance and hearDistance. */
+    public final Falloff falloff;
+    /**
+     * The volumes for each distance squared, precomputed from hearDistance,
+     * maxVolumeDistance and falloff.
+     */
+    public final VolumeCurve volumeCurve;
+    /**
+     * The distance in blocks you need to be to another player for their audio to
+     * start connecting.
+     */
+    public final int connectDistance;
+    /**
+     * The distance in blocks you need to be to another player for their audio to
+     * disconnect.
+     */
+    public final int disconnectDistance;
+
+    public AudioProfile(boolean enabled, int hearDistance, int maxVolumeDistance, Falloff falloff, int connectDistance, int disconnectDistance) {
+        this.enabled = enabled;
+        this.hearDistance = hearDistance;
+        this.maxVolumeDistance = maxVolumeDistance;
+        this.falloff = falloff;
+        this.volumeCurve = new VolumeCurve(falloff, maxVolumeDistance, hearDistance);
+        this.connectDistance = connectDistance;
+        this.disconnectDistance = disconnectDistance;
+    }
+
+    /**
+     * Create a profile for a world from its section in the configuration. Values
+     * that are not set are taken from the default profile.
+     *
+     * @param section The section of the world.
+     * @param defaults The default profile.
+     * @return The profile.
+     */
+    public static AudioProfile load(ConfigurationSection section, AudioProfile defaults) {
+        String falloff = section.getString("falloff", defaults.falloff.name());
+        return new AudioProfile(
+            section.getBoolean("enabled", defaults.enabled),
+            section.getInt("hearDistance", defaults.hearDistance),
+            section.getInt("maxVolumeDistance", defaults.maxVolumeDistance),
+            parseFalloff(falloff),
+            section.getInt("connectDistance", defaults.connectDistance),
+            section.getInt("disconnectDistance", defaults.disconnectDistance)
+        );
+    }
+
+    /**
+     * Move connectDistance and disconnectDistance towards the distances of another
+     * profile, and take all other values from that profile. When the world was
+     * disabled, the distances start at 0, and when it is disabled there is nothing
+     * to move.
+     *
+     * @param target The profile to move towards.
+     * @param maxStep The maximum amount of blocks to move the distances.
+     * @return The target if the distances reached it, otherwise a new profile.
+     */
+    public AudioProfile stepTowards(AudioProfile target, int maxStep) {
+        if (!target.enabled) {
+            return target;
+        }
+        int connectDistance = this.enabled ? this.connectDistance : 0;
+        int disconnectDistance = this.enabled ? this.disconnectDistance : 0;
+        connectDistance = step(connectDistance, target.connectDistance, maxStep);
+        disconnectDistance = step(disconnectDistance, target.disconnectDistance, maxStep);
+        if (connectDistance == target.connectDistance && disconnectDistance == target.disconnectDistance) {
+            return target;
+        }
+        return new AudioProfile(target.enabled, target.hearDistance, target.maxVolumeDistance, target.falloff, connectDistance, disconnectDistance);
+    }
+
+    private static int step(int from, int to, int maxStep) {
+        return from < to ? Math.min(from + maxStep, to) : Math.max(from - maxStep, to);
+    }
+
+    /**
+     * Parse a falloff from the configuration.
+     *
+     * @param falloff The name of the falloff.
+     * @return The falloff.
+     */
+    public static Falloff parseFalloff(String falloff) {
+        try {
+            return Falloff.valueOf(falloff.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid falloff: " + falloff, e);
+        }
+    }
+}
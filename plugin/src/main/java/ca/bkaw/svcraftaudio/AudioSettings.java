@@ -0,0 +1,393 @@
+package ca.bkaw.svcraftaudio;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2FloatMap;
+import it.unimi.dsi.fastutil.objects.Object2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The audio settings of each player: a personal gain, a gain for specific other
+ * players (where 0 means muted), deafen and push-to-talk.
+ * <p>
+ * The settings are kept by player uuid so that they survive reconnecting, and
+ * are copied to primitive arrays indexed by the slot of each connected user so
+ * that the update task can apply them cheaply to every pair. Slots are reused
+ * when users disconnect.
+ * <p>
+ * Changing a setting sends the new volumes for the affected pairs right away,
+ * instead of waiting for the next run of the update task. Pairs where a player
+ * has muted the other are not connected at all, so muting a player also stops
+ * them from hearing you.
+ */
+public class AudioSettings {
+    /**
+     * The highest gain that can be set, as a factor.
+     */
+    public static final float MAX_GAIN = 2;
+
+    /**
+     * The settings of each player that has changed a setting.
+     */
+    private final Map<UUID, PlayerSettings> players = new HashMap<>();
+    /**
+     * The slot of each connected player.
+     */
+    private final Object2IntMap<UUID> slots = new Object2IntOpenHashMap<>();
+    private final IntArrayList freeSlots = new IntArrayList();
+    private int slotCount;
+
+    // Per slot
+    private User[] users = new User[16];
+    private float[] gains = new float[16];
+    private boolean[] deafened = new boolean[16];
+    private boolean[] pushToTalk = new boolean[16];
+    /**
+     * Whether the user is talking, false while push-to-talk is enabled and the
+     * player is not sneaking.
+     */
+    private boolean[] talking = new boolean[16];
+    /**
+     * The gain each user hears each other user at, by slot. A row is null when
+     * the user has no gains for specific users, and missing entries are 1.
+     */
+    private float[][] playerGains = new float[16][];
+
+    public AudioSettings() {
+        this.slots.defaultReturnValue(-1);
+    }
+
+    /**
+     * Give a user that was added a slot and copy its settings to it.
+     *
+     * @param user The user.
+     */
+    public void addUser(User user) {
+        int slot;
+        if (this.freeSlots.isEmpty()) {
+            slot = this.slotCount++;
+            if (slot == this.users.length) {
+                int capacity = slot * 2;
+                this.users = Arrays.copyOf(this.users, capacity);
+                this.gains = Arrays.copyOf(this.gains, capacity);
+                this.deafened = Arrays.copyOf(this.deafened, capacity);
+                this.pushToTalk = Arrays.copyOf(this.pushToTalk, capacity);
+                this.talking = Arrays.copyOf(this.talking, capacity);
+                this.playerGains = Arrays.copyOf(this.playerGains, capacity);
+            }
+        } else {
+            slot = this.freeSlots.removeInt(this.freeSlots.size() - 1);
+        }
+        Player player = user.getPlayer();
+        UUID uuid = player.getUniqueId();
+        user.setSlot(slot);
+        this.users[slot] = user;
+        this.slots.put(uuid, slot);
+
+        PlayerSettings settings = this.players.get(uuid);
+        this.gains[slot] = settings == null ? 1 : settings.gain;
+        this.deafened[slot] = settings != null && settings.deafened;
+        this.pushToTalk[slot] = settings != null && settings.pushToTalk;
+        this.talking[slot] = !this.pushToTalk[slot] || player.isSneaking();
+        this.playerGains[slot] = null;
+
+        // Copy the gains between this user and the other connected users
+        for (int i = 0; i < this.slotCount; i++) {
+            User other = this.users[i];
+            if (other == null || i == slot) {
+                continue;
+            }
+            UUID otherUuid = other.getPlayer().getUniqueId();
+            if (settings != null && settings.playerGains.containsKey(otherUuid)) {
+                this.setSlotGain(slot, i, settings.playerGains.getFloat(otherUuid));
+            }
+            PlayerSettings otherSettings = this.players.get(otherUuid);
+            if (otherSettings != null && otherSettings.playerGains.containsKey(uuid)) {
+                this.setSlotGain(i, slot, otherSettings.playerGains.getFloat(uuid));
+            }
+        }
+    }
+
+    /**
+     * Free the slot of a user that was removed.
+     *
+     * @param user The user.
+     */
+    public void removeUser(User user) {
+        int slot = user.getSlot();
+        if (slot < 0 || this.users[slot] != user) {
+            return;
+        }
+        user.setSlot(-1);
+        this.users[slot] = null;
+        this.playerGains[slot] = null;
+        for (int i = 0; i < this.slotCount; i++) {
+            float[] row = this.playerGains[i];
+            if (row != null && slot < row.length) {
+                row[slot] = 1;
+            }
+        }
+        this.slots.removeInt(user.getPlayer().getUniqueId());
+        this.freeSlots.add(slot);
+    }
+
+    /**
+     * Apply the settings to the volume a user hears another user at.
+     *
+     * @param user The user that hears the other user.
+     * @param other The user that is heard.
+     * @param volumePercent The volume from the distance.
+     * @return The volume to send, at most 100.
+     */
+    public int apply(User user, User other, int volumePercent) {
+        float factor = this.getFactor(user, other);
+        return factor == 1 ? volumePercent : Math.min(Math.round(volumePercent * factor), 100);
+    }
+
+    /**
+     * Get the factor the volume a user hears another user at is multiplied with.
+     *
+     * @param user The user that hears the other user.
+     * @param other The user that is heard.
+     * @return The factor, 0 when the user should not hear the other user.
+     */
+    public float getFactor(User user, User other) {
+        int slot = user.getSlot();
+        int otherSlot = other.getSlot();
+        if (slot < 0 || otherSlot < 0) {
+            return 1;
+        }
+        if (this.deafened[slot] || !this.talking[otherSlot]) {
+            return 0;
+        }
+        return this.gains[slot] * this.getSlotGain(slot, otherSlot);
+    }
+
+    /**
+     * Whether either user has muted the other. The users should not be connected.
+     *
+     * @param user The user.
+     * @param other The other user.
+     * @return Whether the pair is muted.
+     */
+    public boolean isMuted(User user, User other) {
+        int slot = user.getSlot();
+        int otherSlot = other.getSlot();
+        if (slot < 0 || otherSlot < 0) {
+            return false;
+        }
+        return this.getSlotGain(slot, otherSlot) == 0 || this.getSlotGain(otherSlot, slot) == 0;
+    }
+
+    /**
+     * Get the personal gain of a player.
+     *
+     * @param player The player.
+     * @return The gain as a factor.
+     */
+    public float getGain(Player player) {
+        PlayerSettings settings = this.players.get(player.getUniqueId());
+        return settings == null ? 1 : settings.gain;
+    }
+
+    /**
+     * Set the personal gain of a player, that the volume of everyone the player
+     * hears is multiplied with.
+     *
+     * @param player The player.
+     * @param gain The gain as a factor from 0 to {@link #MAX_GAIN}.
+     */
+    public void setGain(Player player, float gain) {
+        this.getSettings(player).gain = gain;
+        int slot = this.slots.getInt(player.getUniqueId());
+        if (slot >= 0) {
+            this.gains[slot] = gain;
+            this.updateHeard(this.users[slot]);
+        }
+    }
+
+    /**
+     * Get the gain a player hears another player at.
+     *
+     * @param player The player.
+     * @param other The uuid of the other player.
+     * @return The gain as a factor, 0 if muted.
+     */
+    public float getPlayerGain(Player player, UUID other) {
+        PlayerSettings settings = this.players.get(player.getUniqueId());
+        return settings == null || !settings.playerGains.containsKey(other) ? 1 : settings.playerGains.getFloat(other);
+    }
+
+    /**
+     * Set the gain a player hears another player at. A gain of 0 mutes the other
+     * player, which also disconnects them. Unmuted players are connected again by
+     * the update task, or right away when they share a channel since the update
+     * task skips those.
+     *
+     * @param player The player.
+     * @param other The uuid of the other player.
+     * @param gain The gain as a factor from 0 to {@link #MAX_GAIN}.
+     */
+    public void setPlayerGain(Player player, UUID other, float gain) {
+        PlayerSettings settings = this.getSettings(player);
+        if (gain == 1) {
+            settings.playerGains.removeFloat(other);
+        } else {
+            settings.playerGains.put(other, gain);
+        }
+        int slot = this.slots.getInt(player.getUniqueId());
+        int otherSlot = this.slots.getInt(other);
+        if (slot < 0 || otherSlot < 0) {
+            return;
+        }
+        User user = this.users[slot];
+        User otherUser = this.users[otherSlot];
+        boolean wasMuted = this.isMuted(user, otherUser);
+        this.setSlotGain(slot, otherSlot, gain);
+
+        if (user.canHear(otherUser)) {
+            if (gain == 0) {
+                // The update task connects them again when unmuted
+                user.stopHearing(otherUser);
+            } else {
+                this.update(user, otherUser);
+            }
+        } else if (wasMuted && !this.isMuted(user, otherUser) && user.sharesChannelWith(otherUser)) {
+            // Connect them like the channel manager does
+            user.startHearing(otherUser, true, false);
+            this.update(user, otherUser);
+            this.update(otherUser, user);
+        }
+    }
+
+    /**
+     * Whether a player is deafened.
+     *
+     * @param player The player.
+     * @return Whether the player is deafened.
+     */
+    public boolean isDeafened(Player player) {
+        PlayerSettings settings = this.players.get(player.getUniqueId());
+        return settings != null && settings.deafened;
+    }
+
+    /**
+     * Deafen or undeafen a player. A deafened player hears nobody, but stays
+     * connected so that undeafening is instant.
+     *
+     * @param player The player.
+     * @param deafened Whether the player should be deafened.
+     */
+    public void setDeafened(Player player, boolean deafened) {
+        this.getSettings(player).deafened = deafened;
+        int slot = this.slots.getInt(player.getUniqueId());
+        if (slot >= 0) {
+            this.deafened[slot] = deafened;
+            this.updateHeard(this.users[slot]);
+        }
+    }
+
+    /**
+     * Whether a player uses push-to-talk.
+     *
+     * @param player The player.
+     * @return Whether push-to-talk is enabled.
+     */
+    public boolean isPushToTalk(Player player) {
+        PlayerSettings settings = this.players.get(player.getUniqueId());
+        return settings != null && settings.pushToTalk;
+    }
+
+    /**
+     * Enable or disable push-to-talk for a player. With push-to-talk, other
+     * players only hear the player while the player is sneaking.
+     *
+     * @param player The player.
+     * @param pushToTalk Whether push-to-talk should be enabled.
+     */
+    public void setPushToTalk(Player player, boolean pushToTalk) {
+        this.getSettings(player).pushToTalk = pushToTalk;
+        int slot = this.slots.getInt(player.getUniqueId());
+        if (slot >= 0) {
+            this.pushToTalk[slot] = pushToTalk;
+            this.setTalking(slot, !pushToTalk || player.isSneaking());
+        }
+    }
+
+    /**
+     * Handle a player starting or stopping to sneak, the push-to-talk key.
+     *
+     * @param player The player.
+     * @param sneaking Whether the player is sneaking.
+     */
+    public void onSneak(Player player, boolean sneaking) {
+        int slot = this.slots.getInt(player.getUniqueId());
+        if (slot >= 0 && this.pushToTalk[slot]) {
+            this.setTalking(slot, sneaking);
+        }
+    }
+
+    private void setTalking(int slot, boolean talking) {
+        if (this.talking[slot] == talking) {
+            return;
+        }
+        this.talking[slot] = talking;
+        // Hearing is symmetric, the users this user hears also hear this user
+        User user = this.users[slot];
+        for (User other : user.getHearingUsers()) {
+            this.update(other, user);
+        }
+    }
+
+    private PlayerSettings getSettings(Player player) {
+        return this.players.computeIfAbsent(player.getUniqueId(), k -> new PlayerSettings());
+    }
+
+    private float getSlotGain(int slot, int otherSlot) {
+        float[] row = this.playerGains[slot];
+        return row == null || otherSlot >= row.length ? 1 : row[otherSlot];
+    }
+
+    private void setSlotGain(int slot, int otherSlot, float gain) {
+        float[] row = this.playerGains[slot];
+        if (row == null || otherSlot >= row.length) {
+            int oldLength = row == null ? 0 : row.length;
+            row = row == null ? new float[this.users.length] : Arrays.copyOf(row, this.users.length);
+            Arrays.fill(row, oldLength, row.length, 1);
+            this.playerGains[slot] = row;
+        }
+        row[otherSlot] = gain;
+    }
+
+    /**
+     * Send the new volumes of everyone a user hears.
+     */
+    private void updateHeard(User user) {
+        for (User other : user.getHearingUsers()) {
+            this.update(user, other);
+        }
+    }
+
+    /**
+     * Send the new volume a user hears another user at, if it changed.
+     */
+    private void update(User user, User other) {
+        user.flushVolumeFor(other);
+    }
+
+    /**
+     * The stored settings of a player.
+     */
+    private static class PlayerSettings {
+        private float gain = 1;
+        private boolean deafened;
+        private boolean pushToTalk;
+        private final Object2FloatMap<UUID> playerGains = new Object2FloatOpenHashMap<>();
+    }
+}
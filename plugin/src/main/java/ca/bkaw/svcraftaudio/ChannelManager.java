@@ -0,0 +1,211 @@
+package ca.bkaw.svcraftaudio;
+
+import org.bukkit.entity.Player;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Manages audio channels. Everybody in a channel hears each other at full volume
+ * regardless of distance, for example a team or a party.
+ * <p>
+ * Membership is by player, so players can be added to channels before they have
+ * connected to svcraft-audio. Connected users that share a channel are
+ * connected directly when they join the channel, and the update task only keeps
+ * their volumes and directions up to date. Users that muted each other are not
+ * connected, the {@link AudioSettings} connect them when they are unmuted. When
+ * they no longer share a channel the update task takes over again and
+ * disconnects them if they are too far away.
+ * <p>
+ * Other plugins can get the channel manager using
+ * {@code JavaPlugin.getPlugin(SVCraftAudio.class).getChannelManager()}.
+ */
+public class ChannelManager {
+    private final UserManager userManager;
+    private final AudioSettings settings;
+    /**
+     * The members of each channel, by channel name.
+     */
+    private final Map<String, Set<UUID>> channels = new HashMap<>();
+    /**
+     * The channels of each player.
+     */
+    private final Map<UUID, Set<String>> playerChannels = new HashMap<>();
+
+    public ChannelManager(UserManager userManager, AudioSettings settings) {
+        this.userManager = userManager;
+        this.settings = settings;
+    }
+
+    /**
+     * Add a player to a channel. The channel is created if it does not exist.
+     *
+     * @param player The player.
+     * @param channel The name of the channel.
+     * @return Whether the player joined, false if the player already was in the
+     *         channel.
+     */
+    public boolean join(Player player, String channel) {
+        UUID uuid = player.getUniqueId();
+        Set<UUID> members = this.channels.computeIfAbsent(channel, k -> new LinkedHashSet<>());
+        if (!members.add(uuid)) {
+            return false;
+        }
+        this.playerChannels.computeIfAbsent(uuid, k -> new LinkedHashSet<>()).add(channel);
+
+        User user = this.userManager.getUser(player);
+        if (user != null) {
+            for (UUID memberUuid : members) {
+                User member = this.userManager.getUser(memberUuid);
+                if (member != null && member != user) {
+                    this.link(user, member);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove a player from a channel. The channel is removed if it becomes empty.
+     *
+     * @param player The player.
+     * @param channel The name of the channel.
+     * @return Whether the player left, false if the player was not in the channel.
+     */
+    public boolean leave(Player player, String channel) {
+        UUID uuid = player.getUniqueId();
+        Set<UUID> members = this.channels.get(channel);
+        if (members == null || !members.remove(uuid)) {
+            return false;
+        }
+        if (members.isEmpty()) {
+            this.channels.remove(channel);
+        }
+        Set<String> channels = this.playerChannels.get(uuid);
+        channels.remove(channel);
+        if (channels.isEmpty()) {
+            this.playerChannels.remove(uuid);
+        }
+
+        User user = this.userManager.getUser(player);
+        if (user != null) {
+            for (UUID memberUuid : members) {
+                User member = this.userManager.getUser(memberUuid);
+                if (member != null) {
+                    this.unlink(user, member);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove a player from all channels.
+     *
+     * @param player The player.
+     */
+    public void leaveAll(Player player) {
+        for (String channel : this.getChannels(player).toArray(new String[0])) {
+            this.leave(player, channel);
+        }
+    }
+
+    /**
+     * Get the channels a player is in.
+     *
+     * @param player The player.
+     * @return An unmodifiable set of channel names.
+     */
+    public Set<String> getChannels(Player player) {
+        Set<String> channels = this.playerChannels.get(player.getUniqueId());
+        return channels == null ? Collections.emptySet() : Collections.unmodifiableSet(channels);
+    }
+
+    /**
+     * Get the players in a channel.
+     *
+     * @param channel The name of the channel.
+     * @return An unmodifiable set of player uuids.
+     */
+    public Set<UUID> getMembers(String channel) {
+        Set<UUID> members = this.channels.get(channel);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Get the names of all channels that have members.
+     *
+     * @return An unmodifiable collection of channel names.
+     */
+    public Collection<String> getChannelNames() {
+        return Collections.unmodifiableSet(this.channels.keySet());
+    }
+
+    /**
+     * Connect a user that was just added to the other users in its channels. Must
+     * be called on the main thread, like all changes to the channels.
+     *
+     * @param user The user.
+     */
+    public void onUserAdded(User user) {
+        Set<String> channels = this.playerChannels.get(user.getPlayer().getUniqueId());
+        if (channels == null) {
+            return;
+        }
+        for (String channel : channels) {
+            for (UUID memberUuid : this.channels.get(channel)) {
+                User member = this.userManager.getUser(memberUuid);
+                if (member != null && member != user) {
+                    this.link(user, member);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the channel links of a user that was removed. The users stop hearing
+     * the removed user separately.
+     *
+     * @param user The user.
+     */
+    public void onUserRemoved(User user) {
+        for (User other : user.getChannelPeers()) {
+            other.removeChannelPeer(user, true);
+        }
+        user.clearChannelPeers();
+    }
+
+    /**
+     * Add a shared channel between two users and connect them if this is the first
+     * channel they share, unless they muted each other.
+     */
+    private void link(User user, User other) {
+        other.addChannelPeer(user);
+        if (!user.addChannelPeer(other)) {
+            // Already sharing another channel
+            return;
+        }
+        if (this.settings.isMuted(user, other)) {
+            return;
+        }
+        if (!user.canHear(other)) {
+            user.startHearing(other, true, false);
+        }
+        user.flushVolumeFor(other);
+        other.flushVolumeFor(user);
+    }
+
+    /**
+     * Remove a shared channel between two users. When they no longer share any
+     * channel, the update task decides whether they should still hear each other.
+     */
+    private void unlink(User user, User other) {
+        user.removeChannelPeer(other, false);
+        other.removeChannelPeer(user, false);
+    }
+}
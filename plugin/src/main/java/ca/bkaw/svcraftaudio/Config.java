@@ -1,9 +1,16 @@
 package ca.bkaw.svcraftaudio;
 
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The plugin's configuration.
@@ -20,6 +27,16 @@ public class Config {
      * at full volume.
      */
     public final int maxVolumeDistance;
+    /**
+     * How the volume falls off between maxVolumeDistance and hearDistance. One of
+     * linear, inverse_square or logarithmic.
+     */
+    public final Falloff falloff;
+    /**
+     * The volumes for each distance squared, precomputed from hearDistance,
+     * maxVolumeDistance and falloff.
+     */
+    public final VolumeCurve volumeCurve;
     /**
      * The distance in blocks you need to be to another player for their audio to
      * start connecting. This should be slightly more than hearDistance because
@@ -34,10 +51,134 @@ public class Config {
      * connection range.
      */
     public final int disconnectDistance;
+    /**
+     * The distances and falloff above as a profile, used in worlds without a
+     * profile of their own.
+     */
+    public final AudioProfile defaultProfile;
+    /**
+     * The profiles of the worlds in the worlds section, by world name.
+     */
+    public final Map<String, AudioProfile> worldProfiles;
+    /**
+     * The amount of seconds ahead that the movement of players is predicted. Players
+     * that are predicted to come within connectDistance of each other within this
+     * time start connecting early, so that they can be heard as soon as they are
+     * in range. 0 disables the prediction.
+     */
+    public final double prewarmSeconds;
+    /**
+     * The maximum amount of other players a player can be connected to at once.
+     * When more players are nearby, only the nearest players are connected. 0
+     * means no limit.
+     */
+    public final int maxPeers;
+    /**
+     * The total bitrate in kbit/s a player should upload to the players it is
+     * directly connected to. The bitrate is divided between the players, nearer
+     * players get a larger share. 0 disables bitrate hints.
+     */
+    public final int uploadBudget;
+    /**
+     * The highest bitrate in kbit/s sent to one player when bitrate hints are
+     * enabled.
+     */
+    public final int maxBitrate;
+    /**
+     * The amount of players within connectDistance of a player for the player to
+     * be considered to be in a dense cluster. Audio between players in dense
+     * clusters is routed through the forwarding service (SFU) of the svcraft-audio
+     * server so that each player only uploads their microphone once. 0 disables
+     * the forwarding service.
+     */
+    public final int sfuThreshold;
+    /**
+     * Whether spatial audio is enabled. When enabled, the direction of other
+     * players is sent along with the volume so that the client can pan the audio.
+     */
+    public final boolean spatialAudio;
+    /**
+     * The amount of degrees the direction to another player has to change before
+     * the new direction is sent to the client.
+     */
+    public final int azimuthThreshold;
+    /**
+     * The amount of connected players from which the update task computes who
+     * should hear who in parallel on multiple threads. 0 disables parallel
+     * computation.
+     */
+    public final int parallelThreshold;
+    /**
+     * Whether users are handed off to the next server when a player switches
+     * servers on a proxied network, instead of being disconnected. All servers
+     * on the network need to use the same svcraft-audio website.
+     */
+    public final boolean sessionHandoff;
+    /**
+     * Whether the connected users are saved to disk when the plugin is disabled and
+     * restored when it is enabled again, so that players stay connected during a
+     * reload.
+     */
+    public final boolean sessionSnapshot;
+    /**
+     * Whether blocks between players muffle their audio. The occlusion is traced
+     * through the blocks between the players and cached.
+     */
+    public final boolean occlusion;
+    /**
+     * The amount of the volume each occluding block between two players removes,
+     * from 0 to 1.
+     */
+    public final double occlusionPerBlock;
+    /**
+     * The maximum amount of blocks that are visited when tracing occlusion per run
+     * of the update task. At least enough to trace one pair at the largest
+     * hearDistance of all profiles.
+     */
+    public final int occlusionBudget;
+    /**
+     * The amount of seconds two players both have to be silent before they are
+     * only connected once one of them starts speaking. 0 always connects players
+     * in range.
+     */
+    public final int connectOnSpeechAfter;
+    /**
+     * The amount of connect ids that are registered with the svcraft-audio website
+     * ahead of time, so that /audio can give players a link right away. 0
+     * registers each connect id when it is used.
+     */
+    public final int connectIdPool;
+    /**
+     * The size in bytes from which messages to the svcraft-audio website are
+     * compressed, if the website supports it. -1 disables compression.
+     */
+    public final int compressionThreshold;
     /** The interval in ticks when the update task runs. */
     public final int updateTaskInterval;
-    /** The URI of the svcraft-audio website to connect to. */
+    /**
+     * The amount of blocks connectDistance and disconnectDistance move towards
+     * their new values per update when the configuration is reloaded, see
+     * {@link ConfigTransition}. 0 applies them right away.
+     */
+    public final int reloadStepDistance;
+    /**
+     * The maximum amount of users that are connected or disconnected per update
+     * while a reloaded configuration is being applied. 0 is unlimited.
+     */
+    public final int reloadMaxChanges;
+    /** The URI of the svcraft-audio website to connect to when urls is not set. */
     public final URI url;
+    /**
+     * The svcraft-audio websites (relays) the plugin can connect to. The plugin
+     * connects to the fastest one and fails over to the others. Contains only
+     * {@link #url} when no list is configured.
+     */
+    public final List<URI> urls;
+    /**
+     * The interval in seconds when the latency to the other relays is measured to
+     * check whether a faster one is available. 0 only switches relay on failure.
+     */
+    public final int relayCheckInterval;
     /**
      * Whether debug mode is enabled. Logs additional information to players and the
      * console.
@@ -47,15 +188,148 @@ public class Config {
     public Config(FileConfiguration config) {
         this.hearDistance = getInt(config, "hearDistance", 32);
         this.maxVolumeDistance = getInt(config, "maxVolumeDistance", 8);
+        this.falloff = AudioProfile.parseFalloff(getString(config, "falloff", "linear"));
         this.connectDistance = getInt(config, "connectDistance", 40);
         this.disconnectDistance = getInt(config, "disconnectDistance", 50);
+        this.defaultProfile = new AudioProfile(true, this.hearDistance, this.maxVolumeDistance, this.falloff, this.connectDistance, this.disconnectDistance);
+        this.volumeCurve = this.defaultProfile.volumeCurve;
+        Map<String, AudioProfile> worldProfiles = new HashMap<>();
+        ConfigurationSection worlds = config.getConfigurationSection("worlds");
+        if (worlds != null) {
+            for (String world : worlds.getKeys(false)) {
+                ConfigurationSection section = worlds.getConfigurationSection(world);
+                if (section != null) {
+                    worldProfiles.put(world, AudioProfile.load(section, this.defaultProfile));
+                }
+            }
+        }
+        this.worldProfiles = Collections.unmodifiableMap(worldProfiles);
+        this.prewarmSeconds = getDouble(config, "prewarmSeconds", 0);
+        this.maxPeers = getInt(config, "maxPeers", 0);
+        this.uploadBudget = getInt(config, "uploadBudget", 0);
+        this.maxBitrate = getInt(config, "maxBitrate", 64);
+        this.sfuThreshold = getInt(config, "sfuThreshold", 0);
+        this.spatialAudio = getBoolean(config, "spatialAudio", true);
+        this.azimuthThreshold = getInt(config, "azimuthThreshold", 10);
+        this.parallelThreshold = getInt(config, "parallelThreshold", 0);
+        this.sessionHandoff = getBoolean(config, "sessionHandoff", false);
+        this.sessionSnapshot = getBoolean(config, "sessionSnapshot", false);
+        this.occlusion = getBoolean(config, "occlusion", false);
+        this.occlusionPerBlock = getDouble(config, "occlusionPerBlock", 0.25);
+        this.occlusionBudget = getOcclusionBudget(getInt(config, "occlusionBudget", 1000), this.defaultProfile, this.worldProfiles);
+        this.connectOnSpeechAfter = getInt(config, "connectOnSpeechAfter", 0);
+        this.connectIdPool = getInt(config, "connectIdPool", 32);
+        this.compressionThreshold = getInt(config, "compressionThreshold", 0);
         this.updateTaskInterval = getInt(config, "updateTaskInterval", 20);
+        this.reloadStepDistance = getInt(config, "reloadStepDistance", 4);
+        this.reloadMaxChanges = getInt(config, "reloadMaxChanges", 100);
         this.debug = getBoolean(config, "debug", false);
         try {
             this.url = new URI(getString(config, "url", "https://svcraft-audio.alvinn8.repl.co"));
         } catch (URISyntaxException e) {
             throw new RuntimeException("Invalid svcraft-audio url", e);
         }
+        config.addDefault("urls", Collections.emptyList());
+        List<URI> urls = new ArrayList<>();
+        for (String url : config.getStringList("urls")) {
+            try {
+                urls.add(new URI(url));
+            } catch (URISyntaxException e) {
+                throw new RuntimeException("Invalid svcraft-audio url in urls: " + url, e);
+            }
+        }
+        if (urls.isEmpty()) {
+            urls.add(this.url);
+        }
+        this.urls = Collections.unmodifiableList(urls);
+        this.relayCheckInterval = getInt(config, "relayCheckInterval", 300);
+    }
+
+    private Config(Config config, AudioProfile defaultProfile, Map<String, AudioProfile> worldProfiles) {
+        this.hearDistance = defaultProfile.hearDistance;
+        this.maxVolumeDistance = defaultProfile.maxVolumeDistance;
+        this.falloff = defaultProfile.falloff;
+        this.volumeCurve = defaultProfile.volumeCurve;
+        this.connectDistance = defaultProfile.connectDistance;
+        this.disconnectDistance = defaultProfile.disconnectDistance;
+        this.defaultProfile = defaultProfile;
+        this.worldProfiles = Collections.unmodifiableMap(worldProfiles);
+        this.prewarmSeconds = config.prewarmSeconds;
+        this.maxPeers = config.maxPeers;
+        this.uploadBudget = config.uploadBudget;
+        this.maxBitrate = config.maxBitrate;
+        this.sfuThreshold = config.sfuThreshold;
+        this.spatialAudio = config.spatialAudio;
+        this.azimuthThreshold = config.azimuthThreshold;
+        this.parallelThreshold = config.parallelThreshold;
+        this.sessionHandoff = config.sessionHandoff;
+        this.sessionSnapshot = config.sessionSnapshot;
+        this.occlusion = config.occlusion;
+        this.occlusionPerBlock = config.occlusionPerBlock;
+        this.occlusionBudget = getOcclusionBudget(config.occlusionBudget, defaultProfile, this.worldProfiles);
+        this.connectOnSpeechAfter = config.connectOnSpeechAfter;
+        this.connectIdPool = config.connectIdPool;
+        this.compressionThreshold = config.compressionThreshold;
+        this.updateTaskInterval = config.updateTaskInterval;
+        this.reloadStepDistance = config.reloadStepDistance;
+        this.reloadMaxChanges = config.reloadMaxChanges;
+        this.url = config.url;
+        this.urls = config.urls;
+        this.relayCheckInterval = config.relayCheckInterval;
+        this.debug = config.debug;
+    }
+
+    /**
+     * Raise the occlusion budget so that it can trace one pair at the largest
+     * hearDistance of all profiles.
+     *
+     * @param budget The configured budget.
+     * @param defaultProfile The default profile.
+     * @param worldProfiles The profiles of the worlds.
+     * @return The budget to use.
+     */
+    private static int getOcclusionBudget(int budget, AudioProfile defaultProfile, Map<String, AudioProfile> worldProfiles) {
+        int hearDistance = defaultProfile.hearDistance;
+        for (AudioProfile profile : worldProfiles.values()) {
+            hearDistance = Math.max(hearDistance, profile.hearDistance);
+        }
+        // A trace between two players visits at most 3 blocks per block of distance
+        return Math.max(budget, 3 * (hearDistance + 2));
+    }
+
+    /**
+     * Create a copy of this configuration with other profiles.
+     *
+     * @param defaultProfile The default profile.
+     * @param worldProfiles The profiles of the worlds, by world name.
+     * @return The copy.
+     */
+    public Config withProfiles(AudioProfile defaultProfile, Map<String, AudioProfile> worldProfiles) {
+        return new Config(this, defaultProfile, new HashMap<>(worldProfiles));
+    }
+
+    /**
+     * Get the profile of a world.
+     *
+     * @param world The world.
+     * @return The profile of the world, or the default profile.
+     */
+    public AudioProfile getProfile(World world) {
+        return world == null ? this.defaultProfile : this.getProfile(world.getName());
+    }
+
+    /**
+     * Get the profile of a world by name.
+     *
+     * @param world The name of the world.
+     * @return The profile of the world, or the default profile.
+     */
+    public AudioProfile getProfile(String world) {
+        if (this.worldProfiles.isEmpty()) {
+            return this.defaultProfile;
+        }
+        AudioProfile profile = this.worldProfiles.get(world);
+        return profile != null ? profile : this.defaultProfile;
     }
 
     private int getInt(FileConfiguration config, String path, int def) {
@@ -63,6 +337,11 @@ public class Config {
         return config.getInt(path);
     }
 
+    private double getDouble(FileConfiguration config, String path, double def) {
+        config.addDefault(path, def);
+        return config.getDouble(path);
+    }
+
     private boolean getBoolean(FileConfiguration config, String path, boolean def) {
         config.addDefault(path, def);
         return config.getBoolean(path);
@@ -0,0 +1,119 @@
+package ca.bkaw.svcraftaudio;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies a reloaded configuration to the running update task gradually.
+ * <p>
+ * When connectDistance or disconnectDistance change, the next pass would connect
+ * or disconnect every pair of users between the old and the new distance at
+ * once, which on a busy server is a burst of peer connections that are all set up
+ * at the same time. Instead the passes use a configuration where the distances
+ * move towards the new distances by {@link Config#reloadStepDistance} blocks at a
+ * time, and the update task applies at most {@link Config#reloadMaxChanges}
+ * connects and disconnects per pass. The distances only move on when all changes
+ * of the previous step have been applied.
+ * <p>
+ * All other values of the new configuration are used right away.
+ */
+public class ConfigTransition {
+    private final Config target;
+    private Config current;
+
+    /**
+     * Start moving from one configuration to another.
+     *
+     * @param from The configuration the passes use now.
+     * @param target The new configuration.
+     */
+    public ConfigTransition(Config from, Config target) {
+        this.target = target;
+        this.current = from;
+        this.advance();
+    }
+
+    /**
+     * Check whether moving from one configuration to another changes any
+     * distances, in which case a transition is needed.
+     *
+     * @param from The configuration the passes use now.
+     * @param target The new configuration.
+     * @return Whether the distances change.
+     */
+    public static boolean isNeeded(Config from, Config target) {
+        Set<String> worlds = new HashSet<>(from.worldProfiles.keySet());
+        worlds.addAll(target.worldProfiles.keySet());
+        if (!sameDistances(from.defaultProfile, target.defaultProfile)) {
+            return true;
+        }
+        for (String world : worlds) {
+            if (!sameDistances(from.getProfile(world), target.getProfile(world))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameDistances(AudioProfile a, AudioProfile b) {
+        if (!a.enabled || !b.enabled) {
+            return a.enabled == b.enabled;
+        }
+        return a.connectDistance == b.connectDistance && a.disconnectDistance == b.disconnectDistance;
+    }
+
+    /**
+     * Move the distances one step towards the new configuration.
+     */
+    public void advance() {
+        if (this.isDone()) {
+            return;
+        }
+        int step = this.target.reloadStepDistance;
+        if (step <= 0) {
+            this.current = this.target;
+            return;
+        }
+        AudioProfile defaultProfile = this.current.defaultProfile.stepTowards(this.target.defaultProfile, step);
+        Set<String> worlds = new HashSet<>(this.current.worldProfiles.keySet());
+        worlds.addAll(this.target.worldProfiles.keySet());
+        Map<String, AudioProfile> worldProfiles = new HashMap<>();
+        boolean done = defaultProfile == this.target.defaultProfile;
+        for (String world : worlds) {
+            AudioProfile targetProfile = this.target.getProfile(world);
+            AudioProfile profile = this.current.getProfile(world).stepTowards(targetProfile, step);
+            worldProfiles.put(world, profile);
+            done &= profile == targetProfile;
+        }
+        this.current = done ? this.target : this.target.withProfiles(defaultProfile, worldProfiles);
+    }
+
+    /**
+     * Get whether the distances have reached the new configuration.
+     *
+     * @return Whether the transition is done.
+     */
+    public boolean isDone() {
+        return this.current == this.target;
+    }
+
+    /**
+     * Get the configuration the passes should use now.
+     *
+     * @return The configuration.
+     */
+    public Config getConfig() {
+        return this.current;
+    }
+
+    /**
+     * Get the new configuration.
+     *
+     * @return The configuration.
+     */
+    public Config getTarget() {
+        return this.target;
+    }
+}
@@ -0,0 +1,180 @@
+package ca.bkaw.svcraftaudio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of connect ids that have been registered with the svcraft-audio website
+ * ahead of time, so that a link can be given to a player that runs /audio right
+ * away, also when many players do so at once or while the connection is being
+ * established.
+ * <p>
+ * Connect ids are registered in batches and expire on the website after
+ * {@link #TIME_TO_LIVE} if they are not used. Taking a connect id from the pool
+ * does not block, the user id and username are sent to the website afterwards
+ * with {@link Connection#addConnectId(String, String, String)}.
+ * <p>
+ * The pool is refilled from whichever thread takes connect ids, or from the
+ * update task, at most one refill runs at a time.
+ */
+public class ConnectIdPool {
+    /**
+     * The time in seconds unused connect ids are valid on the website.
+     */
+    public static final int TIME_TO_LIVE = 10 * 60;
+    /**
+     * The time in milliseconds before a connect id expires on the website after
+     * which it is no longer given out, so that the player has time to use it.
+     */
+    private static final long EXPIRY_MARGIN = 60 * 1000;
+
+    private final SVCraftAudio svcraftAudio;
+    /**
+     * The registered connect ids, in the order they expire.
+     */
+    private final ConcurrentLinkedQueue<PooledId> pool = new ConcurrentLinkedQueue<>();
+    /**
+     * The connect ids in the pool, to check new ids for collisions.
+     */
+    private final Set<String> ids = ConcurrentHashMap.newKeySet();
+    /**
+     * The amount of connect ids in the pool, as the size of the queue is not
+     * constant time.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    public ConnectIdPool(SVCraftAudio svcraftAudio) {
+        this.svcraftAudio = svcraftAudio;
+    }
+
+    /**
+     * Take a connect id from the pool. If the pool is empty a new connect id is
+     * generated, which the website will know about once it is added.
+     *
+     * @return The connect id.
+     */
+    public String take() {
+        long now = System.currentTimeMillis();
+        PooledId pooledId;
+        while ((pooledId = this.pool.poll()) != null) {
+            this.size.decrementAndGet();
+            this.ids.remove(pooledId.id);
+            if (pooledId.usableUntil > now) {
+                break;
+            }
+        }
+        this.refillIfNeeded();
+        return pooledId != null ? pooledId.id : this.generateId();
+    }
+
+    /**
+     * Drop expired connect ids and refill the pool if it is running low.
+     */
+    public void maintain() {
+        long now = System.currentTimeMillis();
+        PooledId head;
+        while ((head = this.pool.peek()) != null && head.usableUntil <= now) {
+            if (this.pool.remove(head)) {
+                this.size.decrementAndGet();
+                this.ids.remove(head.id);
+            }
+        }
+        this.refillIfNeeded();
+    }
+
+    /**
+     * Forget all connect ids, as the website may have forgotten them, and register
+     * new ones. Called when the connection is opened.
+     */
+    public void onOpen() {
+        this.pool.clear();
+        this.ids.clear();
+        this.size.set(0);
+        this.refillIfNeeded();
+    }
+
+    /**
+     * Remove a connect id that the website rejected because another server uses
+     * it.
+     *
+     * @param id The connect id.
+     */
+    public void onTaken(String id) {
+        if (this.ids.remove(id) && this.pool.removeIf(pooledId -> pooledId.id.equals(id))) {
+            this.size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the amount of connect ids in the pool.
+     *
+     * @return The amount.
+     */
+    public int getSize() {
+        return this.size.get();
+    }
+
+    /**
+     * Register new connect ids if less than half of the configured amount are
+     * left.
+     */
+    private void refillIfNeeded() {
+        int target = this.svcraftAudio.getConfiguration().connectIdPool;
+        if (target <= 0 || this.size.get() > target / 2) {
+            return;
+        }
+        Connection connection = this.svcraftAudio.getConnectionRaw();
+        if (connection == null || !connection.isOpen() || !this.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long usableUntil = System.currentTimeMillis() + TIME_TO_LIVE * 1000L - EXPIRY_MARGIN;
+            List<String> batch = new ArrayList<>();
+            for (int i = this.size.get(); i < target; i++) {
+                batch.add(this.generateId());
+            }
+            // Register before adding to the pool, the website handles messages in order
+            connection.addConnectIds(batch, TIME_TO_LIVE);
+            for (String id : batch) {
+                this.ids.add(id);
+                this.pool.add(new PooledId(id, usableUntil));
+            }
+            this.size.addAndGet(batch.size());
+        } finally {
+            this.refilling.set(false);
+        }
+    }
+
+    /**
+     * Generate a connect id that is not in the pool.
+     */
+    private String generateId() {
+        String id;
+        do {
+            id = IdUtil.randomConnectId();
+        } while (this.ids.contains(id));
+        return id;
+    }
+
+    /**
+     * A connect id in the pool.
+     */
+    private static class PooledId {
+        private final String id;
+        /**
+         * The time in milliseconds until which the connect id is given out.
+         */
+        private final long usableUntil;
+
+        private PooledId(String id, long usableUntil) {
+            this.id = id;
+            this.usableUntil = usableUntil;
+        }
+    }
+}
@@ -6,10 +6,14 @@ import net.kyori.adventure.text.format.NamedTextColor;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
 
-import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -18,20 +22,53 @@ import java.util.concurrent.CompletableFuture;
  * The connection to the svcraft-audio websocket, indirectly the connection to
  * the clients (players).
  */
-public class Connection extends WebSocketClient {
+public class Connection extends WebSocketClient implements MessageSink {
     private final SVCraftAudio svcraftAudio;
     private final UserManager userManager;
+    private final RelayEndpoint endpoint;
     private List<CompletableFuture<Connection>> futures = new ArrayList<>();
-    private CommandSender peersInfoSender;
+    /**
+     * Whether the connection has been opened at least once.
+     */
+    private volatile boolean opened;
+    /**
+     * Whether the connection is open and ready for commands, guarded by this.
+     */
+    private boolean ready;
 
-    public Connection(SVCraftAudio svcraftAudio, UserManager userManager, URI serverUri) {
-        super(serverUri);
+    public Connection(SVCraftAudio svcraftAudio, UserManager userManager, RelayEndpoint endpoint) {
+        super(endpoint.getWebsocketUrl(), createDraft(svcraftAudio.getConfiguration()));
         this.svcraftAudio = svcraftAudio;
         this.userManager = userManager;
+        this.endpoint = endpoint;
+        // The relay monitor pings the websocket itself
+        this.setConnectionLostTimeout(0);
 
         this.connect();
     }
 
+    /**
+     * Create the websocket draft, with compression when enabled.
+     *
+     * @param config The configuration.
+     * @return The draft.
+     */
+    private static Draft createDraft(Config config) {
+        if (config.compressionThreshold < 0) {
+            return new Draft_6455();
+        }
+        return new Draft_6455(new DeflateExtension(config.compressionThreshold));
+    }
+
+    /**
+     * Get the relay this connection connects to.
+     *
+     * @return The endpoint.
+     */
+    public RelayEndpoint getEndpoint() {
+        return this.endpoint;
+    }
+
     /**
      * Get the plugin instance.
      *
@@ -47,17 +84,24 @@ public class Connection extends WebSocketClient {
      *
      * @param future The future to add.
      */
-    public void addFuture(CompletableFuture<Connection> future) {
-        this.futures.add(future);
+    public synchronized void addFuture(CompletableFuture<Connection> future) {
+        if (this.ready) {
+            future.complete(this);
+        } else {
+            this.futures.add(future);
+        }
     }
 
     /**
-     * Set the sender where debug peer info messages should be sent.
+     * Get the futures waiting for the connection to open, and forget them. Used to
+     * move them to the connection to another relay.
      *
-     * @param sender The sender that should receive peer info messages.
+     * @return The futures.
      */
-    public void setPeerInfoSender(CommandSender sender) {
-        this.peersInfoSender = sender;
+    public synchronized List<CompletableFuture<Connection>> takeFutures() {
+        List<CompletableFuture<Connection>> futures = this.futures;
+        this.futures = new ArrayList<>();
+        return futures;
     }
 
     /**
@@ -74,14 +118,80 @@ public class Connection extends WebSocketClient {
             + " and with username: " + username);
     }
 
+    /**
+     * Register connect ids ahead of time, the user id and username are added when
+     * they are used with {@link #addConnectId(String, String, String)}.
+     *
+     * @param connectIds The ids.
+     * @param timeToLive The time in seconds after which unused ids expire.
+     * @see ConnectIdPool
+     */
+    public void addConnectIds(List<String> connectIds, int timeToLive) {
+        this.send("New connect ids for " + timeToLive + " seconds: " + String.join(" ", connectIds));
+    }
+
+    /**
+     * Hand off a user to the next server the player joins on the network.
+     *
+     * @param userId The user id.
+     * @param username The username.
+     * @see Config#sessionHandoff
+     */
+    public void sendHandOff(String userId, String username) {
+        this.send("Hand off " + userId + " for " + username);
+    }
+
+    /**
+     * Tell the websocket server that a player joined, so that the user of the
+     * player is adopted by this server if the player is switching servers.
+     *
+     * @param username The username.
+     * @see Config#sessionHandoff
+     */
+    public void sendPlayerJoined(String username) {
+        this.send("Player joined " + username);
+    }
+
     @Override
     public void onOpen(ServerHandshake handshakedata) {
-        this.send("I am a server with id " + SVCraftAudio.SERVER_ID);
+        this.opened = true;
+        this.send("I am a server with id " + this.svcraftAudio.getServerId());
+        Connection previous = this.svcraftAudio.setConnection(this);
+        if (previous != this && !previous.isClosed()) {
+            // Switched to this relay. The relays share who is connected where, so
+            // the users connected to the previous relay are routed here from now on
+            previous.close();
+        }
+        this.svcraftAudio.getRelayMonitor().onOpen(this);
+        this.svcraftAudio.getConnectIdPool().onOpen();
+
+        // The players and users are only read on the main thread
+        Bukkit.getScheduler().runTask(this.svcraftAudio, () -> {
+            SessionSnapshot restoredSession = this.svcraftAudio.takeRestoredSession();
+            if (restoredSession != null) {
+                restoredSession.resume(this.svcraftAudio, this);
+            }
+
+            if (this.svcraftAudio.getConfiguration().sessionHandoff) {
+                // Adopt users that were handed off while this server was not
+                // connected, for example players that switched to this server
+                // during a restart
+                for (Player player : Bukkit.getOnlinePlayers()) {
+                    if (!this.userManager.isConnected(player)) {
+                        this.sendPlayerJoined(player.getName());
+                    }
+                }
+            }
+        });
 
-        for (CompletableFuture<Connection> future : this.futures) {
+        for (CompletableFuture<Connection> future : this.takeReady()) {
             future.complete(this);
         }
-        this.futures = new ArrayList<>();
+    }
+
+    private synchronized List<CompletableFuture<Connection>> takeReady() {
+        this.ready = true;
+        return this.takeFutures();
     }
 
     @Override
@@ -91,18 +201,22 @@ public class Connection extends WebSocketClient {
             String userId = parts[0];
             String username = parts[1];
 
-            Player player = Bukkit.getPlayer(username);
-            if (player != null) {
-                User user = new User(this.svcraftAudio, userId, player);
-                this.userManager.addNewUser(user);
-                player.sendMessage("You connected to svcraft-audio.");
-            } else {
-                this.send("To " + userId +": You are not on the server");
-            }
+            // The users and their audio settings are only changed on the main thread
+            Bukkit.getScheduler().runTask(this.svcraftAudio, () -> {
+                Player player = Bukkit.getPlayer(username);
+                if (player != null) {
+                    User user = new User(this.svcraftAudio, userId, player);
+                    this.userManager.addNewUser(user);
+                    player.sendMessage("You connected to svcraft-audio.");
+                } else {
+                    this.send("To " + userId +": You are not on the server");
+                }
+            });
         }
         else if (message.startsWith("User disconnected ")) {
             String userId = message.substring("User disconnected ".length());
-            this.userManager.removeUser(userId);
+            // On the main thread too, so that it can't overtake the connect
+            Bukkit.getScheduler().runTask(this.svcraftAudio, () -> this.userManager.removeUser(userId));
         }
         else if (message.startsWith("Warning from user ")) {
             String[] parts = message.substring("Warning from user ".length()).split(": ");
@@ -126,19 +240,28 @@ public class Connection extends WebSocketClient {
 
             Audience.audience(senders).sendMessage(component);
         }
-        else if (message.startsWith("Peer info from ") && this.peersInfoSender != null) {
-            String content = message.substring("Peer info from ".length());
-            String[] parts = content.split(": ");
-            String userId = parts[0];
-            String part2 = parts[1];
+        else if (message.startsWith("Peer info from ")) {
+            PeersInfoReport report = this.svcraftAudio.getUserRequestQueue().getPeersInfoReport();
+            if (report != null) {
+                String content = message.substring("Peer info from ".length());
+                String[] parts = content.split(": ");
+                String userId = parts[0];
+                String part2 = parts[1];
 
-            Component peersInfo = Component.text(' ' + part2.substring(5),
-                part2.startsWith("good") ? NamedTextColor.GREEN : NamedTextColor.RED);
-
-            this.peersInfoSender.sendMessage(Component.text()
-                .append(this.svcraftAudio.getUserComponent(userId))
-                .append(peersInfo)
-            );
+                report.accept(userId, part2.startsWith("good"), part2.substring(5));
+            }
+        }
+        else if (message.startsWith("Speaking ") || message.startsWith("Silent ")) {
+            boolean speaking = message.startsWith("Speaking ");
+            String userId = message.substring(message.indexOf(' ') + 1);
+            User user = this.userManager.getUser(userId);
+            if (user != null) {
+                // Volumes are sent from the main thread
+                Bukkit.getScheduler().runTask(this.svcraftAudio, () -> user.setSpeaking(speaking));
+            }
+        }
+        else if (message.startsWith("Connect id taken: ")) {
+            this.svcraftAudio.getConnectIdPool().onTaken(message.substring("Connect id taken: ".length()));
         }
         else if (message.startsWith("Heartbeat response from ")) {
             String userId = message.substring("Heartbeat response from ".length());
@@ -156,10 +279,35 @@ public class Connection extends WebSocketClient {
                 + " reason: \"" + reason + "\" "
                 + " and remote = " + remote
         );
+        synchronized (this) {
+            this.ready = false;
+        }
+        if (this.svcraftAudio.getConnectionRaw() != this) {
+            if (!this.opened) {
+                // Could not connect to the relay that was switched to
+                this.svcraftAudio.getRelayMonitor().onSwitchFailed(this, reason);
+            }
+            return;
+        }
+        boolean unexpected = remote || code != CloseFrame.NORMAL;
+        if (unexpected && this.svcraftAudio.getRelayMonitor().onConnectionLost(this, reason)) {
+            // Keep the users while connecting to another relay, clients that are
+            // connected to the other relays stay connected
+            return;
+        }
         // Disconnect all users
         for (User user : new ArrayList<>(this.userManager.getUsers())) {
             this.userManager.removeUser(user.getId());
         }
+        if (remote) {
+            // Check whether the website is down
+            this.svcraftAudio.getRelayMonitor().heartbeatNow();
+        }
+    }
+
+    @Override
+    public void onWebsocketPong(WebSocket conn, Framedata f) {
+        this.svcraftAudio.getRelayMonitor().onPong(this);
     }
 
     @Override
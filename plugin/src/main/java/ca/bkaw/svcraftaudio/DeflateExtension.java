@@ -0,0 +1,36 @@
+package ca.bkaw.svcraftaudio;
+
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+
+/**
+ * Per-message compression (permessage-deflate) of the connection to the
+ * svcraft-audio websocket server, see {@link Config#compressionThreshold}.
+ * <p>
+ * The messages are short and very alike ("To u-abc: Volume u-def: 0.45 at -30"),
+ * so compressing each of them on its own barely makes them smaller. They get
+ * small when the compression context is kept between messages, so that the
+ * previous messages act as a dictionary. The extension of Java-WebSocket always
+ * asks the server to reset the context after every message, and forgets its
+ * settings when it is copied for a connection, which is fixed here.
+ * <p>
+ * The trade-offs are measured by {@code server/bench/deflate.js}.
+ */
+public class DeflateExtension extends PerMessageDeflateExtension {
+    public DeflateExtension(int threshold) {
+        this.setThreshold(threshold);
+        // Keep the context in both directions
+        this.setServerNoContextTakeover(false);
+        this.setClientNoContextTakeover(false);
+    }
+
+    @Override
+    public String getProvidedExtensionAsClient() {
+        return "permessage-deflate";
+    }
+
+    @Override
+    public IExtension copyInstance() {
+        return new DeflateExtension(this.getThreshold());
+    }
+}
@@ -0,0 +1,81 @@
+package ca.bkaw.svcraftaudio;
+
+/**
+ * A model for how the volume of a player falls off with the distance.
+ * <p>
+ * All models give full volume up to maxVolumeDistance and no volume from
+ * hearDistance, they only differ in how the volume falls off in between.
+ */
+public enum Falloff {
+    /**
+     * The volume falls off linearly with the distance.
+     */
+    LINEAR {
+        @Override
+        protected double falloff(double distance, double maxVolumeDistance, double hearDistance) {
+            //
+            //                hearDistance - distance
+            // volume = ----------------------------------
+            //           hearDistance - maxVolumeDistance
+            //
+            return (hearDistance - distance) / (hearDistance - maxVolumeDistance);
+        }
+    },
+    /**
+     * The volume falls off with the inverse square of the distance, like sound
+     * does in the real world. The curve is shifted so that it reaches zero at
+     * hearDistance.
+     */
+    INVERSE_SQUARE {
+        @Override
+        protected double falloff(double distance, double maxVolumeDistance, double hearDistance) {
+            double reference = Math.max(maxVolumeDistance, 1);
+            double atDistance = (reference * reference) / (distance * distance);
+            double atHearDistance = (reference * reference) / (hearDistance * hearDistance);
+            return (atDistance - atHearDistance) / (1 - atHearDistance);
+        }
+    },
+    /**
+     * The volume falls off logarithmically with the distance, meaning it drops
+     * quickly close to the player and slowly further away.
+     */
+    LOGARITHMIC {
+        @Override
+        protected double falloff(double distance, double maxVolumeDistance, double hearDistance) {
+            double reference = Math.max(maxVolumeDistance, 1);
+            return 1 - Math.log(distance / reference) / Math.log(hearDistance / reference);
+        }
+    };
+
+    /**
+     * Get the volume a player should be heard at from a specified distance.
+     *
+     * @param distance The distance.
+     * @param maxVolumeDistance The distance where the volume starts to fall off.
+     * @param hearDistance The distance where the volume reaches zero.
+     * @return The volume [0-1].
+     */
+    public double getVolume(double distance, double maxVolumeDistance, double hearDistance) {
+        if (distance <= maxVolumeDistance) {
+            return 1;
+        }
+        if (distance >= hearDistance) {
+            return 0;
+        }
+        double volume = this.falloff(distance, maxVolumeDistance, hearDistance);
+        if (volume > 1) volume = 1;
+        if (volume < 0) volume = 0;
+        return volume;
+    }
+
+    /**
+     * Calculate the volume for a distance between maxVolumeDistance and
+     * hearDistance.
+     *
+     * @param distance The distance.
+     * @param maxVolumeDistance The distance where the volume starts to fall off.
+     * @param hearDistance The distance where the volume reaches zero.
+     * @return The volume, will be clamped to [0-1].
+     */
+    protected abstract double falloff(double distance, double maxVolumeDistance, double hearDistance);
+}
@@ -0,0 +1,254 @@
+package ca.bkaw.svcraftaudio;
+
+import org.bukkit.World;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of who hears who, for inspecting large servers.
+ * <p>
+ * The snapshot is taken on the main thread by copying the hearing graph, the
+ * sent volumes and the last positions of the users to plain arrays, which is
+ * cheap even for thousands of users. Writing the file and computing the summary
+ * can then be done on another thread.
+ * <p>
+ * The file is written as json lines, one object per user:
+ * <pre>
+ * {"id":"u-abc","name":"Player","world":"world","x":1.5,"y":64.0,"z":-3.5,"speaking":true,"dense":false,
+ *  "hearing":[{"id":"u-def","volume":80,"azimuth":-45,"forwarded":false}]}
+ * </pre>
+ */
+public class GraphExport {
+    private final int count;
+    private final String[] ids;
+    private final String[] names;
+    private final String[] worlds;
+    private final double[] positions;
+    private final boolean[] speaking;
+    private final boolean[] dense;
+    /**
+     * The indices of the users each user hears, and the volume, azimuth and
+     * whether it is forwarded for each of them.
+     */
+    private final int[][] hearing;
+    private final int[][] volumes;
+    private final int[][] azimuths;
+    private final boolean[][] forwarded;
+
+    /**
+     * Take a snapshot of the users. Must be called on the main thread.
+     *
+     * @param users The users.
+     */
+    public GraphExport(List<User> users) {
+        this.count = users.size();
+        this.ids = new String[this.count];
+        this.names = new String[this.count];
+        this.worlds = new String[this.count];
+        this.positions = new double[this.count * 3];
+        this.speaking = new boolean[this.count];
+        this.dense = new boolean[this.count];
+        this.hearing = new int[this.count][];
+        this.volumes = new int[this.count][];
+        this.azimuths = new int[this.count][];
+        this.forwarded = new boolean[this.count][];
+
+        Map<User, Integer> indices = new IdentityHashMap<>(this.count * 2);
+        for (int i = 0; i < this.count; i++) {
+            indices.put(users.get(i), i);
+        }
+        for (int i = 0; i < this.count; i++) {
+            User user = users.get(i);
+            this.ids[i] = user.getId();
+            this.names[i] = user.getName();
+            World world = user.getSnapshotWorld();
+            this.worlds[i] = world == null ? null : world.getName();
+            this.positions[i * 3] = user.getSnapshotX();
+            this.positions[i * 3 + 1] = user.getSnapshotY();
+            this.positions[i * 3 + 2] = user.getSnapshotZ();
+            this.speaking[i] = user.isSpeaking();
+            this.dense[i] = user.isInDenseCluster();
+
+            int degree = user.getHearingUsers().size();
+            int[] hearing = new int[degree];
+            int[] volumes = new int[degree];
+            int[] azimuths = new int[degree];
+            boolean[] forwarded = new boolean[degree];
+            int j = 0;
+            for (User other : user.getHearingUsers()) {
+                Integer index = indices.get(other);
+                if (index == null) {
+                    // Not in the user manager, should not happen
+                    continue;
+                }
+                hearing[j] = index;
+                volumes[j] = user.getLastSentVolumePercentFor(other);
+                azimuths[j] = user.getLastSentAzimuthFor(other);
+                forwarded[j] = user.isForwarded(other);
+                j++;
+            }
+            this.hearing[i] = j == degree ? hearing : Arrays.copyOf(hearing, j);
+            this.volumes[i] = volumes;
+            this.azimuths[i] = azimuths;
+            this.forwarded[i] = forwarded;
+        }
+    }
+
+    /**
+     * Write the snapshot to a file as json lines.
+     *
+     * @param file The file.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void write(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 65536)) {
+            StringBuilder line = new StringBuilder(256);
+            for (int i = 0; i < this.count; i++) {
+                line.setLength(0);
+                line.append("{\"id\":");
+                appendString(line, this.ids[i]);
+                line.append(",\"name\":");
+                appendString(line, this.names[i]);
+                line.append(",\"world\":");
+                appendString(line, this.worlds[i]);
+                line.append(",\"x\":").append(this.positions[i * 3]);
+                line.append(",\"y\":").append(this.positions[i * 3 + 1]);
+                line.append(",\"z\":").append(this.positions[i * 3 + 2]);
+                line.append(",\"speaking\":").append(this.speaking[i]);
+                line.append(",\"dense\":").append(this.dense[i]);
+                line.append(",\"hearing\":[");
+                int[] hearing = this.hearing[i];
+                for (int j = 0; j < hearing.length; j++) {
+                    if (j > 0) {
+                        line.append(',');
+                    }
+                    line.append("{\"id\":");
+                    appendString(line, this.ids[hearing[j]]);
+                    line.append(",\"volume\":").append(this.volumes[i][j]);
+                    line.append(",\"azimuth\":").append(this.azimuths[i][j]);
+                    line.append(",\"forwarded\":").append(this.forwarded[i][j]);
+                    line.append('}');
+                }
+                line.append("]}\n");
+                out.append(line);
+            }
+        }
+    }
+
+    private static void appendString(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    /**
+     * Compute a summary of the graph: the distribution of the amount of users each
+     * user hears, and the sizes of the groups of users that are connected through
+     * each other.
+     *
+     * @return The summary.
+     */
+    public Summary summarize() {
+        Summary summary = new Summary();
+        summary.users = this.count;
+        if (this.count == 0) {
+            return summary;
+        }
+
+        int[] degrees = new int[this.count];
+        long totalDegree = 0;
+        // Union-find to find the clusters
+        int[] parents = new int[this.count];
+        for (int i = 0; i < this.count; i++) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < this.count; i++) {
+            degrees[i] = this.hearing[i].length;
+            totalDegree += degrees[i];
+            for (int other : this.hearing[i]) {
+                int a = find(parents, i);
+                int b = find(parents, other);
+                if (a != b) {
+                    parents[a] = b;
+                }
+            }
+        }
+        Arrays.sort(degrees);
+        summary.pairs = totalDegree / 2;
+        summary.averageDegree = (double) totalDegree / this.count;
+        summary.medianDegree = degrees[this.count / 2];
+        summary.p99Degree = degrees[Math.min(this.count - 1, (int) (this.count * 0.99))];
+        summary.maxDegree = degrees[this.count - 1];
+        for (int degree : degrees) {
+            if (degree == 0) {
+                summary.isolated++;
+            }
+        }
+
+        int[] clusterSizes = new int[this.count];
+        for (int i = 0; i < this.count; i++) {
+            clusterSizes[find(parents, i)]++;
+        }
+        for (int size : clusterSizes) {
+            if (size > 1) {
+                summary.clusters++;
+                summary.largestCluster = Math.max(summary.largestCluster, size);
+            }
+        }
+        return summary;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            // Path halving
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * A summary of the hearing graph.
+     */
+    public static class Summary {
+        /** The amount of users. */
+        public int users;
+        /** The amount of pairs of users that hear each other. */
+        public long pairs;
+        /** The amount of users each user hears. */
+        public double averageDegree;
+        public int medianDegree;
+        public int p99Degree;
+        public int maxDegree;
+        /** The amount of users that hear nobody. */
+        public int isolated;
+        /** The amount of groups of at least two users connected through each other. */
+        public int clusters;
+        /** The amount of users in the largest cluster. */
+        public int largestCluster;
+    }
+}
@@ -1,16 +1,35 @@
 package ca.bkaw.svcraftaudio;
 
+import java.security.SecureRandom;
+
 /**
  * Utilities for generating ids.
+ * <p>
+ * Connect ids are used as links, so ids are generated with a secure random
+ * number generator that is seeded once and shared by all threads. Each character
+ * is chosen uniformly by rejection sampling, as taking random bytes modulo 36
+ * would make some characters more likely than others.
  */
 public class IdUtil {
+    /**
+     * The characters ids consist of.
+     */
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    /**
+     * The length of connect ids. Longer than the other ids since pooled connect
+     * ids are valid for several minutes before they are used.
+     */
+    private static final int CONNECT_ID_LENGTH = 12;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     /**
      * Get a random server id.
      *
      * @return The server id.
      */
     public static String randomServerId() {
-        return "s-" + random8Chars();
+        return "s-" + randomChars(8);
     }
 
     /**
@@ -19,35 +38,42 @@ public class IdUtil {
      * @return The user id.
      */
     public static String randomUserId() {
-        return "u-" + random8Chars();
+        return "u-" + randomChars(8);
     }
 
     /**
-     * Get a string of 8 random characters consisting of lowercase letters or
-     * numbers only.
+     * Get a random connect id.
      *
-     * @return The random string.
+     * @return The connect id.
      */
-    private static String random8Chars() {
-        char[] chars = new char[8];
-        for (int i = 0; i < chars.length; i++) {
-            if (random(0, 26 + 10) > 26) {
-                chars[i] = (char) random('0', '9');
-            } else {
-                chars[i] = (char) random('a', 'z');
-            }
-        }
-        return new String(chars);
+    public static String randomConnectId() {
+        return randomChars(CONNECT_ID_LENGTH);
     }
 
     /**
-     * Get a random number between min and max (both inclusive).
+     * Get a string of random characters consisting of lowercase letters or
+     * numbers only.
      *
-     * @param min The minimum value (inclusive).
-     * @param max The maximum value (inclusive).
-     * @return The random value.
+     * @param length The amount of characters.
+     * @return The random string.
      */
-    private static int random(int min, int max) {
-        return (int) (Math.random() * (max - min + 1) + min);
+    private static String randomChars(int length) {
+        char[] chars = new char[length];
+        // 6 random bits per byte, 36 of the 64 values are used. Enough bytes are
+        // fetched at once for most ids.
+        byte[] bytes = new byte[length * 2];
+        int index = bytes.length;
+        int i = 0;
+        while (i < length) {
+            if (index == bytes.length) {
+                RANDOM.nextBytes(bytes);
+                index = 0;
+            }
+            int value = bytes[index++] & 0x3F;
+            if (value < ALPHABET.length) {
+                chars[i++] = ALPHABET[value];
+            }
+        }
+        return new String(chars);
     }
 }
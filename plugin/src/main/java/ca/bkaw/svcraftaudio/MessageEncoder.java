@@ -0,0 +1,186 @@
+package ca.bkaw.svcraftaudio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds messages for the svcraft-audio websocket server into a buffer that is
+ * reused by the thread, so that sending a message does not create any strings.
+ * <p>
+ * The messages are UTF-8 encoded and sent as binary frames, which the websocket
+ * server reads as text. The websocket library copies the buffer into the frame
+ * before {@link Connection#send(ByteBuffer)} returns, so the buffer can be
+ * reused for the next message right away.
+ * <p>
+ * Usage: {@code MessageEncoder.get().beginTo(userId).append("Reload").send(sink)}
+ */
+public final class MessageEncoder {
+    private static final ThreadLocal<MessageEncoder> ENCODER = ThreadLocal.withInitial(MessageEncoder::new);
+
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    private MessageEncoder() {}
+
+    /**
+     * Get the encoder of the current thread.
+     *
+     * @return The encoder.
+     */
+    public static MessageEncoder get() {
+        return ENCODER.get();
+    }
+
+    /**
+     * Start a new message.
+     *
+     * @return This encoder.
+     */
+    public MessageEncoder begin() {
+        this.buffer.clear();
+        return this;
+    }
+
+    /**
+     * Start a new message that the websocket server forwards to a user.
+     *
+     * @param userId The id of the user.
+     * @return This encoder.
+     */
+    public MessageEncoder beginTo(String userId) {
+        return this.begin().append("To ").append(userId).append(": ");
+    }
+
+    /**
+     * Append text.
+     *
+     * @param text The text.
+     * @return This encoder.
+     */
+    public MessageEncoder append(CharSequence text) {
+        int length = text.length();
+        this.ensureRemaining(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                this.buffer.put((byte) c);
+            } else {
+                this.ensureRemaining(length - i + 3);
+                if (c < 0x800) {
+                    this.buffer.put((byte) (0xC0 | (c >> 6)));
+                    this.buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    this.buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    this.buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    this.buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    this.buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate
+                    this.buffer.put((byte) '?');
+                } else {
+                    this.buffer.put((byte) (0xE0 | (c >> 12)));
+                    this.buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    this.buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Append an integer in decimal.
+     *
+     * @param value The integer.
+     * @return This encoder.
+     */
+    public MessageEncoder append(int value) {
+        this.ensureRemaining(11);
+        long remaining = value;
+        if (remaining < 0) {
+            this.buffer.put((byte) '-');
+            remaining = -remaining;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= remaining) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            this.buffer.put((byte) ('0' + remaining / divisor % 10));
+        }
+        return this;
+    }
+
+    /**
+     * Append a volume percentage as a volume [0-1] with two decimals, for example
+     * 45 is appended as "0.45".
+     *
+     * @param volumePercent The volume percentage.
+     * @return This encoder.
+     */
+    public MessageEncoder appendVolume(int volumePercent) {
+        if (volumePercent < 0) {
+            this.append('-');
+            volumePercent = -volumePercent;
+        }
+        this.append(volumePercent / 100);
+        this.ensureRemaining(3);
+        int decimals = volumePercent % 100;
+        this.buffer.put((byte) '.');
+        this.buffer.put((byte) ('0' + decimals / 10));
+        this.buffer.put((byte) ('0' + decimals % 10));
+        return this;
+    }
+
+    /**
+     * Append a character.
+     *
+     * @param c The character.
+     * @return This encoder.
+     */
+    public MessageEncoder append(char c) {
+        if (c < 0x80) {
+            this.ensureRemaining(1);
+            this.buffer.put((byte) c);
+            return this;
+        }
+        return this.append(String.valueOf(c));
+    }
+
+    /**
+     * Send the message.
+     *
+     * @param sink Where to send the message, usually the connection.
+     */
+    public void send(MessageSink sink) {
+        try {
+            sink.send(this.finish());
+        } finally {
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Finish the message without sending it. The buffer is only valid until the
+     * next message is started.
+     *
+     * @return The encoded message.
+     */
+    ByteBuffer finish() {
+        this.buffer.flip();
+        return this.buffer;
+    }
+
+    /**
+     * Grow the buffer if needed so that it can hold more bytes.
+     *
+     * @param bytes The amount of bytes.
+     */
+    private void ensureRemaining(int bytes) {
+        if (this.buffer.remaining() < bytes) {
+            int capacity = Math.max(this.buffer.capacity() * 2, this.buffer.position() + bytes);
+            ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+            this.buffer.flip();
+            newBuffer.put(this.buffer);
+            this.buffer = newBuffer;
+        }
+    }
+}
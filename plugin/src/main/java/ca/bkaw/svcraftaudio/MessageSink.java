@@ -0,0 +1,17 @@
+package ca.bkaw.svcraftaudio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where the messages to users are sent: the {@link Connection} to the
+ * svcraft-audio websocket server, or a sink that only counts the messages when
+ * replaying a trace with the {@link TraceReplayer}.
+ */
+public interface MessageSink {
+    /**
+     * Send a message. The buffer may be reused once this returns.
+     *
+     * @param message The UTF-8 encoded message, see {@link MessageEncoder}.
+     */
+    void send(ByteBuffer message);
+}
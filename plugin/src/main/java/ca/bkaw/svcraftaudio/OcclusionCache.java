@@ -0,0 +1,351 @@
+package ca.bkaw.svcraftaudio;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Caches how much the blocks between two users muffle their audio, so that
+ * players can't hear each other through walls.
+ * <p>
+ * Tracing through the blocks between every pair of users on every run of the
+ * update task would be too expensive, so the occlusion of each pair that hears
+ * each other is cached. A pair is only traced again when one of the players has
+ * moved, when blocks changed in the chunks between them, or when the result is
+ * old. At most {@link Config#occlusionBudget} blocks are visited per run, pairs
+ * that don't fit in the budget keep their previous occlusion until a later run.
+ * <p>
+ * Blocks are read from the world, so {@link #update(List, Config)} must be called
+ * on the main thread. The occlusion is read while the proximity pass is computed,
+ * possibly in parallel, which is safe since the cache is not changed then.
+ */
+public class OcclusionCache {
+    /**
+     * The height of the eyes of a standing player. The audio is traced between the
+     * eyes of the players.
+     */
+    private static final double EYE_HEIGHT = 1.62;
+    /**
+     * The distance squared a player has to move before the occlusion is traced
+     * again.
+     */
+    private static final double MOVE_THRESHOLD_SQ = 1.0;
+    /**
+     * The time in milliseconds after which the occlusion is traced again, to catch
+     * block changes that are not listened to, like pistons.
+     */
+    private static final long MAX_AGE = 10000;
+
+    /**
+     * The cached occlusion of each pair. Both users of a pair map to the same
+     * entry.
+     */
+    private final Map<User, Map<User, Entry>> entries = new HashMap<>();
+    /**
+     * The entries that need to be traced, in the order they became stale.
+     */
+    private final Queue<Entry> queue = new ArrayDeque<>();
+    /**
+     * The chunks where blocks changed since the last run, by world.
+     */
+    private final Map<World, LongSet> changedChunks = new HashMap<>();
+    /**
+     * The current run, used to find the entries of pairs that no longer hear each
+     * other.
+     */
+    private int run;
+
+    /**
+     * Update the cache for the pairs of users that hear each other. Stale pairs are
+     * traced until the budget is used up.
+     *
+     * @param users The users, with updated snapshots.
+     * @param config The configuration.
+     */
+    public void update(List<User> users, Config config) {
+        long now = System.currentTimeMillis();
+        this.run++;
+
+        for (User user : users) {
+            for (User other : user.getHearingUsers()) {
+                if (user.sharesChannelWith(other)) {
+                    // Channel members always hear each other at full volume
+                    continue;
+                }
+                Entry entry = this.getEntry(user, other);
+                if (entry == null) {
+                    entry = new Entry(user, other);
+                    this.entries.computeIfAbsent(user, k -> new HashMap<>()).put(other, entry);
+                    this.entries.computeIfAbsent(other, k -> new HashMap<>()).put(user, entry);
+                } else if (entry.seen == this.run) {
+                    continue;
+                }
+                entry.seen = this.run;
+                if (!entry.queued && entry.isStale(now, this.changedChunks)) {
+                    entry.queued = true;
+                    this.queue.add(entry);
+                }
+            }
+        }
+        this.changedChunks.clear();
+
+        // Forget the pairs that no longer hear each other
+        Iterator<Map<User, Entry>> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            Map<User, Entry> userEntries = iterator.next();
+            userEntries.values().removeIf(entry -> entry.seen != this.run);
+            if (userEntries.isEmpty()) {
+                iterator.remove();
+            }
+        }
+
+        int budget = config.occlusionBudget;
+        // Entries that can't fit in a whole budget are moved to the back, at most
+        // once each per run
+        int rotations = this.queue.size();
+        while (!this.queue.isEmpty()) {
+            Entry entry = this.queue.peek();
+            if (entry.seen != this.run) {
+                // Forgotten
+                this.queue.poll();
+                continue;
+            }
+            AudioProfile profile = config.getProfile(entry.user.getSnapshotWorld());
+            double hearDistanceSq = (double) profile.hearDistance * profile.hearDistance;
+            if (!profile.enabled || entry.user.getSnapshotDistanceSqTo(entry.other) > hearDistanceSq) {
+                // Can't be heard anyway, trace when they come closer
+                entry.remember(now, entry.factor);
+                this.queue.poll();
+                continue;
+            }
+            int cost = entry.getMaxCost();
+            if (cost > config.occlusionBudget) {
+                // Would block the queue forever, let the entries behind it go first
+                if (rotations-- <= 0) {
+                    break;
+                }
+                this.queue.add(this.queue.poll());
+                continue;
+            }
+            if (cost > budget) {
+                break;
+            }
+            this.queue.poll();
+            int occludingBlocks = entry.trace();
+            budget -= cost;
+            entry.remember(now, (float) Math.max(0, 1 - occludingBlocks * config.occlusionPerBlock));
+        }
+    }
+
+    /**
+     * Get the factor the volume of the users is multiplied with because of the
+     * blocks between them.
+     *
+     * @param user The user.
+     * @param other The other user.
+     * @return The factor [0-1], 1 if the pair has not been traced.
+     */
+    public float getFactor(User user, User other) {
+        Entry entry = this.getEntry(user, other);
+        return entry == null ? 1 : entry.factor;
+    }
+
+    /**
+     * Apply the occlusion between two users to a volume.
+     *
+     * @param volumePercent The volume without occlusion.
+     * @param user The user.
+     * @param other The other user.
+     * @return The occluded volume.
+     */
+    public int attenuate(int volumePercent, User user, User other) {
+        return Math.round(volumePercent * this.getFactor(user, other));
+    }
+
+    /**
+     * Mark the pairs that are traced through the chunk of a block that changed as
+     * stale.
+     *
+     * @param block The block that changed.
+     */
+    public void onBlockChange(Block block) {
+        if (this.entries.isEmpty()) {
+            return;
+        }
+        this.changedChunks.computeIfAbsent(block.getWorld(), k -> new LongOpenHashSet())
+            .add(getChunkKey(block.getX() >> 4, block.getZ() >> 4));
+    }
+
+    /**
+     * Forget all cached occlusion, for example when occlusion is disabled.
+     */
+    public void clear() {
+        this.entries.clear();
+        this.queue.clear();
+        this.changedChunks.clear();
+    }
+
+    private Entry getEntry(User user, User other) {
+        Map<User, Entry> userEntries = this.entries.get(user);
+        return userEntries == null ? null : userEntries.get(other);
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The cached occlusion of a pair of users.
+     */
+    private static class Entry {
+        private final User user;
+        private final User other;
+        private int seen;
+        private boolean queued;
+        private boolean traced;
+        private long tracedAt;
+        /**
+         * The world and the positions of both players when the pair was traced.
+         */
+        private World world;
+        private double x1, y1, z1, x2, y2, z2;
+        private float factor = 1;
+
+        private Entry(User user, User other) {
+            this.user = user;
+            this.other = other;
+        }
+
+        /**
+         * Whether the pair should be traced again.
+         */
+        private boolean isStale(long now, Map<World, LongSet> changedChunks) {
+            if (!this.traced || now - this.tracedAt > MAX_AGE || this.user.getSnapshotWorld() != this.world) {
+                return true;
+            }
+            if (distanceSq(this.user, this.x1, this.y1, this.z1) > MOVE_THRESHOLD_SQ
+                || distanceSq(this.other, this.x2, this.y2, this.z2) > MOVE_THRESHOLD_SQ) {
+                return true;
+            }
+            LongSet chunks = changedChunks.get(this.world);
+            if (chunks != null) {
+                int minX = (int) Math.floor(Math.min(this.x1, this.x2)) >> 4;
+                int maxX = (int) Math.floor(Math.max(this.x1, this.x2)) >> 4;
+                int minZ = (int) Math.floor(Math.min(this.z1, this.z2)) >> 4;
+                int maxZ = (int) Math.floor(Math.max(this.z1, this.z2)) >> 4;
+                for (int chunkX = minX; chunkX <= maxX; chunkX++) {
+                    for (int chunkZ = minZ; chunkZ <= maxZ; chunkZ++) {
+                        if (chunks.contains(getChunkKey(chunkX, chunkZ))) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static double distanceSq(User user, double x, double y, double z) {
+            double dx = user.getSnapshotX() - x;
+            double dy = user.getSnapshotY() - y;
+            double dz = user.getSnapshotZ() - z;
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        /**
+         * Remember the current positions of the players and the traced factor.
+         */
+        private void remember(long now, float factor) {
+            this.traced = true;
+            this.queued = false;
+            this.tracedAt = now;
+            this.world = this.user.getSnapshotWorld();
+            this.x1 = this.user.getSnapshotX();
+            this.y1 = this.user.getSnapshotY();
+            this.z1 = this.user.getSnapshotZ();
+            this.x2 = this.other.getSnapshotX();
+            this.y2 = this.other.getSnapshotY();
+            this.z2 = this.other.getSnapshotZ();
+            this.factor = factor;
+        }
+
+        /**
+         * Get the maximum amount of blocks a trace between the players visits.
+         */
+        private int getMaxCost() {
+            return Math.abs(floor(this.user.getSnapshotX()) - floor(this.other.getSnapshotX()))
+                + Math.abs(floor(this.user.getSnapshotY() + EYE_HEIGHT) - floor(this.other.getSnapshotY() + EYE_HEIGHT))
+                + Math.abs(floor(this.user.getSnapshotZ()) - floor(this.other.getSnapshotZ()))
+                + 1;
+        }
+
+        /**
+         * Count the occluding blocks between the eyes of the players by walking
+         * through every block the line between them passes. The blocks the players
+         * are in don't count, and blocks in unloaded chunks are not occluding.
+         *
+         * @return The amount of occluding blocks.
+         */
+        private int trace() {
+            World world = this.user.getSnapshotWorld();
+            double startX = this.user.getSnapshotX();
+            double startY = this.user.getSnapshotY() + EYE_HEIGHT;
+            double startZ = this.user.getSnapshotZ();
+            double dx = this.other.getSnapshotX() - startX;
+            double dy = this.other.getSnapshotY() + EYE_HEIGHT - startY;
+            double dz = this.other.getSnapshotZ() - startZ;
+
+            int x = floor(startX), y = floor(startY), z = floor(startZ);
+            int endX = floor(startX + dx), endY = floor(startY + dy), endZ = floor(startZ + dz);
+            int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1, stepZ = dz > 0 ? 1 : -1;
+            // The distance along the line, from 0 to 1, to the next block boundary
+            // on each axis, and between block boundaries
+            double deltaX = dx == 0 ? Double.MAX_VALUE : Math.abs(1 / dx);
+            double deltaY = dy == 0 ? Double.MAX_VALUE : Math.abs(1 / dy);
+            double deltaZ = dz == 0 ? Double.MAX_VALUE : Math.abs(1 / dz);
+            double nextX = dx == 0 ? Double.MAX_VALUE : (dx > 0 ? x + 1 - startX : startX - x) * deltaX;
+            double nextY = dy == 0 ? Double.MAX_VALUE : (dy > 0 ? y + 1 - startY : startY - y) * deltaY;
+            double nextZ = dz == 0 ? Double.MAX_VALUE : (dz > 0 ? z + 1 - startZ : startZ - z) * deltaZ;
+
+            int minY = world.getMinHeight();
+            int maxY = world.getMaxHeight();
+            int occluding = 0;
+            while (true) {
+                // The distance along the line where the next block is entered
+                double t;
+                if (nextX < nextY && nextX < nextZ) {
+                    x += stepX;
+                    t = nextX;
+                    nextX += deltaX;
+                } else if (nextY < nextZ) {
+                    y += stepY;
+                    t = nextY;
+                    nextY += deltaY;
+                } else {
+                    z += stepZ;
+                    t = nextZ;
+                    nextZ += deltaZ;
+                }
+                if (t >= 1 || (x == endX && y == endY && z == endZ)) {
+                    // Reached the block of the other player
+                    return occluding;
+                }
+                if (y >= minY && y < maxY && world.isChunkLoaded(x >> 4, z >> 4)
+                    && world.getBlockAt(x, y, z).getType().isOccluding()) {
+                    occluding++;
+                }
+            }
+        }
+
+        private static int floor(double value) {
+            return (int) Math.floor(value);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ca.bkaw.svcraftaudio;
+
+import java.util.List;
+
+/**
+ * Applies the result of a {@link ProximityPass} to the users: the commands of the
+ * pass, the bitrate hints and the periodic resend of all volumes.
+ * <p>
+ * The {@link UpdateTask} uses it with the users of the server, and the
+ * {@link TraceReplayer} with headless users whose messages go to a sink that
+ * counts them, so that a replay runs exactly the logic of the update task.
+ */
+public class PassApplier {
+    /**
+     * The time in milliseconds between resends of all volumes.
+     */
+    private static final long RESEND_INTERVAL = 10000;
+
+    private final UserContext context;
+    /**
+     * The last time the volumes were all resent.
+     */
+    private long lastVolumeResend;
+
+    /**
+     * Create a new applier.
+     *
+     * @param context The context of the users.
+     * @param now The current time in milliseconds.
+     */
+    public PassApplier(UserContext context, long now) {
+        this.context = context;
+        this.lastVolumeResend = now;
+    }
+
+    /**
+     * Apply the commands of a proximity pass. Volume changes are always applied,
+     * the other commands only up to a limit, the rest are decided again by the
+     * next pass.
+     *
+     * @param pass The pass.
+     * @param commands The commands the pass computed.
+     * @param config The configuration the pass used.
+     * @param maxChanges The maximum amount of connects, disconnects and
+     *                   reconnects to apply.
+     * @return Whether all commands were applied.
+     */
+    public boolean apply(ProximityPass pass, List<PassCommand> commands, Config config, int maxChanges) {
+        if (config.sfuThreshold > 0) {
+            for (User user : pass.getUsers()) {
+                user.setInDenseCluster(pass.isInDenseCluster(user));
+            }
+        }
+
+        int changes = maxChanges;
+        boolean applied = true;
+        for (PassCommand command : commands) {
+            User user = command.user;
+            User otherUser = command.other;
+            if (command.type != PassCommand.Type.VOLUME && changes-- <= 0) {
+                applied = false;
+                continue;
+            }
+            switch (command.type) {
+                case CONNECT:
+                    user.startHearing(otherUser, true, command.forwarded);
+                    break;
+                case DISCONNECT:
+                    user.stopHearing(otherUser);
+                    break;
+                case RECONNECT:
+                    user.stopHearing(otherUser);
+                    user.startHearing(otherUser, true, command.forwarded);
+                    break;
+                case VOLUME:
+                    if (!user.canHear(otherUser)) {
+                        break;
+                    }
+                    user.setVolumePercentFor(otherUser, command.volumePercent, command.azimuth);
+                    if (config.debug && command.volumeChanged && user.getPlayer() != null) {
+                        user.getPlayer().sendMessage("You will now hear " + otherUser.getName() + " at volume " + VolumeCurve.toVolume(command.volumePercent));
+                    }
+                    break;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Send the bitrate hints of the users that changed.
+     *
+     * @param users The users.
+     * @param config The configuration.
+     * @see User#updateBitrates(Config)
+     */
+    public void updateBitrates(List<User> users, Config config) {
+        for (User user : users) {
+            user.updateBitrates(config);
+        }
+    }
+
+    /**
+     * Resend the volumes of all pairs where the heard user is speaking, if it is
+     * time to, in case a client missed a message.
+     *
+     * @param users The users.
+     * @param now The current time in milliseconds.
+     * @return Whether the volumes were resent.
+     */
+    public boolean resendVolumes(List<User> users, long now) {
+        if (now - this.lastVolumeResend <= RESEND_INTERVAL) {
+            return false;
+        }
+        if (this.context.getConfiguration().debug) {
+            this.context.getLogger().info("Resending volumes");
+        }
+        for (User user : users) {
+            for (User hearingUser : user.getHearingUsers()) {
+                if (!hearingUser.isSpeaking()) {
+                    // Sent when they start speaking
+                    continue;
+                }
+                int volume = user.computeVolumePercentFor(hearingUser);
+                user.setVolumePercentFor(hearingUser, volume, user.getLastSentAzimuthFor(hearingUser));
+            }
+        }
+        this.lastVolumeResend = now;
+        return true;
+    }
+}
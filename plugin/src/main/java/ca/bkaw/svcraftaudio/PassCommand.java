@@ -0,0 +1,123 @@
+package ca.bkaw.svcraftaudio;
+
+import java.util.Objects;
+
+/**
+ * A change decided by a {@link ProximityPass} that the update task applies after
+ * the pass, like connecting two users or sending a new volume.
+ */
+public final class PassCommand {
+    /**
+     * The type of change.
+     */
+    public enum Type {
+        /** The users should start hearing each other. */
+        CONNECT,
+        /** The users should stop hearing each other. */
+        DISCONNECT,
+        /** The users should be reconnected using another route. */
+        RECONNECT,
+        /** The user should hear the other user at a new volume or direction. */
+        VOLUME
+    }
+
+    /** The type of change. */
+    public final Type type;
+    /** The user the change is for, this user inits the call when connecting. */
+    public final User user;
+    /** The other user. */
+    public final User other;
+    /** When connecting, whether the audio should be routed through the forwarding service. */
+    public final boolean forwarded;
+    /** For volume changes, the volume percentage [0-100]. */
+    public final int volumePercent;
+    /** For volume changes, the azimuth in degrees. */
+    public final int azimuth;
+    /** For volume changes, whether the volume changed (rather than only the azimuth). */
+    public final boolean volumeChanged;
+
+    private PassCommand(Type type, User user, User other, boolean forwarded, int volumePercent, int azimuth, boolean volumeChanged) {
+        this.type = type;
+        this.user = user;
+        this.other = other;
+        this.forwarded = forwarded;
+        this.volumePercent = volumePercent;
+        this.azimuth = azimuth;
+        this.volumeChanged = volumeChanged;
+    }
+
+    /**
+     * Create a command that makes the users start hearing each other.
+     *
+     * @param user The user that should init the call.
+     * @param other The other user.
+     * @param forwarded Whether the audio should be routed through the forwarding service.
+     * @return The command.
+     */
+    public static PassCommand connect(User user, User other, boolean forwarded) {
+        return new PassCommand(Type.CONNECT, user, other, forwarded, 0, 0, false);
+    }
+
+    /**
+     * Create a command that makes the users stop hearing each other.
+     *
+     * @param user The user.
+     * @param other The other user.
+     * @return The command.
+     */
+    public static PassCommand disconnect(User user, User other) {
+        return new PassCommand(Type.DISCONNECT, user, other, false, 0, 0, false);
+    }
+
+    /**
+     * Create a command that reconnects the users using another route.
+     *
+     * @param user The user that should init the call.
+     * @param other The other user.
+     * @param forwarded Whether the audio should be routed through the forwarding service.
+     * @return The command.
+     */
+    public static PassCommand reconnect(User user, User other, boolean forwarded) {
+        return new PassCommand(Type.RECONNECT, user, other, forwarded, 0, 0, false);
+    }
+
+    /**
+     * Create a command that sends a new volume and direction to the user.
+     *
+     * @param user The user that hears the other user.
+     * @param other The user that is heard.
+     * @param volumePercent The volume percentage [0-100].
+     * @param azimuth The azimuth in degrees.
+     * @param volumeChanged Whether the volume changed (rather than only the azimuth).
+     * @return The command.
+     */
+    public static PassCommand volume(User user, User other, int volumePercent, int azimuth, boolean volumeChanged) {
+        return new PassCommand(Type.VOLUME, user, other, false, volumePercent, azimuth, volumeChanged);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PassCommand that = (PassCommand) o;
+        return this.type == that.type
+            && this.user == that.user
+            && this.other == that.other
+            && this.forwarded == that.forwarded
+            && this.volumePercent == that.volumePercent
+            && this.azimuth == that.azimuth
+            && this.volumeChanged == that.volumeChanged;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.type, this.user, this.other, this.forwarded, this.volumePercent, this.azimuth, this.volumeChanged);
+    }
+
+    @Override
+    public String toString() {
+        return this.type + " " + this.user.getId() + " " + this.other.getId()
+            + (this.type == Type.VOLUME ? " " + this.volumePercent + "% " + this.azimuth + "deg" : "")
+            + (this.forwarded ? " forwarded" : "");
+    }
+}
@@ -0,0 +1,112 @@
+package ca.bkaw.svcraftaudio;
+
+/**
+ * Selects the users with the lowest scores out of a stream of candidates, using
+ * a bounded max-heap so that only the best candidates seen so far are kept.
+ * <p>
+ * The selector is reused for each user, call {@link #reset()} before offering the
+ * candidates for the next user.
+ */
+public class PeerSelector {
+    private final int capacity;
+    private final double[] scores;
+    private final User[] users;
+    private int limit;
+    private int size;
+
+    /**
+     * Create a new peer selector.
+     *
+     * @param capacity The maximum amount of users to select.
+     */
+    public PeerSelector(int capacity) {
+        this.capacity = capacity;
+        this.scores = new double[capacity];
+        this.users = new User[capacity];
+        this.limit = capacity;
+    }
+
+    /**
+     * Remove all selected users.
+     */
+    public void reset() {
+        this.reset(this.capacity);
+    }
+
+    /**
+     * Remove all selected users and select at most a lower amount of users for the
+     * next user.
+     *
+     * @param limit The maximum amount of users to select, at most the capacity.
+     */
+    public void reset(int limit) {
+        for (int i = 0; i < this.size; i++) {
+            this.users[i] = null;
+        }
+        this.size = 0;
+        this.limit = Math.max(0, Math.min(limit, this.capacity));
+    }
+
+    /**
+     * Offer a candidate. It will be selected if there is room left or if its score
+     * is lower than the highest score among the selected users.
+     *
+     * @param user The candidate.
+     * @param score The score of the candidate, lower is better.
+     */
+    public void offer(User user, double score) {
+        if (this.size < this.limit) {
+            int i = this.size++;
+            // Sift up
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (this.scores[parent] >= score) {
+                    break;
+                }
+                this.scores[i] = this.scores[parent];
+                this.users[i] = this.users[parent];
+                i = parent;
+            }
+            this.scores[i] = score;
+            this.users[i] = user;
+        } else if (this.limit > 0 && score < this.scores[0]) {
+            // Replace the root (the worst selected user) and sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= this.size) {
+                    break;
+                }
+                if (child + 1 < this.size && this.scores[child + 1] > this.scores[child]) {
+                    child++;
+                }
+                if (this.scores[child] <= score) {
+                    break;
+                }
+                this.scores[i] = this.scores[child];
+                this.users[i] = this.users[child];
+                i = child;
+            }
+            this.scores[i] = score;
+            this.users[i] = user;
+        }
+    }
+
+    /**
+     * Get the amount of selected users.
+     *
+     * @return The amount of selected users.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Copy the selected users into an array, in no particular order.
+     *
+     * @param result The array to copy to, must fit {@link #size()} users.
+     */
+    public void copyTo(User[] result) {
+        System.arraycopy(this.users, 0, result, 0, this.size);
+    }
+}
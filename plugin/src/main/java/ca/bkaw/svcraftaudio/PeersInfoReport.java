@@ -0,0 +1,139 @@
+package ca.bkaw.svcraftaudio;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the peer info replies from a set of users and sends a summary to the
+ * sender that requested them, instead of one message per user.
+ * <p>
+ * Replies arrive on the websocket thread while the requests are still being sent,
+ * so the methods of this class are synchronized.
+ */
+public class PeersInfoReport {
+    /**
+     * The maximum amount of users listed by name in the summary per category.
+     */
+    private static final int MAX_LISTED = 10;
+
+    private final SVCraftAudio svcraftAudio;
+    private final CommandSender sender;
+    /**
+     * The users that have not replied yet, by user id.
+     */
+    private final Map<String, User> waiting = new LinkedHashMap<>();
+    /**
+     * The users that replied that they are not connected to the expected peers,
+     * with the counts they replied with.
+     */
+    private final Map<User, String> bad = new LinkedHashMap<>();
+    private int goodCount;
+    private boolean finished;
+
+    /**
+     * Create a new report.
+     *
+     * @param svcraftAudio The plugin instance.
+     * @param sender The sender to send the summary to.
+     * @param users The users that will be asked for their peer info.
+     */
+    public PeersInfoReport(SVCraftAudio svcraftAudio, CommandSender sender, List<User> users) {
+        this.svcraftAudio = svcraftAudio;
+        this.sender = sender;
+        for (User user : users) {
+            this.waiting.put(user.getId(), user);
+        }
+    }
+
+    /**
+     * Handle a peer info reply from a user.
+     *
+     * @param userId The id of the user.
+     * @param good Whether the user is connected to the expected peers.
+     * @param counts The peer counts the user replied with.
+     */
+    public synchronized void accept(String userId, boolean good, String counts) {
+        User user = this.waiting.remove(userId);
+        if (user == null || this.finished) {
+            return;
+        }
+        if (good) {
+            this.goodCount++;
+        } else {
+            this.bad.put(user, counts);
+        }
+        if (this.waiting.isEmpty()) {
+            this.finish();
+        }
+    }
+
+    /**
+     * Whether all replies have been received or the report timed out.
+     *
+     * @return Whether the report is finished.
+     */
+    public synchronized boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Finish the report and send the summary, the users that have not replied yet
+     * are listed as not replying.
+     */
+    public synchronized void finish() {
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+
+        int total = this.goodCount + this.bad.size() + this.waiting.size();
+        TextComponent.Builder summary = Component.text()
+            .append(Component.text("Peer info for " + total + " user" + (total == 1 ? "" : "s") + ": "))
+            .append(Component.text(this.goodCount + " good", NamedTextColor.GREEN))
+            .append(Component.text(", "))
+            .append(Component.text(this.bad.size() + " bad", this.bad.isEmpty() ? NamedTextColor.GRAY : NamedTextColor.RED))
+            .append(Component.text(", "))
+            .append(Component.text(this.waiting.size() + " no reply", this.waiting.isEmpty() ? NamedTextColor.GRAY : NamedTextColor.YELLOW));
+
+        List<Component> lines = new ArrayList<>();
+        lines.add(summary.build());
+        int listed = 0;
+        for (Map.Entry<User, String> entry : this.bad.entrySet()) {
+            if (listed++ == MAX_LISTED) {
+                lines.add(Component.text(" ... and " + (this.bad.size() - MAX_LISTED) + " more", NamedTextColor.RED));
+                break;
+            }
+            lines.add(Component.text()
+                .append(Component.text(" bad ", NamedTextColor.RED))
+                .append(this.svcraftAudio.getUserComponent(entry.getKey()))
+                .append(Component.text(" " + entry.getValue(), NamedTextColor.RED))
+                .build());
+        }
+        listed = 0;
+        for (User user : this.waiting.values()) {
+            if (listed++ == MAX_LISTED) {
+                lines.add(Component.text(" ... and " + (this.waiting.size() - MAX_LISTED) + " more", NamedTextColor.YELLOW));
+                break;
+            }
+            lines.add(Component.text()
+                .append(Component.text(" no reply ", NamedTextColor.YELLOW))
+                .append(this.svcraftAudio.getUserComponent(user))
+                .build());
+        }
+
+        // Send on the main thread
+        Bukkit.getScheduler().runTask(this.svcraftAudio, () -> {
+            for (Component line : lines) {
+                this.sender.sendMessage(line);
+            }
+        });
+    }
+}
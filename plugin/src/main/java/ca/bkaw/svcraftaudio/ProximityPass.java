@@ -0,0 +1,559 @@
+package ca.bkaw.svcraftaudio;
+
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * One run of the proximity logic: decides who should hear who, and at what
+ * volume, from the user snapshots.
+ * <p>
+ * The pass does not change any users, it only produces a list of
+ * {@link PassCommand}s that the update task applies afterwards. This makes it
+ * possible to compute the pass in parallel by splitting the spatial grid between
+ * the threads of a {@link ForkJoinPool}. The commands are always in the same order
+ * as when the pass is computed serially.
+ * <p>
+ * The users are grouped by world and each world uses its own
+ * {@link AudioProfile}. Users in different worlds are never compared, and worlds
+ * where proximity audio is disabled or with a single user are skipped, apart from
+ * disconnecting the users they still hear.
+ */
+public class ProximityPass {
+    /**
+     * The amount of percentage points the volume has to change before the new
+     * volume is sent to the client.
+     */
+    private static final int VOLUME_THRESHOLD = 5;
+    /**
+     * The factor the distance squared to already connected users is multiplied
+     * with when selecting the nearest peers. A connected user is kept until a
+     * new user is 20% closer.
+     */
+    private static final double PEER_HYSTERESIS_SQ = 0.8 * 0.8;
+    /**
+     * The amount of users below which a parallel task computes its cells directly
+     * instead of splitting them further.
+     */
+    private static final int PARALLEL_LEAF_USERS = 64;
+
+    private final Config config;
+    private final OcclusionCache occlusion;
+    private final AudioSettings settings;
+    private final List<User> users;
+    private final boolean prewarm;
+    private final boolean limitPeers;
+    private final boolean useForwarding;
+    private final long connectOnSpeechAfter;
+    private final long now;
+    /**
+     * The world group of each user, by pass index. Null for users in worlds where
+     * proximity audio is disabled or that have no other users.
+     */
+    private final WorldGroup[] groups;
+    /**
+     * The cells of the grids of all world groups.
+     */
+    private final List<List<User>> cells = new ArrayList<>();
+    /**
+     * The amount of rings of grid cells to search around each user, by pass
+     * index. 1 for most users, more for fast users when prewarming.
+     */
+    private final int[] searchRings;
+    /**
+     * The selected nearest peers of each user, by pass index.
+     */
+    private final User[][] selectedPeers;
+    /**
+     * Whether each user is in a dense cluster, by pass index.
+     */
+    private final boolean[] inDenseCluster;
+
+    /**
+     * Create a new pass. The snapshots of the users must have been updated.
+     *
+     * @param config The configuration.
+     * @param users The users.
+     * @param occlusion The occlusion cache, or null if occlusion is disabled.
+     * @param settings The audio settings of the users.
+     * @see User#updateSnapshot()
+     */
+    public ProximityPass(Config config, List<User> users, OcclusionCache occlusion, AudioSettings settings) {
+        this(config, users, occlusion, settings, System.currentTimeMillis());
+    }
+
+    /**
+     * Create a new pass at a specific time, used when replaying traces.
+     *
+     * @param config The configuration.
+     * @param users The users.
+     * @param occlusion The occlusion cache, or null if occlusion is disabled.
+     * @param settings The audio settings of the users.
+     * @param now The current time in milliseconds.
+     */
+    ProximityPass(Config config, List<User> users, OcclusionCache occlusion, AudioSettings settings, long now) {
+        this.now = now;
+        this.config = config;
+        this.occlusion = occlusion;
+        this.settings = settings;
+        this.users = new ArrayList<>(users);
+        this.prewarm = config.prewarmSeconds > 0;
+        this.limitPeers = config.maxPeers > 0;
+        this.useForwarding = config.sfuThreshold > 0;
+        this.connectOnSpeechAfter = config.connectOnSpeechAfter * 1000L;
+
+        // Users in different worlds are never compared, so group them by world
+        Map<World, WorldGroup> worlds = new LinkedHashMap<>();
+        for (int i = 0; i < this.users.size(); i++) {
+            User user = this.users.get(i);
+            user.setPassIndex(i);
+            World world = user.getSnapshotWorld();
+            WorldGroup group = worlds.get(world);
+            if (group == null) {
+                group = new WorldGroup(config.getProfile(world));
+                worlds.put(world, group);
+            }
+            group.users.add(user);
+        }
+
+        this.groups = new WorldGroup[this.users.size()];
+        this.searchRings = new int[this.users.size()];
+        for (WorldGroup group : worlds.values()) {
+            if (!group.profile.enabled || group.users.size() < 2) {
+                // Nobody to hear, only disconnects are decided for these users
+                continue;
+            }
+            // All users within disconnectDistance are in the neighbouring cells
+            group.grid = new SpatialGrid(Math.max(group.profile.connectDistance, group.profile.disconnectDistance));
+            for (User user : group.users) {
+                group.grid.add(user);
+                int index = user.getPassIndex();
+                this.groups[index] = group;
+                this.searchRings[index] = 1;
+                if (this.prewarm) {
+                    // Two users are predicted to be within connectDistance only if
+                    // they are within connectDistance plus twice the travel of the
+                    // fastest of them. The fast user searches further, so that one
+                    // fast user doesn't widen the search for everyone.
+                    double travel = 2 * user.getSnapshotSpeed() * config.prewarmSeconds;
+                    int rings = (int) Math.ceil((group.profile.connectDistance + travel) / group.grid.getCellSize());
+                    if (rings > 1) {
+                        this.searchRings[index] = rings;
+                        group.fastUsers.add(user);
+                    }
+                }
+            }
+            this.cells.addAll(group.grid.getCells());
+        }
+
+        this.selectedPeers = new User[this.users.size()][];
+        this.inDenseCluster = new boolean[this.users.size()];
+    }
+
+    /**
+     * Compute the pass.
+     *
+     * @param parallel Whether to compute the pass in parallel on the common
+     *                 {@link ForkJoinPool}.
+     * @return The commands to apply, in a deterministic order.
+     */
+    public List<PassCommand> compute(boolean parallel) {
+        List<List<User>> cells = this.cells;
+        if (!parallel) {
+            List<User> nearby = new ArrayList<>();
+            if (this.limitPeers || this.useForwarding) {
+                PeerSelector selector = new PeerSelector(Math.max(this.config.maxPeers, 0));
+                for (User user : this.users) {
+                    if (this.groups[user.getPassIndex()] != null) {
+                        this.selectPeers(user, selector, nearby);
+                    }
+                }
+            }
+            List<PassCommand> commands = new ArrayList<>();
+            for (User user : this.users) {
+                this.decidePairs(user, nearby, commands);
+            }
+            return commands;
+        }
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        if (this.limitPeers || this.useForwarding) {
+            pool.invoke(new CellTask(cells, 0, cells.size(), true));
+        }
+        List<PassCommand> commands = pool.invoke(new CellTask(cells, 0, cells.size(), false));
+        // The users that are not in any cell only have disconnects to decide
+        List<User> nearby = new ArrayList<>();
+        for (User user : this.users) {
+            if (this.groups[user.getPassIndex()] == null) {
+                this.decidePairs(user, nearby, commands);
+            }
+        }
+        // Put the commands in the same order as the serial pass. Each pair is
+        // decided by the user with the lowest pass index and each user's commands
+        // are already in order, so a stable sort by that user is enough.
+        commands.sort(Comparator.comparingInt(command -> Math.min(command.user.getPassIndex(), command.other.getPassIndex())));
+        return commands;
+    }
+
+    /**
+     * Whether the user was in a dense cluster in this pass.
+     *
+     * @param user The user.
+     * @return Whether the user is in a dense cluster.
+     */
+    public boolean isInDenseCluster(User user) {
+        return this.inDenseCluster[user.getPassIndex()];
+    }
+
+    /**
+     * Get the users in this pass.
+     *
+     * @return The users.
+     */
+    public List<User> getUsers() {
+        return Collections.unmodifiableList(this.users);
+    }
+
+    /**
+     * Select the nearest peers of a user and check whether the user is in a dense
+     * cluster.
+     *
+     * @param user The user.
+     * @param selector The selector to use.
+     * @param nearby A list to reuse for the nearby users.
+     */
+    private void selectPeers(User user, PeerSelector selector, List<User> nearby) {
+        WorldGroup group = this.groups[user.getPassIndex()];
+        // Users that are already heard get a slightly better score so that the
+        // selection doesn't flap when players are at a similar distance. The
+        // direct connections to channel peers count against the limit too.
+        selector.reset(this.config.maxPeers - user.getChannelConnectionCount());
+        nearby.clear();
+        this.getNearby(group, user, nearby);
+        int inConnectDistance = 0;
+        for (User otherUser : nearby) {
+            if (user == otherUser || user.sharesChannelWith(otherUser) || this.settings.isMuted(user, otherUser)) {
+                continue;
+            }
+            double distanceSq = user.getSnapshotDistanceSqTo(otherUser);
+            if (distanceSq < group.connectDistanceSq) {
+                inConnectDistance++;
+            }
+            if (user.canHear(otherUser)) {
+                if (!this.shouldDisconnect(group, user, otherUser, distanceSq)) {
+                    selector.offer(otherUser, distanceSq * PEER_HYSTERESIS_SQ);
+                }
+            } else if (this.getApproachDistanceSq(group, user, otherUser, distanceSq) < group.connectDistanceSq) {
+                selector.offer(otherUser, distanceSq);
+            }
+        }
+        User[] selected = new User[selector.size()];
+        selector.copyTo(selected);
+        this.selectedPeers[user.getPassIndex()] = selected;
+
+        if (this.useForwarding) {
+            // Leave the dense cluster at a lower threshold to avoid switching
+            // between forwarded and direct connections often
+            int threshold = user.isInDenseCluster()
+                ? this.config.sfuThreshold * 3 / 4
+                : this.config.sfuThreshold;
+            this.inDenseCluster[user.getPassIndex()] = inConnectDistance >= threshold;
+        }
+    }
+
+    /**
+     * Decide the changes for all pairs of the user and another user where the user
+     * has the lowest pass index, so that each pair is only decided once.
+     * <p>
+     * Users in other world groups are only disconnected, without comparing their
+     * positions. Users that share a channel are never connected or disconnected
+     * here, only their volumes and directions are decided.
+     *
+     * @param user The user.
+     * @param nearby A list to reuse for the nearby users.
+     * @param commands The list to add the commands to.
+     */
+    private void decidePairs(User user, List<User> nearby, List<PassCommand> commands) {
+        int index = user.getPassIndex();
+        WorldGroup group = this.groups[index];
+
+        // Users that are far away are not in the grid neighbourhood
+        for (User hearingUser : user.getHearingUsers()) {
+            if (hearingUser.getPassIndex() <= index) {
+                continue;
+            }
+            boolean sameGroup = group != null && this.groups[hearingUser.getPassIndex()] == group;
+            if (user.sharesChannelWith(hearingUser)) {
+                // Connected by the channel manager, but the direction still changes
+                if (sameGroup) {
+                    double distanceSq = user.getSnapshotDistanceSqTo(hearingUser);
+                    this.decideVolume(group, user, hearingUser, distanceSq, false, commands);
+                    this.decideVolume(group, hearingUser, user, distanceSq, false, commands);
+                }
+            } else if (!sameGroup || this.shouldDisconnect(group, user, hearingUser, user.getSnapshotDistanceSqTo(hearingUser))) {
+                commands.add(PassCommand.disconnect(user, hearingUser));
+            }
+        }
+        if (group == null) {
+            return;
+        }
+
+        nearby.clear();
+        this.getNearby(group, user, nearby);
+        for (User otherUser : nearby) {
+            if (otherUser.getPassIndex() <= index || user.sharesChannelWith(otherUser)) {
+                // Users in the same channel are connected by the channel manager,
+                // their volumes were decided above
+                continue;
+            }
+
+            double distanceSq = user.getSnapshotDistanceSqTo(otherUser);
+            // Users that muted each other are never connected
+            boolean selected = !this.settings.isMuted(user, otherUser)
+                && (!this.limitPeers || (this.hasSelected(user, otherUser) && this.hasSelected(otherUser, user)));
+            boolean forwarded = this.useForwarding && this.inDenseCluster[index] && this.inDenseCluster[otherUser.getPassIndex()];
+            boolean hearing;
+            boolean connecting = false;
+            if (user.canHear(otherUser)) {
+                if (this.shouldDisconnect(group, user, otherUser, distanceSq)) {
+                    // Already disconnected above
+                    continue;
+                }
+                if (!selected) {
+                    commands.add(PassCommand.disconnect(user, otherUser));
+                    hearing = false;
+                } else if (user.isForwarded(otherUser) != forwarded) {
+                    // Reconnect using the other route
+                    commands.add(PassCommand.reconnect(user, otherUser, forwarded));
+                    hearing = true;
+                    connecting = true;
+                } else {
+                    hearing = true;
+                }
+            } else if (selected && this.getApproachDistanceSq(group, user, otherUser, distanceSq) < group.connectDistanceSq
+                && !this.isLongSilent(user, otherUser)) {
+                // Start connecting early when the users are predicted to be in
+                // range soon, since connecting takes a while
+                commands.add(PassCommand.connect(user, otherUser, forwarded));
+                hearing = true;
+                connecting = true;
+            } else {
+                hearing = false;
+            }
+
+            if (hearing) {
+                this.decideVolume(group, user, otherUser, distanceSq, connecting, commands);
+                this.decideVolume(group, otherUser, user, distanceSq, connecting, commands);
+            }
+        }
+    }
+
+    /**
+     * Decide whether a new volume or direction should be sent to the user.
+     *
+     * @param group The world group of the users.
+     * @param user The user that hears the other user.
+     * @param otherUser The user that is heard.
+     * @param distanceSq The distance squared between the users.
+     * @param connecting Whether the users are connecting in this pass, meaning
+     *                   nothing has been sent yet.
+     * @param commands The list to add the commands to.
+     */
+    private void decideVolume(WorldGroup group, User user, User otherUser, double distanceSq, boolean connecting, List<PassCommand> commands) {
+        if (!otherUser.isSpeaking()) {
+            // The latest volume is sent when the other user starts speaking
+            return;
+        }
+        int currentVolume;
+        if (user.sharesChannelWith(otherUser)) {
+            // Like User#computeVolumePercentFor
+            currentVolume = 100;
+        } else {
+            currentVolume = group.profile.volumeCurve.getVolumePercent(distanceSq);
+            if (this.occlusion != null) {
+                currentVolume = this.occlusion.attenuate(currentVolume, user, otherUser);
+            }
+        }
+        currentVolume = this.settings.apply(user, otherUser, currentVolume);
+        int lastVolume = connecting ? 0 : user.getLastSentVolumePercentFor(otherUser);
+        int diff = Math.abs(currentVolume - lastVolume);
+        boolean volumeChanged = diff > VOLUME_THRESHOLD || (currentVolume == 100 && lastVolume != 100) || (currentVolume == 0 && lastVolume != 0);
+
+        int azimuth = connecting ? 0 : user.getLastSentAzimuthFor(otherUser);
+        boolean azimuthChanged = false;
+        if (this.config.spatialAudio) {
+            double currentAzimuth = user.getSnapshotAzimuthTo(otherUser);
+            double azimuthDiff = Math.abs(User.normalizeAngle(currentAzimuth - azimuth));
+            if (azimuthDiff > this.config.azimuthThreshold) {
+                azimuth = (int) Math.round(currentAzimuth);
+                azimuthChanged = true;
+            }
+        }
+
+        if (volumeChanged || azimuthChanged) {
+            int volume = volumeChanged ? currentVolume : lastVolume;
+            commands.add(PassCommand.volume(user, otherUser, volume, azimuth, volumeChanged));
+        }
+    }
+
+    /**
+     * Add the users that might need to be compared with the user to a list.
+     * <p>
+     * These are the users in the rings of cells the user searches, and the fast
+     * users whose wider search reaches the user, so that every pair is found from
+     * both sides.
+     *
+     * @param group The world group of the user.
+     * @param user The user.
+     * @param nearby The list to add the users to.
+     */
+    private void getNearby(WorldGroup group, User user, List<User> nearby) {
+        int rings = this.searchRings[user.getPassIndex()];
+        group.grid.getNearby(user, rings, nearby);
+        for (User fastUser : group.fastUsers) {
+            int fastRings = this.searchRings[fastUser.getPassIndex()];
+            if (fastRings > rings) {
+                int distance = group.grid.getCellDistance(user, fastUser);
+                if (distance > rings && distance <= fastRings) {
+                    nearby.add(fastUser);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether both users have been silent for so long that they should only be
+     * connected once one of them starts speaking.
+     */
+    private boolean isLongSilent(User user, User otherUser) {
+        return this.connectOnSpeechAfter > 0
+            && user.getSilentMillis(this.now) > this.connectOnSpeechAfter
+            && otherUser.getSilentMillis(this.now) > this.connectOnSpeechAfter;
+    }
+
+    /**
+     * Whether the user selected the other user as one of its nearest peers.
+     */
+    private boolean hasSelected(User user, User otherUser) {
+        User[] selected = this.selectedPeers[user.getPassIndex()];
+        for (User selectedUser : selected) {
+            if (selectedUser == otherUser) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the distance squared used to decide whether two users that can't hear
+     * each other should connect. When prewarming, this is the closest predicted
+     * distance.
+     */
+    private double getApproachDistanceSq(WorldGroup group, User user, User otherUser, double distanceSq) {
+        if (this.prewarm && distanceSq >= group.connectDistanceSq) {
+            return user.getPredictedDistanceSqTo(otherUser, this.config.prewarmSeconds);
+        }
+        return distanceSq;
+    }
+
+    /**
+     * Check whether two users that can hear each other are far enough apart to be
+     * disconnected.
+     * <p>
+     * Users that were connected early because they were predicted to come within
+     * range are kept as long as they are still predicted to come within range.
+     *
+     * @param group The world group of the users.
+     * @param user The user.
+     * @param otherUser The other user.
+     * @param distanceSq The distance squared between the users.
+     * @return Whether the users should be disconnected.
+     */
+    private boolean shouldDisconnect(WorldGroup group, User user, User otherUser, double distanceSq) {
+        if (distanceSq <= group.disconnectDistanceSq) {
+            return false;
+        }
+        if (this.prewarm) {
+            double approachDistanceSq = user.getPredictedDistanceSqTo(otherUser, this.config.prewarmSeconds);
+            return approachDistanceSq >= group.connectDistanceSq;
+        }
+        return true;
+    }
+
+    /**
+     * The users of a world in this pass, and the profile of the world.
+     */
+    private static class WorldGroup {
+        private final AudioProfile profile;
+        private final int connectDistanceSq;
+        private final int disconnectDistanceSq;
+        private final List<User> users = new ArrayList<>();
+        /** The users that search more than one ring of cells. */
+        private final List<User> fastUsers = new ArrayList<>();
+        private SpatialGrid grid;
+
+        private WorldGroup(AudioProfile profile) {
+            this.profile = profile;
+            this.connectDistanceSq = profile.connectDistance * profile.connectDistance;
+            this.disconnectDistanceSq = profile.disconnectDistance * profile.disconnectDistance;
+        }
+    }
+
+    /**
+     * A task that computes a range of cells, splitting it between threads until the
+     * ranges are small enough.
+     */
+    private class CellTask extends RecursiveTask<List<PassCommand>> {
+        private final List<List<User>> cells;
+        private final int start;
+        private final int end;
+        private final boolean selectPeers;
+
+        CellTask(List<List<User>> cells, int start, int end, boolean selectPeers) {
+            this.cells = cells;
+            this.start = start;
+            this.end = end;
+            this.selectPeers = selectPeers;
+        }
+
+        @Override
+        protected List<PassCommand> compute() {
+            int userCount = 0;
+            for (int i = this.start; i < this.end; i++) {
+                userCount += this.cells.get(i).size();
+            }
+            if (userCount > PARALLEL_LEAF_USERS && this.end - this.start > 1) {
+                int middle = (this.start + this.end) >>> 1;
+                CellTask left = new CellTask(this.cells, this.start, middle, this.selectPeers);
+                CellTask right = new CellTask(this.cells, middle, this.end, this.selectPeers);
+                left.fork();
+                List<PassCommand> rightCommands = right.compute();
+                List<PassCommand> leftCommands = left.join();
+                leftCommands.addAll(rightCommands);
+                return leftCommands;
+            }
+
+            // A thread-local command buffer for these cells
+            List<PassCommand> commands = new ArrayList<>();
+            List<User> nearby = new ArrayList<>();
+            PeerSelector selector = this.selectPeers ? new PeerSelector(Math.max(ProximityPass.this.config.maxPeers, 0)) : null;
+            for (int i = this.start; i < this.end; i++) {
+                for (User user : this.cells.get(i)) {
+                    if (this.selectPeers) {
+                        ProximityPass.this.selectPeers(user, selector, nearby);
+                    } else {
+                        ProximityPass.this.decidePairs(user, nearby, commands);
+                    }
+                }
+            }
+            return commands;
+        }
+    }
+}
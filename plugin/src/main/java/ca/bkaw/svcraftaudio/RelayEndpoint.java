@@ -0,0 +1,199 @@
+package ca.bkaw.svcraftaudio;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One of the configured svcraft-audio websites (relays) the plugin can connect
+ * to, see {@link Config#urls}.
+ * <p>
+ * The latency of the relay the plugin is connected to is measured by the
+ * {@link RelayMonitor} with pings on the connection. The latency of the other
+ * relays is measured by {@link #probe() probing} them: opening a short-lived
+ * websocket and timing a few ping frames, so that both are measured the same
+ * way.
+ */
+public class RelayEndpoint {
+    /**
+     * The amount of pings sent when probing. The fastest answer is used, the
+     * first one tends to be slower.
+     */
+    private static final int PROBE_PINGS = 3;
+    /**
+     * The time in milliseconds to wait for the probe to connect.
+     */
+    private static final long PROBE_CONNECT_TIMEOUT = 5000;
+    /**
+     * The time in milliseconds to wait for each pong when probing.
+     */
+    private static final long PROBE_PONG_TIMEOUT = 2000;
+
+    private final URI url;
+    private final URI websocketUrl;
+    private volatile long latency = -1;
+    private volatile long checkedAt;
+    private volatile String error;
+
+    public RelayEndpoint(URI url) {
+        this.url = url;
+        this.websocketUrl = URI.create(url.toString().replaceFirst("^http", "ws"));
+    }
+
+    /**
+     * Get the url of the svcraft-audio website, the link players open.
+     *
+     * @return The url.
+     */
+    public URI getUrl() {
+        return this.url;
+    }
+
+    /**
+     * Get the url to the svcraft-audio websocket. This is the url of the website,
+     * but with http(s) changed to ws(s).
+     *
+     * @return The url.
+     */
+    public URI getWebsocketUrl() {
+        return this.websocketUrl;
+    }
+
+    /**
+     * Measure the latency to the relay with ping frames on a short-lived
+     * websocket. Blocks for up to a few seconds, so this should not be called on
+     * the main thread.
+     */
+    public void probe() {
+        Probe probe = new Probe(this.websocketUrl);
+        try {
+            if (!probe.connectBlocking(PROBE_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                this.setFailed(probe.closeReason != null ? probe.closeReason : "could not connect");
+                return;
+            }
+            long best = -1;
+            for (int i = 0; i < PROBE_PINGS; i++) {
+                long sentAt = System.nanoTime();
+                probe.sendPing();
+                if (!probe.pongs.tryAcquire(PROBE_PONG_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    this.setFailed("ping timed out");
+                    return;
+                }
+                long roundTrip = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+                if (best < 0 || roundTrip < best) {
+                    best = roundTrip;
+                }
+            }
+            this.setLatency(best);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.setFailed("interrupted");
+        } catch (RuntimeException e) {
+            // For example when the connection closed while pinging
+            this.setFailed(e.getMessage());
+        } finally {
+            probe.close();
+        }
+    }
+
+    /**
+     * Set the latency measured on the connection to this relay.
+     *
+     * @param latency The latency in milliseconds.
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+        this.error = null;
+        this.checkedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Mark the relay as unreachable.
+     *
+     * @param error The reason.
+     */
+    public void setFailed(String error) {
+        this.latency = -1;
+        this.error = error == null ? "unknown error" : error;
+        this.checkedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the last measured latency.
+     *
+     * @return The latency in milliseconds, or -1 if it is unknown or the relay is
+     * unreachable.
+     */
+    public long getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * Get whether the relay answered the last time it was checked.
+     *
+     * @return Whether the relay is reachable.
+     */
+    public boolean isReachable() {
+        return this.latency >= 0;
+    }
+
+    /**
+     * Get the time the latency was last measured.
+     *
+     * @return The time in milliseconds since the epoch, or 0.
+     */
+    public long getCheckedAt() {
+        return this.checkedAt;
+    }
+
+    /**
+     * Get the reason the relay was unreachable the last time it was checked.
+     *
+     * @return The error, or null.
+     */
+    public String getError() {
+        return this.error;
+    }
+
+    /**
+     * A websocket that only answers pings, it never identifies itself so the relay
+     * ignores it.
+     */
+    private static class Probe extends WebSocketClient {
+        private final Semaphore pongs = new Semaphore(0);
+        private volatile String closeReason;
+
+        private Probe(URI serverUri) {
+            super(serverUri);
+            this.setConnectionLostTimeout(0);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshakedata) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+        }
+
+        @Override
+        public void onWebsocketPong(WebSocket conn, Framedata f) {
+            this.pongs.release();
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            this.closeReason = reason == null || reason.isEmpty() ? "closed with code " + code : reason;
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            this.closeReason = ex.getMessage();
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package ca.bkaw.svcraftaudio;
+
+import org.bukkit.Bukkit;
+import org.java_websocket.framing.CloseFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monitors the health of the svcraft-audio website (the relay) on a single
+ * long-lived background thread.
+ * <p>
+ * The monitor sends the heartbeat to the http server, retrying with backoff when
+ * it fails, and pings the websocket connection regularly so that a relay that
+ * stopped responding is noticed within {@link #PONG_TIMEOUT} instead of at the
+ * next heartbeat. When the websocket is lost a heartbeat is sent right away to
+ * check whether the http server is reachable.
+ * <p>
+ * The http connection is kept alive between heartbeats by always reading the
+ * response to the end and never disconnecting, so that the JDK can reuse it.
+ * <p>
+ * When several relays are configured the monitor also picks the relay to use.
+ * Every {@link Config#relayCheckInterval} seconds the other relays are
+ * {@link RelayEndpoint#probe() probed}, and the plugin switches to one that is
+ * clearly faster. When the connection is lost the plugin fails over to the
+ * fastest relay that answers, keeping the users, and only disconnects them when
+ * no relay can be reached.
+ */
+public class RelayMonitor {
+    /**
+     * The time in milliseconds between heartbeats.
+     */
+    private static final long HEARTBEAT_INTERVAL = 5 * 60 * 1000;
+    /**
+     * The time in milliseconds before the first retry of a failed heartbeat. The
+     * delay is doubled for each failure, up to the heartbeat interval.
+     */
+    private static final long MIN_RETRY_DELAY = 5000;
+    /**
+     * The time in milliseconds between pings on the websocket.
+     */
+    private static final long PING_INTERVAL = 15000;
+    /**
+     * The time in milliseconds without a pong after which the websocket is
+     * considered lost.
+     */
+    private static final long PONG_TIMEOUT = 2 * PING_INTERVAL;
+    /**
+     * The connect and read timeout of the heartbeat in milliseconds.
+     */
+    private static final int HTTP_TIMEOUT = 10000;
+    /**
+     * The time in milliseconds after starting before the other relays are first
+     * probed, so that the latency of the connection has been measured.
+     */
+    private static final long FIRST_RELAY_CHECK_DELAY = 2 * PING_INTERVAL + 5000;
+    /**
+     * The minimum amount of milliseconds another relay must be faster to switch to
+     * it. The relay must also be a quarter faster, so that the plugin doesn't
+     * switch back and forth between relays with about the same latency.
+     */
+    private static final long MIN_SWITCH_GAIN = 20;
+
+    private final SVCraftAudio svcraftAudio;
+    private final List<RelayEndpoint> endpoints;
+    /**
+     * Whether the connection was lost and the plugin is connecting to another
+     * relay.
+     */
+    private volatile boolean failingOver;
+    /**
+     * The relays that failed during the current failover. Only accessed from the
+     * monitor thread.
+     */
+    private final Set<RelayEndpoint> failedEndpoints = new HashSet<>();
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> nextHeartbeat;
+
+    private volatile long pingSentAt;
+    private volatile long pongAt;
+    private volatile long latency = -1;
+    private volatile long lastHeartbeatAt;
+    private volatile int lastHeartbeatStatus;
+    private volatile String lastHeartbeatError;
+    private volatile int failedHeartbeats;
+    private volatile int heartbeatCount;
+
+    public RelayMonitor(SVCraftAudio svcraftAudio) {
+        this.svcraftAudio = svcraftAudio;
+        List<RelayEndpoint> endpoints = new ArrayList<>();
+        for (URI url : svcraftAudio.getConfiguration().urls) {
+            endpoints.add(new RelayEndpoint(url));
+        }
+        this.endpoints = Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * Start monitoring.
+     */
+    public void start() {
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "svcraft-audio relay monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::checkWebsocket, PING_INTERVAL, PING_INTERVAL, TimeUnit.MILLISECONDS);
+        long relayCheckInterval = this.svcraftAudio.getConfiguration().relayCheckInterval * 1000L;
+        if (this.endpoints.size() > 1 && relayCheckInterval > 0) {
+            this.executor.scheduleWithFixedDelay(this::checkRelays, FIRST_RELAY_CHECK_DELAY, relayCheckInterval, TimeUnit.MILLISECONDS);
+        }
+        this.scheduleHeartbeat(0);
+    }
+
+    /**
+     * Stop monitoring.
+     */
+    public void stop() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Send a heartbeat as soon as possible, for example when the websocket
+     * connection was lost.
+     */
+    public void heartbeatNow() {
+        ScheduledExecutorService executor = this.executor;
+        if (executor != null) {
+            try {
+                executor.execute(() -> this.scheduleHeartbeat(0));
+            } catch (RejectedExecutionException e) {
+                // Stopped meanwhile
+            }
+        }
+    }
+
+    /**
+     * Called by the connection when a pong is received.
+     *
+     * @param connection The connection.
+     */
+    public void onPong(Connection connection) {
+        if (connection != this.svcraftAudio.getConnectionRaw()) {
+            return;
+        }
+        this.pongAt = System.currentTimeMillis();
+        this.latency = this.pongAt - this.pingSentAt;
+        connection.getEndpoint().setLatency(this.latency);
+    }
+
+    /**
+     * Called by the connection when it was opened, after it replaced the previous
+     * connection.
+     *
+     * @param connection The connection.
+     */
+    public void onOpen(Connection connection) {
+        this.pingSentAt = 0;
+        if (this.failingOver) {
+            this.failingOver = false;
+            this.svcraftAudio.getLogger().info("Failed over to the svcraft-audio relay " + connection.getEndpoint().getUrl());
+            this.runOnMonitor(this.failedEndpoints::clear);
+            // The users connected to the lost relay have lost their connection,
+            // those that don't answer are removed
+            Bukkit.getScheduler().runTask(this.svcraftAudio, () -> {
+                UserManager userManager = this.svcraftAudio.getUserManager();
+                userManager.sendHeartbeats(new ArrayList<>(userManager.getUsers()));
+            });
+        }
+    }
+
+    /**
+     * Called by the connection when it was closed unexpectedly. If there are other
+     * relays, the plugin fails over to the fastest one that answers.
+     *
+     * @param connection The connection that was lost.
+     * @param reason The reason it was closed.
+     * @return Whether the plugin is failing over, in which case the users are kept.
+     */
+    public boolean onConnectionLost(Connection connection, String reason) {
+        if (this.endpoints.size() < 2) {
+            return false;
+        }
+        connection.getEndpoint().setFailed(reason == null || reason.isEmpty() ? "connection lost" : reason);
+        this.failingOver = true;
+        if (!this.runOnMonitor(() -> this.failover(connection.getEndpoint()))) {
+            // Stopped
+            this.failingOver = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called by a connection to another relay that could not be opened.
+     *
+     * @param connection The connection.
+     * @param reason The reason it was closed.
+     */
+    public void onSwitchFailed(Connection connection, String reason) {
+        RelayEndpoint endpoint = connection.getEndpoint();
+        endpoint.setFailed(reason == null || reason.isEmpty() ? "could not connect" : reason);
+        if (this.failingOver) {
+            this.runOnMonitor(() -> this.failover(endpoint));
+        } else {
+            this.svcraftAudio.getLogger().warning("Could not switch to the svcraft-audio relay "
+                + endpoint.getUrl() + ", staying on the current relay.");
+        }
+    }
+
+    /**
+     * Get whether the connection was lost and the plugin is connecting to another
+     * relay. Nothing can be sent to the users meanwhile.
+     *
+     * @return Whether the plugin is failing over.
+     */
+    public boolean isFailingOver() {
+        return this.failingOver;
+    }
+
+    /**
+     * Run a task on the monitor thread.
+     *
+     * @param task The task.
+     * @return Whether the task was scheduled, false if the monitor is stopped.
+     */
+    private boolean runOnMonitor(Runnable task) {
+        ScheduledExecutorService executor = this.executor;
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Probe the relays and get the fastest one that answers.
+     *
+     * @param skip The relays to not probe.
+     * @return The fastest relay, or null if none answered.
+     */
+    private RelayEndpoint probeFastest(Set<RelayEndpoint> skip) {
+        RelayEndpoint fastest = null;
+        for (RelayEndpoint endpoint : this.endpoints) {
+            if (skip.contains(endpoint)) {
+                continue;
+            }
+            endpoint.probe();
+            if (endpoint.isReachable() && (fastest == null || endpoint.getLatency() < fastest.getLatency())) {
+                fastest = endpoint;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * Connect to the fastest relay that has not failed yet, or disconnect all
+     * users if none of them answer.
+     *
+     * @param lost The relay that failed.
+     */
+    private void failover(RelayEndpoint lost) {
+        this.failedEndpoints.add(lost);
+        RelayEndpoint endpoint = this.probeFastest(this.failedEndpoints);
+        if (endpoint == null) {
+            this.svcraftAudio.getLogger().severe("None of the svcraft-audio relays could be reached, disconnecting all users.");
+            this.failedEndpoints.clear();
+            Bukkit.getScheduler().runTask(this.svcraftAudio, () -> {
+                UserManager userManager = this.svcraftAudio.getUserManager();
+                for (User user : new ArrayList<>(userManager.getUsers())) {
+                    userManager.removeUser(user.getId());
+                }
+                this.failingOver = false;
+            });
+            this.scheduleHeartbeat(0);
+            return;
+        }
+        this.svcraftAudio.getLogger().warning("Lost the connection to the svcraft-audio relay " + lost.getUrl()
+            + " (" + lost.getError() + "), failing over to " + endpoint.getUrl()
+            + " (" + endpoint.getLatency() + " ms).");
+        this.svcraftAudio.switchRelay(endpoint);
+    }
+
+    /**
+     * Probe the other relays, and switch to the fastest one if it is clearly
+     * faster than the current relay.
+     */
+    private void checkRelays() {
+        Connection connection = this.svcraftAudio.getConnectionRaw();
+        if (this.failingOver || !connection.isOpen()) {
+            return;
+        }
+        RelayEndpoint current = connection.getEndpoint();
+        RelayEndpoint fastest = this.probeFastest(Collections.singleton(current));
+        long latency = current.getLatency();
+        if (fastest == null || latency < 0) {
+            return;
+        }
+        long gain = latency - fastest.getLatency();
+        if (gain >= MIN_SWITCH_GAIN && gain * 4 >= latency) {
+            this.svcraftAudio.getLogger().info("Switching to the svcraft-audio relay " + fastest.getUrl()
+                + " (" + fastest.getLatency() + " ms instead of " + latency + " ms).");
+            this.svcraftAudio.switchRelay(fastest);
+        }
+    }
+
+    /**
+     * Get the configured relays.
+     *
+     * @return The relays.
+     */
+    public List<RelayEndpoint> getEndpoints() {
+        return this.endpoints;
+    }
+
+    private void scheduleHeartbeat(long delay) {
+        if (this.nextHeartbeat != null) {
+            this.nextHeartbeat.cancel(false);
+        }
+        this.nextHeartbeat = this.executor.schedule(this::heartbeat, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a heartbeat to the http server and schedule the next one.
+     */
+    private void heartbeat() {
+        Config config = this.svcraftAudio.getConfiguration();
+        if (config.debug) {
+            this.svcraftAudio.getLogger().info("Sending heartbeat");
+        }
+        String urlString = this.svcraftAudio.getConnectionRaw().getEndpoint().getUrl().toString();
+        if (!urlString.endsWith("/")) {
+            urlString += '/';
+        }
+        urlString += "heartbeat";
+
+        this.lastHeartbeatAt = System.currentTimeMillis();
+        this.heartbeatCount++;
+        String error;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(HTTP_TIMEOUT);
+            connection.setReadTimeout(HTTP_TIMEOUT);
+            int responseCode = connection.getResponseCode();
+            this.lastHeartbeatStatus = responseCode;
+            drain(responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream());
+            error = responseCode == 204 ? null : "got status code: " + responseCode;
+        } catch (IOException e) {
+            this.lastHeartbeatStatus = 0;
+            error = e.getMessage();
+        }
+        this.lastHeartbeatError = error;
+
+        if (error == null) {
+            if (this.failedHeartbeats > 0) {
+                this.svcraftAudio.getLogger().info("The svcraft-audio website is reachable again.");
+            }
+            this.failedHeartbeats = 0;
+            this.scheduleHeartbeat(HEARTBEAT_INTERVAL);
+        } else {
+            int failures = ++this.failedHeartbeats;
+            long delay = Math.min(MIN_RETRY_DELAY << Math.min(failures - 1, 16), HEARTBEAT_INTERVAL);
+            if (failures == 1) {
+                this.svcraftAudio.getLogger().severe("Heartbeat failed, " + error);
+            } else if (config.debug) {
+                this.svcraftAudio.getLogger().info("Heartbeat failed " + failures + " times, " + error);
+            }
+            this.scheduleHeartbeat(delay);
+        }
+    }
+
+    /**
+     * Read a response to the end so that the connection can be reused.
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[512];
+            while (stream.read(buffer) != -1) {
+                // Discard
+            }
+        }
+    }
+
+    /**
+     * Ping the websocket, and close it if the last ping was not answered in time.
+     */
+    private void checkWebsocket() {
+        Connection connection = this.svcraftAudio.getConnectionRaw();
+        if (!connection.isOpen()) {
+            this.pingSentAt = 0;
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (this.pingSentAt != 0 && this.pongAt < this.pingSentAt) {
+            if (now - this.pingSentAt > PONG_TIMEOUT) {
+                this.svcraftAudio.getLogger().warning("The svcraft-audio websocket did not respond for "
+                    + (now - this.pingSentAt) / 1000 + " seconds, closing the connection.");
+                this.pingSentAt = 0;
+                connection.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Ping timed out");
+                this.scheduleHeartbeat(0);
+            }
+            return;
+        }
+        this.pingSentAt = now;
+        connection.sendPing();
+    }
+
+    /**
+     * Get the latency of the last answered websocket ping.
+     *
+     * @return The latency in milliseconds, or -1 if no ping has been answered.
+     */
+    public long getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * Get the time the last heartbeat was sent.
+     *
+     * @return The time in milliseconds since the epoch, or 0.
+     */
+    public long getLastHeartbeatAt() {
+        return this.lastHeartbeatAt;
+    }
+
+    /**
+     * Get the status code of the last heartbeat.
+     *
+     * @return The status code, or 0 if the request failed.
+     */
+    public int getLastHeartbeatStatus() {
+        return this.lastHeartbeatStatus;
+    }
+
+    /**
+     * Get the error of the last heartbeat.
+     *
+     * @return The error message, or null if the last heartbeat succeeded.
+     */
+    public String getLastHeartbeatError() {
+        return this.lastHeartbeatError;
+    }
+
+    /**
+     * Get the amount of heartbeats that have failed in a row.
+     *
+     * @return The amount of failures.
+     */
+    public int getFailedHeartbeats() {
+        return this.failedHeartbeats;
+    }
+
+    /**
+     * Get the amount of heartbeats that have been sent.
+     *
+     * @return The amount of heartbeats.
+     */
+    public int getHeartbeatCount() {
+        return this.heartbeatCount;
+    }
+}
@@ -8,34 +8,62 @@ import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.net.URI;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
-public final class SVCraftAudio extends JavaPlugin {
-    public static final String SERVER_ID = IdUtil.randomServerId();
-    private Config config;
+public final class SVCraftAudio extends JavaPlugin implements UserContext {
+    private String serverId;
+    private volatile Config config;
     private UserManager userManager;
-    private Connection connection;
+    private UserRequestQueue userRequestQueue;
+    private ChannelManager channelManager;
+    private OcclusionCache occlusionCache;
+    private AudioSettings audioSettings;
+    private volatile Connection connection;
+    private RelayMonitor relayMonitor;
+    private ConnectIdPool connectIdPool;
     private UpdateTask updateTask;
     private AudioCommand command;
+    /**
+     * The trace that is being recorded, or null.
+     */
+    private TraceRecorder traceRecorder;
+    /**
+     * The restored session that should be resumed when the connection opens.
+     */
+    private volatile SessionSnapshot restoredSession;
 
     @Override
     public void onEnable() {
         this.loadConfig();
 
         this.userManager = new UserManager(this);
+        this.userRequestQueue = new UserRequestQueue(this);
+        this.audioSettings = new AudioSettings();
+        this.channelManager = new ChannelManager(this.userManager, this.audioSettings);
+        this.occlusionCache = new OcclusionCache();
 
-        this.getServer().getPluginManager().registerEvents(new EventListener(this.userManager), this);
+        this.getServer().getPluginManager().registerEvents(new EventListener(this.userManager, this.occlusionCache, this.audioSettings), this);
         this.registerCommand();
 
-        this.connection = new Connection(this, this.userManager, this.getWebsocketUrl());
+        this.serverId = IdUtil.randomServerId();
+        if (this.config.sessionSnapshot) {
+            this.restoreSession();
+        }
+
+        this.connectIdPool = new ConnectIdPool(this);
+        this.relayMonitor = new RelayMonitor(this);
+        this.connection = new Connection(this, this.userManager, this.relayMonitor.getEndpoints().get(0));
+        this.relayMonitor.start();
 
         this.updateTask = new UpdateTask(this, this.userManager);
         this.updateTask.runTaskTimer(this, this.config.updateTaskInterval, this.config.updateTaskInterval);
@@ -43,9 +71,75 @@ public final class SVCraftAudio extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        this.relayMonitor.stop();
+        this.stopTrace();
+        if (this.config.sessionSnapshot && !Bukkit.isStopping()) {
+            // Reloading, the players stay online
+            try {
+                SessionSnapshot.save(this.getSessionFile(), this.serverId, this.userManager.getUsers());
+            } catch (IOException e) {
+                this.getLogger().severe("Failed to save the session snapshot.");
+                e.printStackTrace();
+            }
+        } else if (this.config.sessionHandoff && this.connection.isOpen()) {
+            // The players will be sent to another server, hand off their users
+            // so that they stay connected
+            for (User user : this.userManager.getUsers()) {
+                this.connection.sendHandOff(user.getId(), user.getName());
+            }
+        }
         this.connection.close();
     }
 
+    /**
+     * Get the file the session snapshot is saved to.
+     *
+     * @return The file.
+     */
+    private File getSessionFile() {
+        return new File(this.getDataFolder(), "session.bin");
+    }
+
+    /**
+     * Restore the session snapshot that was saved when the plugin was disabled, if
+     * there is one.
+     */
+    private void restoreSession() {
+        try {
+            SessionSnapshot snapshot = SessionSnapshot.load(this.getSessionFile());
+            if (snapshot == null) {
+                return;
+            }
+            this.serverId = snapshot.getServerId();
+            snapshot.restore(this, this.userManager);
+            this.restoredSession = snapshot;
+            this.getLogger().info("Restored " + snapshot.getRestoredUserCount() + " users from the session snapshot.");
+        } catch (IOException e) {
+            this.getLogger().warning("Failed to restore the session snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the restored session that should be resumed, and forget it.
+     *
+     * @return The restored session, or null.
+     */
+    public SessionSnapshot takeRestoredSession() {
+        SessionSnapshot session = this.restoredSession;
+        this.restoredSession = null;
+        return session;
+    }
+
+    /**
+     * Get the id of this server, that the svcraft-audio websocket server knows this
+     * server by.
+     *
+     * @return The server id.
+     */
+    public String getServerId() {
+        return this.serverId;
+    }
+
     /**
      * Register the /audio command.
      */
@@ -80,17 +174,6 @@ public final class SVCraftAudio extends JavaPlugin {
         }
     }
 
-    /**
-     * Get the url to the svcraft-audio websocket. This will be the url the user has
-     * configured, but with http(s) changed to ws(s).
-     *
-     * @return The url.
-     */
-    private URI getWebsocketUrl() {
-        String href = this.config.url.toString().replaceFirst("^http", "ws");
-        return URI.create(href);
-    }
-
     /**
      * Load the configuration.
      */
@@ -120,20 +203,26 @@ public final class SVCraftAudio extends JavaPlugin {
 
     /**
      * Reload the configuration and ensure all services are using the new configuration.
+     * <p>
+     * The new configuration replaces the old one at once, the update task keeps
+     * running and applies changes to the distances gradually, see
+     * {@link UpdateTask#reconfigure(Config, Config)}.
      */
     public void reloadConfiguration() {
         this.getLogger().info("Reloading the configuration.");
 
+        Config previous = this.config;
         this.reloadConfig();
         this.loadConfig();
 
-        // Restart timer with new interval
-        this.getLogger().info("Restarting update task with interval " + this.config.updateTaskInterval);
-        if (this.updateTask != null && !this.updateTask.isCancelled()) {
+        if (this.config.updateTaskInterval != previous.updateTaskInterval) {
+            // Restart timer with new interval
+            this.getLogger().info("Restarting update task with interval " + this.config.updateTaskInterval);
             this.updateTask.cancel();
+            this.updateTask = new UpdateTask(this.updateTask);
+            this.updateTask.runTaskTimer(this, this.config.updateTaskInterval, this.config.updateTaskInterval);
         }
-        this.updateTask = new UpdateTask(this, this.userManager);
-        this.updateTask.runTaskTimer(this, this.config.updateTaskInterval, this.config.updateTaskInterval);
+        this.updateTask.reconfigure(previous, this.config);
     }
 
     /**
@@ -141,6 +230,7 @@ public final class SVCraftAudio extends JavaPlugin {
      *
      * @return The config.
      */
+    @Override
     public Config getConfiguration() {
         return config;
     }
@@ -154,6 +244,107 @@ public final class SVCraftAudio extends JavaPlugin {
         return this.userManager;
     }
 
+    /**
+     * Get the channel manager.
+     *
+     * @return The channel manager.
+     */
+    public ChannelManager getChannelManager() {
+        return this.channelManager;
+    }
+
+    /**
+     * Get the occlusion cache.
+     *
+     * @return The occlusion cache.
+     */
+    @Override
+    public OcclusionCache getOcclusionCache() {
+        return this.occlusionCache;
+    }
+
+    /**
+     * Get the audio settings of the players.
+     *
+     * @return The audio settings.
+     */
+    @Override
+    public AudioSettings getAudioSettings() {
+        return this.audioSettings;
+    }
+
+    /**
+     * Get where the messages to users are sent, the connection.
+     *
+     * @return The connection.
+     * @see #getConnection()
+     */
+    @Override
+    public MessageSink getMessageSink() {
+        return this.getConnection();
+    }
+
+    /**
+     * Start recording a trace of the movement of the users to the traces folder.
+     *
+     * @return The recorder.
+     * @throws IOException If the trace file could not be created.
+     */
+    public TraceRecorder startTrace() throws IOException {
+        this.stopTrace();
+        String name = "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".bin";
+        File file = new File(new File(this.getDataFolder(), "traces"), name);
+        this.traceRecorder = new TraceRecorder(file, this.getConfig().saveToString());
+        return this.traceRecorder;
+    }
+
+    /**
+     * Stop recording the trace, if one is being recorded.
+     *
+     * @return The recorder that was stopped, or null.
+     */
+    public TraceRecorder stopTrace() {
+        TraceRecorder recorder = this.traceRecorder;
+        if (recorder == null) {
+            return null;
+        }
+        this.traceRecorder = null;
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            this.getLogger().severe("Failed to close the trace " + recorder.getFile().getName());
+            e.printStackTrace();
+        }
+        return recorder;
+    }
+
+    /**
+     * Get the trace that is being recorded.
+     *
+     * @return The recorder, or null.
+     */
+    public TraceRecorder getTraceRecorder() {
+        return this.traceRecorder;
+    }
+
+    /**
+     * Get the pool of connect ids registered ahead of time.
+     *
+     * @return The connect id pool.
+     */
+    public ConnectIdPool getConnectIdPool() {
+        return this.connectIdPool;
+    }
+
+    /**
+     * Get the queue for resync and peer info requests.
+     *
+     * @return The user request queue.
+     */
+    public UserRequestQueue getUserRequestQueue() {
+        return this.userRequestQueue;
+    }
+
     /**
      * Get the connection, and if it is not connected, reconnect and wait for the
      * connection to establish before completing the future.
@@ -162,7 +353,10 @@ public final class SVCraftAudio extends JavaPlugin {
      */
     public CompletableFuture<Connection> getConnectionAsync() {
         CompletableFuture<Connection> future = new CompletableFuture<>();
-        if (this.connection.isClosed()) {
+        if (this.relayMonitor.isFailingOver()) {
+            // Completed by the connection to the next relay
+            this.connection.addFuture(future);
+        } else if (this.connection.isClosed()) {
             this.connection.addFuture(future);
             this.connection.reconnect();
         } else {
@@ -194,6 +388,40 @@ public final class SVCraftAudio extends JavaPlugin {
         return this.connection;
     }
 
+    /**
+     * Start connecting to another relay. The current connection is used until the
+     * new one has opened, see {@link #setConnection(Connection)}.
+     *
+     * @param endpoint The relay.
+     */
+    public void switchRelay(RelayEndpoint endpoint) {
+        Connection next = new Connection(this, this.userManager, endpoint);
+        for (CompletableFuture<Connection> future : this.connection.takeFutures()) {
+            next.addFuture(future);
+        }
+    }
+
+    /**
+     * Replace the connection with a connection that has opened.
+     *
+     * @param connection The connection.
+     * @return The previous connection.
+     */
+    public Connection setConnection(Connection connection) {
+        Connection previous = this.connection;
+        this.connection = connection;
+        return previous;
+    }
+
+    /**
+     * Get the relay monitor.
+     *
+     * @return The relay monitor.
+     */
+    public RelayMonitor getRelayMonitor() {
+        return this.relayMonitor;
+    }
+
     /**
      * Get the raw connection, the connection might have disconnected.
      *
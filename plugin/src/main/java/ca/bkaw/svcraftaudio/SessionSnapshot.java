@@ -0,0 +1,245 @@
+package ca.bkaw.svcraftaudio;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A snapshot of the connected users that is saved to disk when the plugin is
+ * disabled and restored when it is enabled again, so that a reload doesn't
+ * disconnect everybody.
+ * <p>
+ * The clients stay connected to the svcraft-audio websocket server while the
+ * plugin is reloading. By connecting with the same server id again the plugin
+ * can continue where it left off.
+ * <p>
+ * The file is a compact binary file:
+ * <pre>
+ * int magic, byte version, long savedAt, utf serverId,
+ * int userCount, userCount * (utf userId, long uuidMost, long uuidLeast),
+ * int edgeCount, edgeCount * (int user, int other, boolean forwarded, byte volumePercent, short azimuth)
+ * </pre>
+ * where every edge is a user that hears another user, by index.
+ */
+public class SessionSnapshot {
+    private static final int MAGIC = 0x53564153; // SVAS
+    private static final byte VERSION = 1;
+    /**
+     * The maximum age of a snapshot to restore in milliseconds. Clients that have
+     * waited longer than this have most likely given up.
+     */
+    private static final long MAX_AGE = 5 * 60 * 1000;
+
+    private final String serverId;
+    private final List<String> userIds;
+    private final List<UUID> playerUuids;
+    private final int[] edges;
+    private final boolean[] forwarded;
+    private final byte[] volumePercents;
+    private final short[] azimuths;
+
+    /**
+     * The users whose players are no longer online, these are told that they left
+     * the game when the connection opens.
+     */
+    private final List<String> orphanedUserIds = new ArrayList<>();
+    /**
+     * The restored users.
+     */
+    private final List<User> restoredUsers = new ArrayList<>();
+
+    private SessionSnapshot(String serverId, List<String> userIds, List<UUID> playerUuids, int[] edges, boolean[] forwarded, byte[] volumePercents, short[] azimuths) {
+        this.serverId = serverId;
+        this.userIds = userIds;
+        this.playerUuids = playerUuids;
+        this.edges = edges;
+        this.forwarded = forwarded;
+        this.volumePercents = volumePercents;
+        this.azimuths = azimuths;
+    }
+
+    /**
+     * Save the users to a file.
+     *
+     * @param file The file.
+     * @param serverId The server id.
+     * @param users The users.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void save(File file, String serverId, List<User> users) throws IOException {
+        Object2IntMap<User> indices = new Object2IntOpenHashMap<>();
+        indices.defaultReturnValue(-1);
+        for (int i = 0; i < users.size(); i++) {
+            indices.put(users.get(i), i);
+        }
+
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(serverId);
+
+            out.writeInt(users.size());
+            for (User user : users) {
+                UUID uuid = user.getPlayer().getUniqueId();
+                out.writeUTF(user.getId());
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+            }
+
+            int edgeCount = 0;
+            for (User user : users) {
+                for (User other : user.getHearingUsers()) {
+                    if (indices.getInt(other) >= 0) {
+                        edgeCount++;
+                    }
+                }
+            }
+            out.writeInt(edgeCount);
+            for (User user : users) {
+                for (User other : user.getHearingUsers()) {
+                    int otherIndex = indices.getInt(other);
+                    if (otherIndex < 0) {
+                        continue;
+                    }
+                    out.writeInt(indices.getInt(user));
+                    out.writeInt(otherIndex);
+                    out.writeBoolean(user.isForwarded(other));
+                    out.writeByte(user.getLastSentVolumePercentFor(other));
+                    out.writeShort(user.getLastSentAzimuthFor(other));
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a snapshot from a file and delete the file.
+     *
+     * @param file The file.
+     * @return The snapshot, or null if there is no snapshot or it is too old.
+     * @throws IOException If an I/O error occurs or the file is invalid.
+     */
+    public static SessionSnapshot load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a session snapshot, or an unsupported version");
+            }
+            long savedAt = in.readLong();
+            if (System.currentTimeMillis() - savedAt > MAX_AGE) {
+                return null;
+            }
+            String serverId = in.readUTF();
+
+            int userCount = in.readInt();
+            List<String> userIds = new ArrayList<>(userCount);
+            List<UUID> playerUuids = new ArrayList<>(userCount);
+            for (int i = 0; i < userCount; i++) {
+                userIds.add(in.readUTF());
+                playerUuids.add(new UUID(in.readLong(), in.readLong()));
+            }
+
+            int edgeCount = in.readInt();
+            int[] edges = new int[edgeCount * 2];
+            boolean[] forwarded = new boolean[edgeCount];
+            byte[] volumePercents = new byte[edgeCount];
+            short[] azimuths = new short[edgeCount];
+            for (int i = 0; i < edgeCount; i++) {
+                edges[i * 2] = in.readInt();
+                edges[i * 2 + 1] = in.readInt();
+                forwarded[i] = in.readBoolean();
+                volumePercents[i] = in.readByte();
+                azimuths[i] = in.readShort();
+                if (edges[i * 2] >= userCount || edges[i * 2 + 1] >= userCount) {
+                    throw new IOException("Invalid user index in session snapshot");
+                }
+            }
+            return new SessionSnapshot(serverId, userIds, playerUuids, edges, forwarded, volumePercents, azimuths);
+        } finally {
+            // A snapshot is only restored once
+            file.delete();
+        }
+    }
+
+    /**
+     * Get the server id the plugin had when the snapshot was saved.
+     *
+     * @return The server id.
+     */
+    public String getServerId() {
+        return this.serverId;
+    }
+
+    /**
+     * Restore the users whose players are still online, and who they were
+     * hearing. No messages are sent since the clients are still connected to the
+     * same users.
+     *
+     * @param svcraftAudio The plugin instance.
+     * @param userManager The user manager to add the users to.
+     */
+    public void restore(SVCraftAudio svcraftAudio, UserManager userManager) {
+        User[] users = new User[this.userIds.size()];
+        for (int i = 0; i < users.length; i++) {
+            Player player = Bukkit.getPlayer(this.playerUuids.get(i));
+            if (player == null) {
+                this.orphanedUserIds.add(this.userIds.get(i));
+                continue;
+            }
+            users[i] = new User(svcraftAudio, this.userIds.get(i), player);
+            userManager.getUsers().add(users[i]);
+            svcraftAudio.getAudioSettings().addUser(users[i]);
+            this.restoredUsers.add(users[i]);
+        }
+
+        for (int i = 0; i < this.forwarded.length; i++) {
+            User user = users[this.edges[i * 2]];
+            User other = users[this.edges[i * 2 + 1]];
+            if (user != null && other != null) {
+                user.restoreHearing(other, this.forwarded[i], this.volumePercents[i], this.azimuths[i]);
+            }
+        }
+    }
+
+    /**
+     * Continue the restored session when the connection has opened. The clients
+     * of players that left while the plugin was reloading are told that they left
+     * the game, and the restored users are sent a heartbeat so that users whose
+     * client disconnected meanwhile are removed. Must be called on the main
+     * thread.
+     *
+     * @param svcraftAudio The plugin instance.
+     * @param connection The connection.
+     */
+    public void resume(SVCraftAudio svcraftAudio, Connection connection) {
+        for (String userId : this.orphanedUserIds) {
+            connection.send("To " + userId + ": You left the game, goodbye");
+        }
+        svcraftAudio.getUserManager().sendHeartbeats(this.restoredUsers);
+    }
+
+    /**
+     * Get the amount of restored users.
+     *
+     * @return The amount of users.
+     */
+    public int getRestoredUserCount() {
+        return this.restoredUsers.size();
+    }
+}
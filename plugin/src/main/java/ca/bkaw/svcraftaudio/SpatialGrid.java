@@ -0,0 +1,137 @@
+package ca.bkaw.svcraftaudio;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial index of users, built from the user snapshots.
+ * <p>
+ * Users are put in square columns of cells. When the cell size is at least the
+ * largest distance that is searched for, all users within that distance of a
+ * user are in the 3x3 cells around the cell of the user. Larger distances are
+ * searched by looking at more rings of cells around the user.
+ */
+public class SpatialGrid {
+    /**
+     * The size of each cell in blocks.
+     */
+    private final double cellSize;
+    /**
+     * The cells in each world, the key is the packed cell coordinates.
+     */
+    private final Map<World, Long2ObjectMap<List<User>>> worlds = new HashMap<>();
+
+    /**
+     * Create a new, empty spatial grid.
+     *
+     * @param cellSize The size of each cell in blocks.
+     */
+    public SpatialGrid(double cellSize) {
+        this.cellSize = Math.max(cellSize, 1);
+    }
+
+    /**
+     * Add a user to the grid using its last snapshot.
+     *
+     * @param user The user to add.
+     * @see User#updateSnapshot()
+     */
+    public void add(User user) {
+        Long2ObjectMap<List<User>> cells = this.worlds.computeIfAbsent(user.getSnapshotWorld(), k -> new Long2ObjectOpenHashMap<>());
+        long key = key(this.cell(user.getSnapshotX()), this.cell(user.getSnapshotZ()));
+        List<User> cell = cells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<>(4);
+            cells.put(key, cell);
+        }
+        cell.add(user);
+    }
+
+    /**
+     * Add the users that might be within the cell size of the user to a list.
+     * This includes the user itself.
+     *
+     * @param user The user to get nearby users for.
+     * @param result The list to add the users to.
+     */
+    public void getNearby(User user, List<User> result) {
+        this.getNearby(user, 1, result);
+    }
+
+    /**
+     * Add the users in the cells within a number of rings around the cell of the
+     * user to a list. These are all users that might be within rings times the
+     * cell size of the user. This includes the user itself.
+     *
+     * @param user The user to get nearby users for.
+     * @param rings The amount of rings of cells around the cell of the user.
+     * @param result The list to add the users to.
+     */
+    public void getNearby(User user, int rings, List<User> result) {
+        Long2ObjectMap<List<User>> cells = this.worlds.get(user.getSnapshotWorld());
+        if (cells == null) {
+            return;
+        }
+        int cellX = this.cell(user.getSnapshotX());
+        int cellZ = this.cell(user.getSnapshotZ());
+        for (int x = cellX - rings; x <= cellX + rings; x++) {
+            for (int z = cellZ - rings; z <= cellZ + rings; z++) {
+                List<User> cell = cells.get(key(x, z));
+                if (cell != null) {
+                    result.addAll(cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the amount of rings of cells between the cells of two users, meaning
+     * the smallest amount of rings to search around one of the users to find the
+     * other one.
+     *
+     * @param user The user.
+     * @param other The other user.
+     * @return The distance in cells.
+     */
+    public int getCellDistance(User user, User other) {
+        int dx = Math.abs(this.cell(user.getSnapshotX()) - this.cell(other.getSnapshotX()));
+        int dz = Math.abs(this.cell(user.getSnapshotZ()) - this.cell(other.getSnapshotZ()));
+        return Math.max(dx, dz);
+    }
+
+    /**
+     * Get the size of each cell.
+     *
+     * @return The size in blocks.
+     */
+    public double getCellSize() {
+        return this.cellSize;
+    }
+
+    /**
+     * Get all non-empty cells of the grid, in all worlds.
+     *
+     * @return A list of the cells.
+     */
+    public List<List<User>> getCells() {
+        List<List<User>> result = new ArrayList<>();
+        for (Long2ObjectMap<List<User>> cells : this.worlds.values()) {
+            result.addAll(cells.values());
+        }
+        return result;
+    }
+
+    private int cell(double coordinate) {
+        return (int) Math.floor(coordinate / this.cellSize);
+    }
+
+    private static long key(int cellX, int cellZ) {
+        return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+    }
+}
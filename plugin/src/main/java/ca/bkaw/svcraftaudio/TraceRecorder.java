@@ -0,0 +1,163 @@
+package ca.bkaw.svcraftaudio;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.bukkit.World;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records the movement of the connected users to a compact binary trace file, so
+ * that busy moments can be replayed offline with the {@link TraceReplayer}.
+ * <p>
+ * The update task records a tick every time it runs. Joins, leaves and voice
+ * activity changes are found by comparing the users with the previous tick. The
+ * file starts with a header followed by records:
+ * <pre>
+ * int magic, byte version, utf config (the configuration as yaml)
+ * WORLD:    byte 0, int world, utf name
+ * JOIN:     byte 1, int user
+ * LEAVE:    byte 2, int user
+ * SPEAKING: byte 3, int user, boolean speaking
+ * TICK:     byte 4, long nanos, int count, count * (int user, int world, double x, double y, double z, float yaw)
+ * </pre>
+ * Users are numbered in the order they are first seen, players are not named in
+ * the trace.
+ */
+public class TraceRecorder implements Closeable {
+    static final int MAGIC = 0x53564154; // SVAT
+    static final byte VERSION = 1;
+    static final byte WORLD = 0;
+    static final byte JOIN = 1;
+    static final byte LEAVE = 2;
+    static final byte SPEAKING = 3;
+    static final byte TICK = 4;
+
+    private final File file;
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    /**
+     * The trace ids of the users in the previous tick.
+     */
+    private final Object2IntMap<User> userIds = new Object2IntOpenHashMap<>();
+    private final Object2IntMap<World> worldIds = new Object2IntOpenHashMap<>();
+    /**
+     * The users that were silent in the previous tick.
+     */
+    private final Set<User> silentUsers = new HashSet<>();
+    private int nextUserId;
+    private int tickCount;
+
+    /**
+     * Start recording a trace.
+     *
+     * @param file The file to write the trace to.
+     * @param config The configuration as yaml, so that the trace can be replayed
+     *               with the same configuration.
+     * @throws IOException If an I/O error occurs.
+     */
+    public TraceRecorder(File file, String config) throws IOException {
+        this.file = file;
+        file.getParentFile().mkdirs();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeUTF(config);
+        this.userIds.defaultReturnValue(-1);
+        this.worldIds.defaultReturnValue(-1);
+    }
+
+    /**
+     * Record a tick. The snapshots of the users must have been updated.
+     *
+     * @param users The connected users.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void recordTick(List<User> users) throws IOException {
+        Set<User> current = new HashSet<>(users);
+        Iterator<Object2IntMap.Entry<User>> iterator = this.userIds.object2IntEntrySet().iterator();
+        while (iterator.hasNext()) {
+            Object2IntMap.Entry<User> entry = iterator.next();
+            if (!current.contains(entry.getKey())) {
+                this.out.writeByte(LEAVE);
+                this.out.writeInt(entry.getIntValue());
+                this.silentUsers.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        for (User user : users) {
+            int id = this.userIds.getInt(user);
+            if (id < 0) {
+                id = this.nextUserId++;
+                this.userIds.put(user, id);
+                this.out.writeByte(JOIN);
+                this.out.writeInt(id);
+            }
+            boolean silent = !user.isSpeaking();
+            if (silent != this.silentUsers.contains(user)) {
+                if (silent) {
+                    this.silentUsers.add(user);
+                } else {
+                    this.silentUsers.remove(user);
+                }
+                this.out.writeByte(SPEAKING);
+                this.out.writeInt(id);
+                this.out.writeBoolean(!silent);
+            }
+            World world = user.getSnapshotWorld();
+            if (!this.worldIds.containsKey(world)) {
+                int worldId = this.worldIds.size();
+                this.worldIds.put(world, worldId);
+                this.out.writeByte(WORLD);
+                this.out.writeInt(worldId);
+                this.out.writeUTF(world.getName());
+            }
+        }
+
+        this.out.writeByte(TICK);
+        this.out.writeLong(System.nanoTime() - this.startNanos);
+        this.out.writeInt(users.size());
+        for (User user : users) {
+            this.out.writeInt(this.userIds.getInt(user));
+            this.out.writeInt(this.worldIds.getInt(user.getSnapshotWorld()));
+            this.out.writeDouble(user.getSnapshotX());
+            this.out.writeDouble(user.getSnapshotY());
+            this.out.writeDouble(user.getSnapshotZ());
+            this.out.writeFloat(user.getSnapshotYaw());
+        }
+        this.tickCount++;
+    }
+
+    /**
+     * Get the file the trace is written to.
+     *
+     * @return The file.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Get the amount of ticks that have been recorded.
+     *
+     * @return The amount of ticks.
+     */
+    public int getTickCount() {
+        return this.tickCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+}
@@ -0,0 +1,362 @@
+package ca.bkaw.svcraftaudio;
+
+import org.bukkit.World;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Replays a trace recorded by the {@link TraceRecorder} through the proximity
+ * logic without a Minecraft server, and reports how many messages would have been
+ * sent, how long the passes took and how large the graph of who hears who was.
+ * <p>
+ * The users are headless and the results of each pass are applied to them with
+ * the same {@link PassApplier} the update task uses, but the messages go to a
+ * sink that only counts them. Replaying
+ * the same trace with the same configuration always gives the same counts, so
+ * traces from production can be used to compare changes offline. Occlusion and
+ * audio settings are not part of the trace.
+ * <p>
+ * Run it with the plugin jar and the Paper API on the classpath:
+ * <pre>
+ * java -cp svcraft-audio.jar:paper-api.jar ca.bkaw.svcraftaudio.TraceReplayer trace.bin [config.yml] [--parallel]
+ * </pre>
+ * Without a config file, the configuration the trace was recorded with is used.
+ */
+public final class TraceReplayer implements UserContext {
+    private final Config config;
+    private final boolean parallel;
+    private final AudioSettings settings = new AudioSettings();
+    private final OcclusionCache occlusion = new OcclusionCache();
+    private final MessageCounter messages = new MessageCounter();
+    private final Logger logger = Logger.getLogger(TraceReplayer.class.getName());
+    private final List<User> usersById = new ArrayList<>();
+    private final List<World> worldsById = new ArrayList<>();
+    /**
+     * The users that are connected, in the order they joined like in the user
+     * manager.
+     */
+    private final List<User> users = new ArrayList<>();
+    /**
+     * Created at the first tick, so that the volumes are resent relative to the
+     * time of the trace.
+     */
+    private PassApplier applier;
+    private long now;
+
+    private int ticks;
+    private int maxUsers;
+    private long userTicks;
+    private long resendMessages;
+    private long maxMessagesPerTick;
+    private long[] passNanos = new long[1024];
+    private long totalEdges;
+    private int maxEdges;
+    private int maxDegree;
+
+    private TraceReplayer(Config config, boolean parallel) {
+        this.config = config;
+        this.parallel = parallel;
+    }
+
+    public static void main(String[] args) throws IOException, InvalidConfigurationException {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceReplayer <trace file> [config.yml] [--parallel]");
+            System.exit(1);
+        }
+        File traceFile = null;
+        File configFile = null;
+        boolean parallel = false;
+        for (String arg : args) {
+            if (arg.equals("--parallel")) {
+                parallel = true;
+            } else if (traceFile == null) {
+                traceFile = new File(arg);
+            } else {
+                configFile = new File(arg);
+            }
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile), 65536))) {
+            if (in.readInt() != TraceRecorder.MAGIC || in.readByte() != TraceRecorder.VERSION) {
+                throw new IOException("Not a trace, or an unsupported version");
+            }
+            YamlConfiguration yaml = new YamlConfiguration();
+            String recordedConfig = in.readUTF();
+            if (configFile == null) {
+                yaml.loadFromString(recordedConfig);
+            } else {
+                yaml.load(configFile);
+            }
+
+            TraceReplayer replayer = new TraceReplayer(new Config(yaml), parallel);
+            replayer.replay(in);
+            replayer.printReport();
+        }
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        while (true) {
+            int type = in.read();
+            if (type == -1) {
+                return;
+            }
+            try {
+                switch (type) {
+                    case TraceRecorder.WORLD:
+                        int worldId = in.readInt();
+                        String name = in.readUTF();
+                        while (this.worldsById.size() <= worldId) {
+                            this.worldsById.add(null);
+                        }
+                        this.worldsById.set(worldId, createWorld(name));
+                        break;
+                    case TraceRecorder.JOIN:
+                        this.join(in.readInt());
+                        break;
+                    case TraceRecorder.LEAVE:
+                        this.leave(this.usersById.get(in.readInt()));
+                        break;
+                    case TraceRecorder.SPEAKING:
+                        this.setSpeaking(this.usersById.get(in.readInt()), in.readBoolean());
+                        break;
+                    case TraceRecorder.TICK:
+                        this.tick(in);
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+            } catch (EOFException e) {
+                // The server stopped while recording
+                System.err.println("The trace ends with an incomplete record.");
+                return;
+            }
+        }
+    }
+
+    private void join(int id) {
+        User user = new User(this, "user-" + id);
+        while (this.usersById.size() <= id) {
+            this.usersById.add(null);
+        }
+        this.usersById.set(id, user);
+        this.users.add(user);
+    }
+
+    private void leave(User user) {
+        // Like UserManager#removeUser
+        this.users.remove(user);
+        this.settings.removeUser(user);
+        for (User other : this.users) {
+            if (other.canHear(user)) {
+                other.stopHearing(user);
+            }
+        }
+    }
+
+    private void setSpeaking(User speaker, boolean speaking) {
+        speaker.setSpeaking(speaking, this.now);
+    }
+
+    private void tick(DataInputStream in) throws IOException {
+        long nanos = in.readLong();
+        this.now = nanos / 1_000_000;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            User user = this.usersById.get(in.readInt());
+            World world = this.worldsById.get(in.readInt());
+            user.updateSnapshot(world, in.readDouble(), in.readDouble(), in.readDouble(), in.readFloat(), nanos);
+        }
+        if (this.users.isEmpty()) {
+            return;
+        }
+        if (this.applier == null) {
+            this.applier = new PassApplier(this, this.now);
+        }
+        long messagesBefore = this.messages.total() + this.resendMessages;
+
+        long start = System.nanoTime();
+        ProximityPass pass = new ProximityPass(this.config, this.users, null, this.settings, this.now);
+        List<PassCommand> commands = pass.compute(this.parallel);
+        long passTime = System.nanoTime() - start;
+
+        // Like UpdateTask#run, traces have no reloads to apply gradually
+        this.applier.apply(pass, commands, this.config, Integer.MAX_VALUE);
+        this.applier.updateBitrates(this.users, this.config);
+        long volumeMessages = this.messages.volume;
+        if (this.applier.resendVolumes(this.users, this.now)) {
+            // Counted separately from the volume changes
+            this.resendMessages += this.messages.volume - volumeMessages;
+            this.messages.volume = volumeMessages;
+        }
+
+        if (this.ticks == this.passNanos.length) {
+            this.passNanos = Arrays.copyOf(this.passNanos, this.ticks * 2);
+        }
+        this.passNanos[this.ticks++] = passTime;
+        this.maxUsers = Math.max(this.maxUsers, this.users.size());
+        this.userTicks += this.users.size();
+        long messages = this.messages.total() + this.resendMessages - messagesBefore;
+        this.maxMessagesPerTick = Math.max(this.maxMessagesPerTick, messages);
+
+        int degrees = 0;
+        for (User user : this.users) {
+            int degree = user.getHearingUsers().size();
+            degrees += degree;
+            this.maxDegree = Math.max(this.maxDegree, degree);
+        }
+        this.totalEdges += degrees / 2;
+        this.maxEdges = Math.max(this.maxEdges, degrees / 2);
+    }
+
+    private void printReport() {
+        if (this.ticks == 0) {
+            System.out.println("The trace has no ticks with users.");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(this.passNanos, this.ticks);
+        Arrays.sort(sorted);
+        long totalPassNanos = 0;
+        for (long time : sorted) {
+            totalPassNanos += time;
+        }
+        long messages = this.messages.total() + this.resendMessages;
+
+        System.out.println("Ticks: " + this.ticks + (this.parallel ? " (parallel)" : ""));
+        System.out.printf("Users: %.1f average, %d max%n", (double) this.userTicks / this.ticks, this.maxUsers);
+        System.out.printf("Messages: %d total, %.1f per tick average, %d max%n",
+            messages, (double) messages / this.ticks, this.maxMessagesPerTick);
+        System.out.println("  connect: " + this.messages.connect);
+        System.out.println("  disconnect: " + this.messages.disconnect);
+        System.out.println("  volume: " + this.messages.volume);
+        System.out.println("  resend: " + this.resendMessages);
+        System.out.println("  bitrate: " + this.messages.bitrate);
+        if (this.messages.other > 0) {
+            System.out.println("  other: " + this.messages.other);
+        }
+        System.out.printf("Pass time: %.3f ms average, %.3f ms p50, %.3f ms p99, %.3f ms max%n",
+            totalPassNanos / 1e6 / this.ticks,
+            sorted[this.ticks / 2] / 1e6,
+            sorted[Math.min(this.ticks - 1, (int) (this.ticks * 0.99))] / 1e6,
+            sorted[this.ticks - 1] / 1e6);
+        System.out.printf("Hearing pairs: %.1f average, %d max, max %d per user%n",
+            (double) this.totalEdges / this.ticks, this.maxEdges, this.maxDegree);
+    }
+
+    @Override
+    public Config getConfiguration() {
+        return this.config;
+    }
+
+    @Override
+    public AudioSettings getAudioSettings() {
+        return this.settings;
+    }
+
+    @Override
+    public OcclusionCache getOcclusionCache() {
+        // Occlusion is not part of the trace, the cache stays empty
+        return this.occlusion;
+    }
+
+    @Override
+    public MessageSink getMessageSink() {
+        return this.messages;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return this.logger;
+    }
+
+    /**
+     * Counts the messages the users send by type.
+     */
+    private static final class MessageCounter implements MessageSink {
+        private static final byte[] CONNECT = "Connect to ".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] WAIT = "Wait for ".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] DISCONNECT = "Disconnect ".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] VOLUME = "Volume ".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] BITRATE = "Bitrate ".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] FORWARDER_BITRATE = "Forwarder bitrate: ".getBytes(StandardCharsets.UTF_8);
+
+        private long connect;
+        private long disconnect;
+        private long volume;
+        private long bitrate;
+        private long other;
+
+        @Override
+        public void send(ByteBuffer message) {
+            // Skip "To <user id>: "
+            int start = message.position();
+            while (start < message.limit() - 1 && !(message.get(start) == ':' && message.get(start + 1) == ' ')) {
+                start++;
+            }
+            start += 2;
+            if (startsWith(message, start, CONNECT) || startsWith(message, start, WAIT)) {
+                this.connect++;
+            } else if (startsWith(message, start, DISCONNECT)) {
+                this.disconnect++;
+            } else if (startsWith(message, start, VOLUME)) {
+                this.volume++;
+            } else if (startsWith(message, start, BITRATE) || startsWith(message, start, FORWARDER_BITRATE)) {
+                this.bitrate++;
+            } else {
+                this.other++;
+            }
+        }
+
+        private long total() {
+            return this.connect + this.disconnect + this.volume + this.bitrate + this.other;
+        }
+
+        private static boolean startsWith(ByteBuffer message, int start, byte[] prefix) {
+            if (message.limit() - start < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (message.get(start + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Create a world that only has a name. Worlds are compared by identity.
+     *
+     * @param name The name of the world.
+     * @return The world.
+     */
+    static World createWorld(String name) {
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "World{" + name + "}";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -1,13 +1,11 @@
 package ca.bkaw.svcraftaudio;
 
-import org.bukkit.Bukkit;
 import org.bukkit.scheduler.BukkitRunnable;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
 
 /**
  * A task that runs to update who hears who, and at what volume.
@@ -22,122 +20,135 @@ public class UpdateTask extends BukkitRunnable {
      */
     private final UserManager userManager;
     /**
-     * The last time the volumes were all resent.
+     * Applies the results of the passes.
      */
-    private long lastVolumeResend = System.currentTimeMillis();
+    private final PassApplier applier;
     /**
      * The last time a heartbeat request was sent.
      */
     private long lastHeartbeat = System.currentTimeMillis();
+    /**
+     * The reloaded configuration that is being applied gradually, or null.
+     */
+    private ConfigTransition transition;
 
     public UpdateTask(SVCraftAudio svcraftAudio, UserManager userManager) {
+        this(svcraftAudio, userManager, new PassApplier(svcraftAudio, System.currentTimeMillis()));
+    }
+
+    private UpdateTask(SVCraftAudio svcraftAudio, UserManager userManager, PassApplier applier) {
         this.svcraftAudio = svcraftAudio;
         this.userManager = userManager;
+        this.applier = applier;
+    }
+
+    /**
+     * Create a task that continues where another task left off, used when the
+     * interval changes.
+     *
+     * @param previous The task that was cancelled.
+     */
+    public UpdateTask(UpdateTask previous) {
+        this(previous.svcraftAudio, previous.userManager, previous.applier);
+        this.lastHeartbeat = previous.lastHeartbeat;
+        this.transition = previous.transition;
+    }
+
+    /**
+     * Start using a reloaded configuration. Changes to the distances are applied
+     * gradually, see {@link ConfigTransition}.
+     *
+     * @param previous The configuration before the reload.
+     * @param config The reloaded configuration.
+     */
+    public void reconfigure(Config previous, Config config) {
+        Config from = this.transition != null ? this.transition.getConfig() : previous;
+        if (this.userManager.getUserCount() > 0 && ConfigTransition.isNeeded(from, config)) {
+            this.transition = new ConfigTransition(from, config);
+            this.svcraftAudio.getLogger().info("The distances will be changed gradually.");
+        } else {
+            this.transition = null;
+        }
     }
 
     @Override
     public void run() {
+        this.svcraftAudio.getConnectIdPool().maintain();
+
+        if (this.svcraftAudio.getRelayMonitor().isFailingOver()) {
+            // Nothing can be sent until connected to another relay
+            return;
+        }
+
         if (this.userManager.getUserCount() == 0) {
+            this.recordTrace(Collections.emptyList());
+            // Nobody to reconnect
+            this.transition = null;
             return;
         }
 
-        Config config = this.svcraftAudio.getConfiguration();
-        int connectDistanceSq = config.connectDistance * config.connectDistance;
-        int disconnectDistanceSq = config.disconnectDistance * config.disconnectDistance;
+        Config config = this.transition != null ? this.transition.getConfig() : this.svcraftAudio.getConfiguration();
 
         List<User> users = this.userManager.getUsers();
         for (User user : users) {
-            for (User otherUser : users) {
-                if (user == otherUser) {
-                    continue;
-                }
-
-                double distanceSq = user.getDistanceSqTo(otherUser);
-                if (user.canHear(otherUser)) {
-                    if (distanceSq > disconnectDistanceSq) {
-                        user.stopHearing(otherUser);
-                    }
-                } else {
-                    if (distanceSq < connectDistanceSq) {
-                        user.startHearing(otherUser, true);
-                    }
-                }
-
-                if (user.canHear(otherUser)) {
-                    double currentVolume = user.getVolume(Math.sqrt(distanceSq));
-                    double lastVolume = user.getLastSentVolumeFor(otherUser);
-                    double diff = Math.abs(currentVolume - lastVolume);
-                    if (diff > 0.05 || (currentVolume == 1 && lastVolume != 1) || (currentVolume == 0 && lastVolume != 0)) {
-                        double roundedVolume = Math.round(currentVolume * 100.0) / 100.0;
-                        user.setVolumeFor(otherUser, roundedVolume);
-                        if (config.debug) {
-                            user.getPlayer().sendMessage("You will now hear " + otherUser.getName() + " at volume " + roundedVolume);
-                        }
-                    }
-                }
-            }
+            user.updateSnapshot();
         }
+        this.recordTrace(users);
 
-        if (System.currentTimeMillis() - this.lastVolumeResend > 10000) {
-            // Every 10 seconds
-            if (config.debug) {
-                this.svcraftAudio.getLogger().info("Resending volumes");
-            }
-            for (User user : users) {
-                for (User hearingUser : user.getHearingUsers()) {
-                    double volume = user.getVolumeFor(hearingUser);
-                    user.setVolumeFor(hearingUser, volume);
-                }
+        OcclusionCache occlusion = this.svcraftAudio.getOcclusionCache();
+        if (config.occlusion) {
+            occlusion.update(users, config);
+        } else {
+            occlusion.clear();
+            occlusion = null;
+        }
+
+        ProximityPass pass = new ProximityPass(config, users, occlusion, this.svcraftAudio.getAudioSettings());
+        boolean parallel = config.parallelThreshold > 0 && users.size() >= config.parallelThreshold;
+        List<PassCommand> commands = pass.compute(parallel);
+        // While a reloaded configuration is being applied, only reloadMaxChanges
+        // connects and disconnects are applied per run
+        int maxChanges = this.transition != null && config.reloadMaxChanges > 0 ? config.reloadMaxChanges : Integer.MAX_VALUE;
+        boolean applied = this.applier.apply(pass, commands, config, maxChanges);
+        if (this.transition != null && applied) {
+            this.transition.advance();
+            if (this.transition.isDone()) {
+                this.transition = null;
+                this.svcraftAudio.getLogger().info("The reloaded configuration has been fully applied.");
             }
-            this.lastVolumeResend = System.currentTimeMillis();
         }
 
+        this.applier.updateBitrates(users, config);
+        this.applier.resendVolumes(users, System.currentTimeMillis());
+
         if (System.currentTimeMillis() - this.lastHeartbeat > 300000) {
             // Every 5 minutes
             if (config.debug) {
                 this.svcraftAudio.getLogger().info("Sending heartbeat");
             }
-            // Send a heartbeat to the http server
-            Bukkit.getScheduler().runTaskAsynchronously(this.svcraftAudio, () -> {
-                String urlString = config.url.toString();
-                if (!urlString.endsWith("/")) {
-                    urlString += '/';
-                }
-                urlString += "heartbeat";
-                try {
-                    URL url = new URL(urlString);
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                    connection.setRequestMethod("POST");
-                    int responseCode = connection.getResponseCode();
-                    if (responseCode != 204) {
-                        this.svcraftAudio.getLogger().warning("Heartbeat failed, got status code: " + responseCode);
-                    }
-                } catch (IOException e) {
-                    this.svcraftAudio.getLogger().severe("Failed to send heartbeat: " + e.getMessage());
-                }
-            });
-            // Send a heartbeat to all clients
-            for (User user : users) {
-                user.sendHeartbeat();
-            }
-            // After 30 seconds, disconnect users that did not reply to the heartbeat
-            Bukkit.getScheduler().runTaskLater(this.svcraftAudio, () -> {
-                List<User> toRemove = new ArrayList<>();
-                for (User user : this.userManager.getUsers()) {
-                    if (user.isAwaitingHeartbeatResponse()) {
-                        toRemove.add(user);
-                    }
-                }
-                for (User user : toRemove) {
-                    this.svcraftAudio.getLogger().info(
-                        "Disconnecting " + user.getId() + " (" + user.getName()
-                        + ") due to heartbeat timing out."
-                    );
-                    this.userManager.removeUser(user.getId());
-                }
-            }, 600);
+            // Send a heartbeat to all clients, the heartbeat to the http server
+            // is sent by the relay monitor
+            this.userManager.sendHeartbeats(users);
 
             this.lastHeartbeat = System.currentTimeMillis();
         }
     }
+
+    /**
+     * Record a tick to the trace, if a trace is being recorded.
+     *
+     * @param users The users, with updated snapshots.
+     */
+    private void recordTrace(List<User> users) {
+        TraceRecorder recorder = this.svcraftAudio.getTraceRecorder();
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.recordTick(users);
+        } catch (IOException e) {
+            this.svcraftAudio.getLogger().log(Level.SEVERE, "Failed to record trace, stopping the trace.", e);
+            this.svcraftAudio.stopTrace();
+        }
+    }
 }
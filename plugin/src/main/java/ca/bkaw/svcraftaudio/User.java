@@ -1,11 +1,14 @@
 package ca.bkaw.svcraftaudio;
 
-import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
-import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -13,9 +16,23 @@ import java.util.Set;
  */
 public class User {
     /**
-     * The plugin instance.
+     * The speed in blocks per second above which a movement is considered a
+     * teleport rather than movement, and is not used to predict the movement.
      */
-    private final SVCraftAudio svcraftAudio;
+    private static final double MAX_PREDICTED_SPEED = 100;
+    /**
+     * The lowest bitrate in kbit/s a client is told to upload at, where Opus is
+     * still intelligible.
+     */
+    private static final int MIN_BITRATE = 8;
+    /**
+     * The steps in kbit/s bitrates are rounded to.
+     */
+    private static final int BITRATE_STEP = 8;
+    /**
+     * The plugin instance, or the trace replayer for headless users.
+     */
+    private final UserContext context;
     /**
      * The id of this user. This is also their peer id.
      */
@@ -29,20 +46,113 @@ public class User {
      */
     private final Set<User> hearingUsers = new HashSet<>();
     /**
-     * A map of the last volumes that were sent for a specific other user.
+     * The users in {@link #hearingUsers} whose audio is routed through the
+     * forwarding service (SFU) instead of a direct peer-to-peer connection.
+     */
+    private final Set<User> forwardedUsers = new HashSet<>();
+    /**
+     * Whether this user is in a dense cluster of players, meaning connections
+     * between this user and other users in dense clusters should be routed through
+     * the forwarding service.
+     */
+    private boolean inDenseCluster = false;
+    /**
+     * A map of the last volume percentages [0-100] that were sent for a specific
+     * other user.
      */
-    private final Object2DoubleMap<User> sentVolumes = new Object2DoubleOpenHashMap<>();
+    private final Object2IntMap<User> sentVolumes = new Object2IntOpenHashMap<>();
+    /**
+     * A map of the last azimuths (in degrees) that were sent for a specific other
+     * user.
+     */
+    private final Object2IntMap<User> sentAzimuths = new Object2IntOpenHashMap<>();
+    /**
+     * A map of the last bitrates (in kbit/s) this user was told to upload to a
+     * specific other user, see {@link #updateBitrates(Config)}.
+     */
+    private final Object2IntMap<User> sentBitrates = new Object2IntOpenHashMap<>();
+    /**
+     * The last bitrate (in kbit/s) this user was told to upload to the forwarding
+     * service at, or 0 if none was sent.
+     */
+    private int sentForwarderBitrate;
+    /**
+     * The world the player was in when the last snapshot was taken.
+     */
+    private World snapshotWorld;
+    /**
+     * The position of the player when the last snapshot was taken.
+     */
+    private double snapshotX, snapshotY, snapshotZ;
+    /**
+     * The yaw of the player when the last snapshot was taken.
+     */
+    private float snapshotYaw;
+    /**
+     * The time when the last snapshot was taken, in nanoseconds, or 0 if no
+     * snapshot has been taken yet.
+     */
+    private long snapshotNanos;
+    /**
+     * The estimated velocity of the player in blocks per second, smoothed over
+     * the recent snapshots.
+     */
+    private double velocityX, velocityY, velocityZ;
+    /**
+     * The amount of channels this user shares with other users, see
+     * {@link ChannelManager}.
+     */
+    private final Object2IntMap<User> channelPeers = new Object2IntOpenHashMap<>();
+    /**
+     * The index of this user in the current {@link ProximityPass}.
+     */
+    private int passIndex;
+    /**
+     * The slot of this user in the {@link AudioSettings}, or -1.
+     */
+    private int slot = -1;
+    /**
+     * Whether the client reports that the player is speaking. Clients that don't
+     * report voice activity are always speaking.
+     */
+    private boolean speaking = true;
+    /**
+     * The time the player stopped speaking, in milliseconds.
+     */
+    private long silentSince;
     /**
      * Whether this user is waiting for a heartbeat response.
      */
     private boolean awaitingHeartbeatResponse = false;
 
-    public User(SVCraftAudio svcraftAudio, String id, Player player) {
-        this.svcraftAudio = svcraftAudio;
+    public User(UserContext context, String id, Player player) {
+        this.context = context;
         this.id = id;
         this.player = player;
     }
 
+    /**
+     * Create a headless user without a player, used by the {@link TraceReplayer}.
+     * Everything but the methods that read the player can be used, the messages
+     * go to the message sink of the context.
+     *
+     * @param context The context.
+     * @param id The id of the user.
+     */
+    User(UserContext context, String id) {
+        this(context, id, null);
+    }
+
+    /**
+     * Create a headless user that can't send anything, used by tests. Only the
+     * snapshot and hearing state of the user may be used.
+     *
+     * @param id The id of the user.
+     */
+    User(String id) {
+        this(null, id, null);
+    }
+
     /**
      * Get the id of this user. This is also their peer id.
      *
@@ -85,7 +195,26 @@ public class User {
      * @param message The message to send.
      */
     private void send(String message) {
-        this.svcraftAudio.getConnection().send("To " + this.id +": " + message);
+        this.encode().append(message).send(this.context.getMessageSink());
+    }
+
+    /**
+     * Start a message to this user.
+     *
+     * @return The encoder to append the message to.
+     */
+    private MessageEncoder encode() {
+        return MessageEncoder.get().beginTo(this.id);
+    }
+
+    /**
+     * Whether debug messages should be sent to this user, headless users have no
+     * player to send them to.
+     *
+     * @return Whether to send debug messages.
+     */
+    private boolean isDebugging() {
+        return this.player != null && this.context.getConfiguration().debug;
     }
 
     /**
@@ -98,6 +227,17 @@ public class User {
         return this.hearingUsers.contains(other);
     }
 
+    /**
+     * Whether the audio between this user and the other user is routed through the
+     * forwarding service (SFU).
+     *
+     * @param other The other user.
+     * @return Whether the audio is forwarded.
+     */
+    public boolean isForwarded(User other) {
+        return this.forwardedUsers.contains(other);
+    }
+
     /**
      * Make this user start hearing the other user.
      * <p>
@@ -107,26 +247,145 @@ public class User {
      * @param doConnection Whether this user should init the call.
      */
     public void startHearing(User other, boolean doConnection) {
+        this.startHearing(other, doConnection, false);
+    }
+
+    /**
+     * Make this user start hearing the other user.
+     * <p>
+     * Will also make the other user start hearing this user.
+     *
+     * @param other The user this user should start hearing.
+     * @param doConnection Whether this user should init the call.
+     * @param forwarded Whether the audio should be routed through the forwarding
+     *                  service (SFU) instead of a direct peer-to-peer connection.
+     */
+    public void startHearing(User other, boolean doConnection, boolean forwarded) {
         // Check if this user can already hear that user
         if (this.hearingUsers.contains(other)) return;
 
-        if (this.svcraftAudio.getConfiguration().debug) {
-            this.player.sendMessage("> You will now start hearing " + other.getName());
-            this.svcraftAudio.getLogger().info("> " + this.getName() + " will now start hearing " + other.getName());
+        if (this.isDebugging()) {
+            this.player.sendMessage("> You will now start hearing " + other.getName() + (forwarded ? " (forwarded)" : ""));
+            this.context.getLogger().info("> " + this.getName() + " will now start hearing " + other.getName() + (forwarded ? " (forwarded)" : ""));
         }
 
         this.hearingUsers.add(other);
         this.sentVolumes.put(other, 0);
+        this.sentAzimuths.put(other, 0);
+
+        MessageEncoder encoder = this.encode()
+            .append(doConnection ? "Connect to " : "Wait for ")
+            .append(other.id);
+        if (forwarded) {
+            this.forwardedUsers.add(other);
+            encoder.append(" via sfu");
+        }
+        encoder.send(this.context.getMessageSink());
 
-        if (doConnection) {
-            this.send("Connect to " + other.id);
+        if (!other.canHear(this)) {
+            other.startHearing(this, false, forwarded);
+        }
+    }
+
+    /**
+     * Whether this user shares a channel with the other user. Users that share a
+     * channel hear each other at full volume regardless of distance.
+     *
+     * @param other The other user.
+     * @return Whether the users share a channel.
+     */
+    public boolean sharesChannelWith(User other) {
+        return this.channelPeers.containsKey(other);
+    }
+
+    /**
+     * Get a copy of the users this user shares a channel with.
+     *
+     * @return The users.
+     */
+    public List<User> getChannelPeers() {
+        return new ArrayList<>(this.channelPeers.keySet());
+    }
+
+    /**
+     * Get the amount of users this user shares a channel with and is connected to.
+     *
+     * @return The amount of users.
+     */
+    public int getChannelConnectionCount() {
+        int count = 0;
+        for (User other : this.channelPeers.keySet()) {
+            if (this.hearingUsers.contains(other)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count a channel that this user shares with the other user.
+     *
+     * @param other The other user.
+     * @return Whether this is the first channel the users share.
+     */
+    public boolean addChannelPeer(User other) {
+        int count = this.channelPeers.getInt(other);
+        this.channelPeers.put(other, count + 1);
+        return count == 0;
+    }
+
+    /**
+     * Stop counting a channel that this user shares with the other user.
+     *
+     * @param other The other user.
+     * @param all Whether to stop counting all channels the users share.
+     */
+    public void removeChannelPeer(User other, boolean all) {
+        int count = this.channelPeers.getInt(other);
+        if (all || count <= 1) {
+            this.channelPeers.removeInt(other);
         } else {
-            this.send("Wait for " + other.id);
+            this.channelPeers.put(other, count - 1);
         }
+    }
 
-        if (!other.canHear(this)) {
-            other.startHearing(this, false);
+    /**
+     * Forget all channels this user shares with other users.
+     */
+    public void clearChannelPeers() {
+        this.channelPeers.clear();
+    }
+
+    /**
+     * Restore that this user hears the other user, without sending anything to the
+     * client. Used when restoring a {@link SessionSnapshot}.
+     *
+     * @param other The other user.
+     * @param forwarded Whether the audio is routed through the forwarding service.
+     * @param volumePercent The last volume percentage that was sent.
+     * @param azimuth The last azimuth that was sent.
+     */
+    public void restoreHearing(User other, boolean forwarded, int volumePercent, int azimuth) {
+        this.hearingUsers.add(other);
+        if (forwarded) {
+            this.forwardedUsers.add(other);
         }
+        this.sentVolumes.put(other, volumePercent);
+        this.sentAzimuths.put(other, azimuth);
+    }
+
+    /**
+     * Forget that this user hears the other user, without sending anything to the
+     * client. Used when replaying traces and while the connection is lost.
+     *
+     * @param other The other user.
+     */
+    void forgetHearing(User other) {
+        this.hearingUsers.remove(other);
+        this.forwardedUsers.remove(other);
+        this.sentVolumes.removeInt(other);
+        this.sentAzimuths.removeInt(other);
+        this.sentBitrates.removeInt(other);
     }
 
     /**
@@ -139,15 +398,18 @@ public class User {
     public void stopHearing(User other) {
         if (!this.hearingUsers.contains(other)) return;
 
-        if (this.svcraftAudio.getConfiguration().debug) {
+        if (this.isDebugging()) {
             this.player.sendMessage("< You will now stop hearing " + other.getName());
-            this.svcraftAudio.getLogger().info("< " + this.getName() + " will now stop hearing " + other.getName());
+            this.context.getLogger().info("< " + this.getName() + " will now stop hearing " + other.getName());
         }
 
         this.hearingUsers.remove(other);
-        this.sentVolumes.removeDouble(other);
+        this.forwardedUsers.remove(other);
+        this.sentVolumes.removeInt(other);
+        this.sentAzimuths.removeInt(other);
+        this.sentBitrates.removeInt(other);
 
-        this.send("Disconnect " + other.id);
+        this.encode().append("Disconnect ").append(other.id).send(this.context.getMessageSink());
 
         if (other.canHear(this)) {
             other.stopHearing(this);
@@ -155,59 +417,354 @@ public class User {
     }
 
     /**
-     * Get the distance squared to the other user.
+     * Take a snapshot of the player's position and rotation. The update task takes
+     * a snapshot of all users once per run so that the location of each player is
+     * only read once, instead of once per pair of users.
+     */
+    public void updateSnapshot() {
+        Location location = this.player.getLocation();
+        this.updateSnapshot(location.getWorld(), location.getX(), location.getY(), location.getZ(), location.getYaw(), System.nanoTime());
+    }
+
+    /**
+     * Take a snapshot of a position and rotation.
+     *
+     * @param world The world.
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @param yaw The yaw.
+     * @param now The time of the snapshot in nanoseconds.
+     */
+    void updateSnapshot(World world, double x, double y, double z, float yaw, long now) {
+        // Estimate the velocity from the movement since the last snapshot
+        double seconds = (now - this.snapshotNanos) / 1_000_000_000.0;
+        if (this.snapshotNanos != 0 && world == this.snapshotWorld && seconds > 0) {
+            double vx = (x - this.snapshotX) / seconds;
+            double vy = (y - this.snapshotY) / seconds;
+            double vz = (z - this.snapshotZ) / seconds;
+            if (vx * vx + vy * vy + vz * vz > MAX_PREDICTED_SPEED * MAX_PREDICTED_SPEED) {
+                // Teleported
+                this.velocityX = this.velocityY = this.velocityZ = 0;
+            } else {
+                this.velocityX = (this.velocityX + vx) * 0.5;
+                this.velocityY = (this.velocityY + vy) * 0.5;
+                this.velocityZ = (this.velocityZ + vz) * 0.5;
+            }
+        } else {
+            this.velocityX = this.velocityY = this.velocityZ = 0;
+        }
+
+        this.snapshotNanos = now;
+        this.snapshotWorld = world;
+        this.snapshotX = x;
+        this.snapshotY = y;
+        this.snapshotZ = z;
+        this.snapshotYaw = yaw;
+    }
+
+    /**
+     * Get the world the player was in when the last snapshot was taken.
+     *
+     * @return The world.
+     */
+    public World getSnapshotWorld() {
+        return this.snapshotWorld;
+    }
+
+    /**
+     * Get the x coordinate of the player when the last snapshot was taken.
+     *
+     * @return The x coordinate.
+     */
+    public double getSnapshotX() {
+        return this.snapshotX;
+    }
+
+    /**
+     * Get the y coordinate of the player when the last snapshot was taken.
+     *
+     * @return The y coordinate.
+     */
+    public double getSnapshotY() {
+        return this.snapshotY;
+    }
+
+    /**
+     * Get the z coordinate of the player when the last snapshot was taken.
+     *
+     * @return The z coordinate.
+     */
+    public double getSnapshotZ() {
+        return this.snapshotZ;
+    }
+
+    /**
+     * Get the yaw of the player when the last snapshot was taken.
+     *
+     * @return The yaw.
+     */
+    public float getSnapshotYaw() {
+        return this.snapshotYaw;
+    }
+
+    /**
+     * Get the distance squared to the other user using the last snapshots of both
+     * users.
      *
      * @param other The other user.
      * @return The distance squared.
+     * @see #updateSnapshot()
      */
-    public double getDistanceSqTo(User other) {
-        Location location = this.player.getLocation();
-        Location otherLocation = other.player.getLocation();
-        if (location.getWorld() == otherLocation.getWorld()) {
-            return location.distanceSquared(otherLocation);
+    public double getSnapshotDistanceSqTo(User other) {
+        if (this.snapshotWorld != other.snapshotWorld) {
+            // Different worlds = infinite distance
+            return Double.MAX_VALUE;
+        }
+        double dx = other.snapshotX - this.snapshotX;
+        double dy = other.snapshotY - this.snapshotY;
+        double dz = other.snapshotZ - this.snapshotZ;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Get the estimated speed of the player in blocks per second.
+     *
+     * @return The speed.
+     * @see #updateSnapshot()
+     */
+    public double getSnapshotSpeed() {
+        return Math.sqrt(this.velocityX * this.velocityX + this.velocityY * this.velocityY + this.velocityZ * this.velocityZ);
+    }
+
+    /**
+     * Get the smallest distance squared between this user and the other user
+     * within the specified amount of seconds, if both users keep moving at their
+     * estimated velocities.
+     *
+     * @param other The other user.
+     * @param seconds The amount of seconds to predict.
+     * @return The predicted closest distance squared.
+     * @see #updateSnapshot()
+     */
+    public double getPredictedDistanceSqTo(User other, double seconds) {
+        if (this.snapshotWorld != other.snapshotWorld) {
+            return Double.MAX_VALUE;
+        }
+        double dx = other.snapshotX - this.snapshotX;
+        double dy = other.snapshotY - this.snapshotY;
+        double dz = other.snapshotZ - this.snapshotZ;
+        double vx = other.velocityX - this.velocityX;
+        double vy = other.velocityY - this.velocityY;
+        double vz = other.velocityZ - this.velocityZ;
+
+        // The time of the closest approach, clamped to the prediction window
+        double speedSq = vx * vx + vy * vy + vz * vz;
+        double t = speedSq == 0 ? 0 : -(dx * vx + dy * vy + dz * vz) / speedSq;
+        if (t < 0) t = 0;
+        if (t > seconds) t = seconds;
+
+        dx += vx * t;
+        dy += vy * t;
+        dz += vz * t;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Get the azimuth of the other user relative to where this user is looking,
+     * using the last snapshots of both users.
+     * <p>
+     * 0 means straight ahead, positive values are to the right and negative values
+     * are to the left.
+     *
+     * @param other The other user.
+     * @return The azimuth in degrees (-180, 180].
+     * @see #updateSnapshot()
+     */
+    public double getSnapshotAzimuthTo(User other) {
+        double dx = other.snapshotX - this.snapshotX;
+        double dz = other.snapshotZ - this.snapshotZ;
+        if (dx == 0 && dz == 0) {
+            return 0;
         }
-        // Different worlds = infinite distance
-        return Double.MAX_VALUE;
+        // Minecraft yaw: 0 is facing +z and the yaw increases when turning right.
+        double bearing = Math.toDegrees(Math.atan2(-dx, dz));
+        return normalizeAngle(bearing - this.snapshotYaw);
     }
 
     /**
-     * Get the distance to the other user.
+     * Normalize an angle in degrees to the range (-180, 180].
      *
-     * @param other The other use.
-     * @return The distance.
+     * @param angle The angle.
+     * @return The normalized angle.
+     */
+    public static double normalizeAngle(double angle) {
+        angle %= 360;
+        if (angle > 180) angle -= 360;
+        if (angle <= -180) angle += 360;
+        return angle;
+    }
+
+    /**
+     * Whether this user is in a dense cluster of players.
+     *
+     * @return Whether this user is in a dense cluster.
+     */
+    public boolean isInDenseCluster() {
+        return this.inDenseCluster;
+    }
+
+    /**
+     * Set whether this user is in a dense cluster of players.
+     *
+     * @param inDenseCluster Whether this user is in a dense cluster.
+     */
+    public void setInDenseCluster(boolean inDenseCluster) {
+        this.inDenseCluster = inDenseCluster;
+    }
+
+    /**
+     * Get the index of this user in the current proximity pass.
+     *
+     * @return The pass index.
+     */
+    public int getPassIndex() {
+        return this.passIndex;
+    }
+
+    /**
+     * Set the index of this user in the current proximity pass.
+     *
+     * @param passIndex The pass index.
+     */
+    public void setPassIndex(int passIndex) {
+        this.passIndex = passIndex;
+    }
+
+    /**
+     * Get the slot of this user in the audio settings.
+     *
+     * @return The slot, or -1 if the user has been removed.
+     */
+    public int getSlot() {
+        return this.slot;
+    }
+
+    /**
+     * Set the slot of this user in the audio settings.
+     *
+     * @param slot The slot.
+     */
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    /**
+     * Compute the volume percentage this user should hear the other user at from
+     * the last snapshots, the occlusion and the audio settings.
+     *
+     * @param other The other user.
+     * @return The volume percentage [0-100].
      */
-    public double getDistanceTo(User other) {
-        return Math.sqrt(this.getDistanceSqTo(other));
+    public int computeVolumePercentFor(User other) {
+        int volume;
+        if (this.sharesChannelWith(other)) {
+            volume = 100;
+        } else {
+            Config config = this.context.getConfiguration();
+            AudioProfile profile = config.getProfile(this.snapshotWorld);
+            volume = profile.enabled ? profile.volumeCurve.getVolumePercent(this.getSnapshotDistanceSqTo(other)) : 0;
+            if (config.occlusion) {
+                volume = this.context.getOcclusionCache().attenuate(volume, this, other);
+            }
+        }
+        return this.context.getAudioSettings().apply(this, other, volume);
     }
 
     /**
-     * Get the volume this user should hear the other user at.
+     * Send the current volume and direction this user should hear the other user
+     * at, if they differ from what was last sent. Nothing is sent while the other
+     * user is silent, the latest volume is sent when they start speaking.
      *
      * @param other The other user.
-     * @return The volume [0-1].
      */
-    public double getVolumeFor(User other) {
-        return this.getVolume(this.getDistanceTo(other));
+    public void flushVolumeFor(User other) {
+        if (!other.isSpeaking()) {
+            return;
+        }
+        int volume = this.computeVolumePercentFor(other);
+        int azimuth = this.sentAzimuths.getInt(other);
+        if (this.context.getConfiguration().spatialAudio) {
+            azimuth = (int) Math.round(this.getSnapshotAzimuthTo(other));
+        }
+        if (volume != this.sentVolumes.getInt(other) || azimuth != this.sentAzimuths.getInt(other)) {
+            this.setVolumePercentFor(other, volume, azimuth);
+        }
+    }
+
+    /**
+     * Whether the player is speaking, as reported by the voice activity detection
+     * of the client.
+     *
+     * @return Whether the player is speaking.
+     */
+    public boolean isSpeaking() {
+        return this.speaking;
+    }
+
+    /**
+     * Get how long the player has been silent.
+     *
+     * @param now The current time in milliseconds.
+     * @return The time in milliseconds, or 0 if the player is speaking.
+     */
+    public long getSilentMillis(long now) {
+        return this.speaking ? 0 : now - this.silentSince;
+    }
+
+    /**
+     * Set whether the player is speaking. Volume updates for silent players are
+     * not sent, so when the player starts speaking the latest volumes are sent to
+     * the users that hear this user.
+     *
+     * @param speaking Whether the player is speaking.
+     */
+    public void setSpeaking(boolean speaking) {
+        this.setSpeaking(speaking, System.currentTimeMillis());
     }
 
     /**
-     * Get the volume a user should hear another user at a specified distance.
+     * Set whether the player is speaking at a specific time, used when replaying
+     * traces.
      *
-     * @param distance The distance.
-     * @return The volume [0-1].
+     * @param speaking Whether the player is speaking.
+     * @param now The current time in milliseconds.
+     * @see #setSpeaking(boolean)
      */
-    public double getVolume(double distance) {
-        //
-        //                hearDistance - distance
-        // volume = ----------------------------------
-        //           hearDistance - maxVolumeDistance
-        //
+    void setSpeaking(boolean speaking, long now) {
+        if (this.updateSpeaking(speaking, now) && speaking) {
+            for (User other : this.hearingUsers) {
+                other.flushVolumeFor(this);
+            }
+        }
+    }
 
-        Config config = this.svcraftAudio.getConfiguration();
-        double volume = (config.hearDistance - distance) / (config.hearDistance - config.maxVolumeDistance);
-        if (volume > 1) volume = 1;
-        if (volume < 0) volume = 0;
-        return volume;
+    /**
+     * Set whether the player is speaking without sending anything.
+     *
+     * @param speaking Whether the player is speaking.
+     * @param now The current time in milliseconds.
+     * @return Whether the state changed.
+     */
+    boolean updateSpeaking(boolean speaking, long now) {
+        if (this.speaking == speaking) {
+            return false;
+        }
+        this.speaking = speaking;
+        if (!speaking) {
+            this.silentSince = now;
+        }
+        return true;
     }
 
     /**
@@ -218,19 +775,142 @@ public class User {
      * @return The last sent volume.
      */
     public double getLastSentVolumeFor(User other) {
-        return this.sentVolumes.getDouble(other);
+        return VolumeCurve.toVolume(this.sentVolumes.getInt(other));
+    }
+
+    /**
+     * Get the last volume percentage that was sent to this user.
+     *
+     * @param other The other user.
+     * @return The last sent volume percentage [0-100].
+     * @see #getLastSentVolumeFor(User)
+     */
+    public int getLastSentVolumePercentFor(User other) {
+        return this.sentVolumes.getInt(other);
+    }
+
+    /**
+     * Get the last azimuth that was sent to this user for the other user.
+     *
+     * @param other The other user.
+     * @return The last sent azimuth in degrees.
+     */
+    public int getLastSentAzimuthFor(User other) {
+        return this.sentAzimuths.getInt(other);
     }
 
     /**
      * Set the volume that this user should hear the other user at.
+     * <p>
+     * When spatial audio is enabled the last sent azimuth is sent along with the
+     * volume.
      *
      * @param other The other user.
      * @param volume The volume.
      */
     public void setVolumeFor(User other, double volume) {
-        this.sentVolumes.put(other, volume);
+        this.setVolumePercentFor(other, (int) Math.round(volume * 100.0), this.sentAzimuths.getInt(other));
+    }
+
+    /**
+     * Set the volume and the direction that this user should hear the other user
+     * at.
+     *
+     * @param other The other user.
+     * @param volumePercent The volume percentage [0-100].
+     * @param azimuth The azimuth in degrees, see {@link #getSnapshotAzimuthTo(User)}.
+     */
+    public void setVolumePercentFor(User other, int volumePercent, int azimuth) {
+        this.sentVolumes.put(other, volumePercent);
+        this.sentAzimuths.put(other, azimuth);
+
+        MessageEncoder encoder = this.encode()
+            .append("Volume ").append(other.id).append(": ")
+            .appendVolume(volumePercent);
+        if (this.context.getConfiguration().spatialAudio) {
+            encoder.append(" at ").append(azimuth);
+        }
+        encoder.send(this.context.getMessageSink());
+    }
+
+    /**
+     * Tell the client which bitrate to upload its microphone to each directly
+     * connected user at, if it changed.
+     * <p>
+     * The {@link Config#uploadBudget} is divided between the users this user is
+     * connected to peer-to-peer. Users within maxVolumeDistance, and users that
+     * share a channel, get a full share, users within hearDistance half a share
+     * and users further away (connected ahead of time) a quarter. Users heard
+     * through the forwarding service share one upload, which gets a full share and
+     * its own hint.
+     *
+     * @param config The configuration.
+     */
+    public void updateBitrates(Config config) {
+        if (config.uploadBudget <= 0) {
+            if (!this.sentBitrates.isEmpty()) {
+                // Hints were disabled, remove the limits
+                for (User other : this.sentBitrates.keySet()) {
+                    this.encode().append("Bitrate ").append(other.id).append(": 0").send(this.context.getMessageSink());
+                }
+                this.sentBitrates.clear();
+            }
+            if (this.sentForwarderBitrate != 0) {
+                this.encode().append("Forwarder bitrate: 0").send(this.context.getMessageSink());
+                this.sentForwarderBitrate = 0;
+            }
+            return;
+        }
+        AudioProfile profile = config.getProfile(this.snapshotWorld);
+        double maxVolumeDistanceSq = (double) profile.maxVolumeDistance * profile.maxVolumeDistance;
+        double hearDistanceSq = (double) profile.hearDistance * profile.hearDistance;
+
+        double totalWeight = this.forwardedUsers.isEmpty() ? 0 : 1;
+        for (User other : this.hearingUsers) {
+            if (!this.forwardedUsers.contains(other)) {
+                totalWeight += getBitrateWeight(other, maxVolumeDistanceSq, hearDistanceSq);
+            }
+        }
+        double share = config.uploadBudget / totalWeight;
+        for (User other : this.hearingUsers) {
+            if (this.forwardedUsers.contains(other)) {
+                continue;
+            }
+            int kbps = toBitrateHint(share * getBitrateWeight(other, maxVolumeDistanceSq, hearDistanceSq), config);
+            if (kbps != this.sentBitrates.getInt(other)) {
+                this.sentBitrates.put(other, kbps);
+                this.encode().append("Bitrate ").append(other.id).append(": ").append(kbps).send(this.context.getMessageSink());
+            }
+        }
 
-        this.send("Volume " + other.id + ": " + volume);
+        if (this.forwardedUsers.isEmpty()) {
+            // The client stops uploading to the forwarding service, and starts
+            // without a limit the next time
+            this.sentForwarderBitrate = 0;
+        } else {
+            int kbps = toBitrateHint(share, config);
+            if (kbps != this.sentForwarderBitrate) {
+                this.sentForwarderBitrate = kbps;
+                this.encode().append("Forwarder bitrate: ").append(kbps).send(this.context.getMessageSink());
+            }
+        }
+    }
+
+    private static int toBitrateHint(double bitrate, Config config) {
+        // Rounded to steps so that small changes don't cause messages
+        int kbps = (int) Math.round(bitrate / BITRATE_STEP) * BITRATE_STEP;
+        return Math.max(MIN_BITRATE, Math.min(kbps, config.maxBitrate));
+    }
+
+    private double getBitrateWeight(User other, double maxVolumeDistanceSq, double hearDistanceSq) {
+        if (this.sharesChannelWith(other)) {
+            return 1;
+        }
+        double distanceSq = this.getSnapshotDistanceSqTo(other);
+        if (distanceSq <= maxVolumeDistanceSq) {
+            return 1;
+        }
+        return distanceSq <= hearDistanceSq ? 0.5 : 0.25;
     }
 
     /**
@@ -254,6 +934,20 @@ public class User {
         this.send("Reload");
     }
 
+    /**
+     * Tell the client to close all peer connections.
+     */
+    public void sendResync() {
+        this.send("resync");
+    }
+
+    /**
+     * Ask the client to reply with information about its peer connections.
+     */
+    public void sendPeersInfoRequest() {
+        this.send("peersinfo");
+    }
+
     /**
      * Send a heartbeat to the client and expect a response.
      */
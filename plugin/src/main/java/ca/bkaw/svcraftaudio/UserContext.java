@@ -0,0 +1,48 @@
+package ca.bkaw.svcraftaudio;
+
+import java.util.logging.Logger;
+
+/**
+ * What a {@link User} needs from the plugin to decide and send volumes:
+ * the configuration, the settings the volumes are computed from and where the
+ * messages go.
+ * <p>
+ * Implemented by {@link SVCraftAudio}, and by the {@link TraceReplayer} so that
+ * replays run the same logic with headless users.
+ */
+public interface UserContext {
+    /**
+     * Get the configuration.
+     *
+     * @return The configuration.
+     */
+    Config getConfiguration();
+
+    /**
+     * Get the audio settings of the players.
+     *
+     * @return The audio settings.
+     */
+    AudioSettings getAudioSettings();
+
+    /**
+     * Get the occlusion cache.
+     *
+     * @return The occlusion cache.
+     */
+    OcclusionCache getOcclusionCache();
+
+    /**
+     * Get where the messages to users are sent.
+     *
+     * @return The message sink.
+     */
+    MessageSink getMessageSink();
+
+    /**
+     * Get the logger for debug messages.
+     *
+     * @return The logger.
+     */
+    Logger getLogger();
+}
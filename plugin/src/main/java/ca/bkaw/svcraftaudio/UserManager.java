@@ -5,6 +5,7 @@ import org.bukkit.entity.Player;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Holds and manages a list of connected users.
@@ -32,6 +33,31 @@ public class UserManager {
         return null;
     }
 
+    /**
+     * Get the user of a player.
+     *
+     * @param player The player.
+     * @return The user, or null if the player is not connected.
+     */
+    public User getUser(Player player) {
+        return this.getUser(player.getUniqueId());
+    }
+
+    /**
+     * Get the user of a player by uuid.
+     *
+     * @param playerUuid The uuid of the player.
+     * @return The user, or null if the player is not connected.
+     */
+    public User getUser(UUID playerUuid) {
+        for (User user : this.users) {
+            if (user.getPlayer().getUniqueId().equals(playerUuid)) {
+                return user;
+            }
+        }
+        return null;
+    }
+
     /**
      * Get the amount of connected users.
      *
@@ -64,21 +90,28 @@ public class UserManager {
      * Add a newly created user to the list of users.
      * <p>
      * Will disconnect any user that has the same user id or player uuid with the
-     * connected-elsewhere message.
+     * connected-elsewhere message. Must be called on the main thread.
      *
      * @param user The user to add.
      */
     public void addNewUser(User user) {
+        ChannelManager channelManager = this.svcraftAudio.getChannelManager();
+        AudioSettings settings = this.svcraftAudio.getAudioSettings();
         this.users.removeIf(existingUser -> {
             if (user.getId().equals(existingUser.getId())
                 || user.getPlayer().getUniqueId().equals(existingUser.getPlayer().getUniqueId())) {
                 existingUser.sendConnectedElseWhere();
+                channelManager.onUserRemoved(existingUser);
+                settings.removeUser(existingUser);
                 return true;
             }
             return false;
         });
 
+        // The slot first, so that passes never see the user without its mutes
+        settings.addUser(user);
         this.users.add(user);
+        channelManager.onUserAdded(user);
     }
 
     /**
@@ -96,6 +129,8 @@ public class UserManager {
                 if (player.isOnline()) {
                     player.sendMessage("You disconnected from svcraft-audio.");
                 }
+                this.svcraftAudio.getChannelManager().onUserRemoved(user);
+                this.svcraftAudio.getAudioSettings().removeUser(user);
                 // Call the event on the main thread
                 Bukkit.getScheduler().runTask(this.svcraftAudio,
                     () -> new UserDisconnectEvent(user).callEvent());
@@ -105,29 +140,106 @@ public class UserManager {
             return false;
         });
 
-        // Make other users stop hearing this user
+        // Make other users stop hearing this user. While the connection is lost
+        // nothing can be sent, the clients notice the peer leaving by themselves
+        boolean connected = this.svcraftAudio.getConnectionRaw().isOpen();
         for (User user : this.users) {
             for (User hearingUser : user.getHearingUsers()) {
                 if (hearingUser.getId().equals(userId)) {
-                    user.stopHearing(hearingUser);
+                    if (connected) {
+                        user.stopHearing(hearingUser);
+                    } else {
+                        user.forgetHearing(hearingUser);
+                    }
                 }
             }
         }
     }
 
+    /**
+     * Send a heartbeat to the users. After 30 seconds, the users that did not
+     * reply are disconnected.
+     *
+     * @param users The users to send a heartbeat to.
+     */
+    public void sendHeartbeats(List<User> users) {
+        for (User user : users) {
+            user.sendHeartbeat();
+        }
+        Bukkit.getScheduler().runTaskLater(this.svcraftAudio, () -> {
+            List<User> toRemove = new ArrayList<>();
+            for (User user : this.users) {
+                if (user.isAwaitingHeartbeatResponse()) {
+                    toRemove.add(user);
+                }
+            }
+            for (User user : toRemove) {
+                this.svcraftAudio.getLogger().info(
+                    "Disconnecting " + user.getId() + " (" + user.getName()
+                    + ") due to heartbeat timing out."
+                );
+                this.removeUser(user.getId());
+            }
+        }, 600);
+    }
+
     /**
      * Handle a player leaving the game. In case this player is a connected user,
-     * disconnect that user.
+     * disconnect that user, or hand the user off to the next server the player
+     * joins when session handoff is enabled.
      *
      * @param player The player that is leaving.
      */
     public void onPlayerQuit(Player player) {
+        this.svcraftAudio.getChannelManager().leaveAll(player);
+        if (this.svcraftAudio.getConfiguration().sessionHandoff) {
+            for (User user : this.users) {
+                if (user.getPlayer() == player) {
+                    this.handOff(user);
+                    return;
+                }
+            }
+            return;
+        }
         this.users.removeIf(user -> {
             if (user.getPlayer() == player) {
                 user.sendQuitGame();
+                this.svcraftAudio.getChannelManager().onUserRemoved(user);
+                this.svcraftAudio.getAudioSettings().removeUser(user);
                 return true;
             }
             return false;
         });
     }
+
+    /**
+     * Handle a player joining the game. When session handoff is enabled, tell the
+     * websocket server so that the user of the player is adopted if the player is
+     * switching from another server.
+     *
+     * @param player The player that joined.
+     */
+    public void onPlayerJoin(Player player) {
+        if (!this.svcraftAudio.getConfiguration().sessionHandoff) {
+            return;
+        }
+        Connection connection = this.svcraftAudio.getConnectionRaw();
+        if (connection.isOpen()) {
+            connection.sendPlayerJoined(player.getName());
+        }
+    }
+
+    /**
+     * Hand off a user to the next server the player joins. The user is removed
+     * from this server but keeps its connection to the websocket server.
+     *
+     * @param user The user to hand off.
+     */
+    public void handOff(User user) {
+        Connection connection = this.svcraftAudio.getConnectionRaw();
+        if (connection.isOpen()) {
+            connection.sendHandOff(user.getId(), user.getName());
+        }
+        this.removeUser(user.getId());
+    }
 }
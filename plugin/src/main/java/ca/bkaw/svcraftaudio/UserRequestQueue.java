@@ -0,0 +1,168 @@
+package ca.bkaw.svcraftaudio;
+
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Sends resync and peer info requests to a selection of users at a limited rate,
+ * so that a request for many users doesn't make all clients reconnect or reply at
+ * the same time.
+ */
+public class UserRequestQueue {
+    /**
+     * The maximum amount of users that get a request each tick.
+     */
+    private static final int REQUESTS_PER_TICK = 10;
+    /**
+     * The time in milliseconds before the same user can be resynchronised again.
+     */
+    private static final long RESYNC_COOLDOWN = 10000;
+    /**
+     * The time in ticks to wait for peer info replies after the last request was
+     * sent.
+     */
+    private static final long PEERS_INFO_TIMEOUT = 100;
+
+    private final SVCraftAudio svcraftAudio;
+    private final Queue<Request> queue = new ArrayDeque<>();
+    /**
+     * The last time each user was resynchronised.
+     */
+    private final Object2LongMap<User> lastResync = new Object2LongOpenHashMap<>();
+    private BukkitTask task;
+    private volatile PeersInfoReport peersInfoReport;
+
+    public UserRequestQueue(SVCraftAudio svcraftAudio) {
+        this.svcraftAudio = svcraftAudio;
+    }
+
+    /**
+     * Resynchronise users. The users stop hearing everyone and their clients close
+     * all peer connections, the update task will then connect them again.
+     *
+     * @param users The users to resynchronise.
+     * @param silent Whether to not notify the players.
+     * @return The amount of users that will be resynchronised, users that were
+     *         resynchronised recently are skipped.
+     */
+    public int resync(Collection<User> users, boolean silent) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (User user : users) {
+            if (now - this.lastResync.getLong(user) < RESYNC_COOLDOWN) {
+                continue;
+            }
+            this.lastResync.put(user, now);
+            this.queue.add(new Request(user, true, silent));
+            count++;
+        }
+        this.start();
+        return count;
+    }
+
+    /**
+     * Ask users for information about their peer connections. The replies are
+     * collected and sent to the sender as a summary.
+     *
+     * @param users The users to ask.
+     * @param sender The sender to send the summary to.
+     */
+    public void peersInfo(Collection<User> users, CommandSender sender) {
+        if (this.peersInfoReport != null) {
+            // Only one report at a time, like before
+            this.peersInfoReport.finish();
+            this.queue.removeIf(request -> !request.resync);
+        }
+        List<User> list = new ArrayList<>(users);
+        this.peersInfoReport = new PeersInfoReport(this.svcraftAudio, sender, list);
+        if (list.isEmpty()) {
+            this.peersInfoReport.finish();
+            return;
+        }
+        for (User user : list) {
+            this.queue.add(new Request(user, false, false));
+        }
+        this.start();
+    }
+
+    /**
+     * Get the report that peer info replies should be added to.
+     *
+     * @return The report, or null.
+     */
+    public PeersInfoReport getPeersInfoReport() {
+        return this.peersInfoReport;
+    }
+
+    /**
+     * Start sending the queued requests, if not already started.
+     */
+    private void start() {
+        if (this.task == null && !this.queue.isEmpty()) {
+            this.task = Bukkit.getScheduler().runTaskTimer(this.svcraftAudio, this::tick, 1, 1);
+        }
+    }
+
+    private void tick() {
+        UserManager userManager = this.svcraftAudio.getUserManager();
+        for (int i = 0; i < REQUESTS_PER_TICK && !this.queue.isEmpty(); i++) {
+            Request request = this.queue.poll();
+            User user = request.user;
+            if (userManager.getUser(user.getId()) != user) {
+                // Disconnected since
+                continue;
+            }
+            if (request.resync) {
+                for (User hearingUser : user.getHearingUsers()) {
+                    user.stopHearing(hearingUser);
+                }
+                user.sendResync();
+                if (!request.silent) {
+                    user.getPlayer().sendMessage("svcraft-audio is reconnecting.");
+                }
+            } else {
+                user.sendPeersInfoRequest();
+            }
+        }
+
+        if (this.queue.isEmpty()) {
+            this.task.cancel();
+            this.task = null;
+
+            PeersInfoReport report = this.peersInfoReport;
+            if (report != null) {
+                Bukkit.getScheduler().runTaskLater(this.svcraftAudio, () -> {
+                    report.finish();
+                    if (this.peersInfoReport == report) {
+                        this.peersInfoReport = null;
+                    }
+                }, PEERS_INFO_TIMEOUT);
+            }
+            this.lastResync.keySet().removeIf(user -> userManager.getUser(user.getId()) != user);
+        }
+    }
+
+    /**
+     * A request to send to a user.
+     */
+    private static class Request {
+        private final User user;
+        private final boolean resync;
+        private final boolean silent;
+
+        private Request(User user, boolean resync, boolean silent) {
+            this.user = user;
+            this.resync = resync;
+            this.silent = silent;
+        }
+    }
+}
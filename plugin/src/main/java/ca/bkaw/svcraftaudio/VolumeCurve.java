@@ -0,0 +1,66 @@
+package ca.bkaw.svcraftaudio;
+
+/**
+ * A precomputed lookup table of volumes, indexed by the distance squared.
+ * <p>
+ * Volumes are stored as percentages [0-100], which is the precision volumes are
+ * sent to clients with. This means the update task can compare volumes without
+ * having to calculate square roots or round the volumes.
+ */
+public class VolumeCurve {
+    /**
+     * The volume percentages, where the index is the distance squared.
+     */
+    private final byte[] table;
+
+    /**
+     * Create a new volume curve.
+     *
+     * @param falloff The falloff model to use.
+     * @param maxVolumeDistance The distance where the volume starts to fall off.
+     * @param hearDistance The distance where the volume reaches zero.
+     */
+    public VolumeCurve(Falloff falloff, int maxVolumeDistance, int hearDistance) {
+        int size = Math.max(hearDistance, 0) * Math.max(hearDistance, 0) + 1;
+        this.table = new byte[size];
+        for (int distanceSq = 0; distanceSq < size; distanceSq++) {
+            // Use the middle of the interval this index covers
+            double distance = Math.sqrt(distanceSq + 0.5);
+            double volume = falloff.getVolume(distance, maxVolumeDistance, hearDistance);
+            this.table[distanceSq] = (byte) Math.round(volume * 100.0);
+        }
+    }
+
+    /**
+     * Get the volume percentage for a distance squared.
+     *
+     * @param distanceSq The distance squared.
+     * @return The volume percentage [0-100].
+     */
+    public int getVolumePercent(double distanceSq) {
+        if (distanceSq >= this.table.length) {
+            return 0;
+        }
+        return this.table[(int) distanceSq];
+    }
+
+    /**
+     * Get the volume for a distance squared.
+     *
+     * @param distanceSq The distance squared.
+     * @return The volume [0-1].
+     */
+    public double getVolume(double distanceSq) {
+        return toVolume(this.getVolumePercent(distanceSq));
+    }
+
+    /**
+     * Convert a volume percentage to a volume.
+     *
+     * @param volumePercent The volume percentage [0-100].
+     * @return The volume [0-1].
+     */
+    public static double toVolume(int volumePercent) {
+        return volumePercent / 100.0;
+    }
+}
@@ -0,0 +1,156 @@
+package ca.bkaw.svcraftaudio;
+
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Checks that computing a {@link ProximityPass} in parallel gives exactly the
+ * same commands, in the same order, as computing it serially.
+ */
+public class ProximityPassTest {
+    private static final int USERS = 3000;
+    private static final long SECOND = 1_000_000_000L;
+    /** The time of the first snapshot, in seconds. */
+    private static final long START = 100;
+
+    @Test
+    public void parallelMatchesSerial() {
+        for (double prewarmSeconds : new double[] { 0, 3 }) {
+            for (int maxPeers : new int[] { 0, 6 }) {
+                for (int sfuThreshold : new int[] { 0, 8 }) {
+                    String scenario = "prewarmSeconds=" + prewarmSeconds + ", maxPeers=" + maxPeers + ", sfuThreshold=" + sfuThreshold;
+                    YamlConfiguration yaml = new YamlConfiguration();
+                    yaml.set("prewarmSeconds", prewarmSeconds);
+                    yaml.set("maxPeers", maxPeers);
+                    yaml.set("sfuThreshold", sfuThreshold);
+                    yaml.set("connectOnSpeechAfter", 30);
+                    yaml.set("worlds.world_nether.connectDistance", 24);
+                    yaml.set("worlds.world_nether.disconnectDistance", 30);
+                    yaml.set("worlds.world_nether.hearDistance", 20);
+                    yaml.set("worlds.world_the_end.enabled", false);
+                    assertPassesMatch(new Config(yaml), scenario);
+                }
+            }
+        }
+    }
+
+    private static void assertPassesMatch(Config config, String scenario) {
+        List<World> worlds = new ArrayList<>();
+        worlds.add(TraceReplayer.createWorld("world"));
+        worlds.add(TraceReplayer.createWorld("world_nether"));
+        worlds.add(TraceReplayer.createWorld("world_the_end"));
+        worlds.add(TraceReplayer.createWorld("lobby"));
+        List<User> users = createUsers(worlds, new Random(42));
+        AudioSettings settings = new AudioSettings();
+        long now = (START + 2) * 1000;
+
+        // Let a pass on the earlier snapshots decide who hears who, so that the
+        // compared passes also disconnect, reconnect and update volumes
+        ProximityPass previousPass = new ProximityPass(config, users, null, settings, now - 1000);
+        apply(previousPass, previousPass.compute(false), config);
+        moveUsers(users, new Random(7));
+
+        List<PassCommand> serial = new ProximityPass(config, users, null, settings, now).compute(false);
+        List<PassCommand> parallel = new ProximityPass(config, users, null, settings, now).compute(true);
+
+        assertFalse(serial.isEmpty(), scenario + ": the pass decided nothing");
+        int size = Math.min(serial.size(), parallel.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(serial.get(i), parallel.get(i), scenario + ": command " + i);
+        }
+        assertEquals(serial.size(), parallel.size(), scenario + ": amount of commands");
+    }
+
+    /**
+     * Create users in clusters spread over several grid cells and worlds, with
+     * two snapshots so that they have velocities. A few of them fly fast, and
+     * some have been silent for a while.
+     */
+    private static List<User> createUsers(List<World> worlds, Random random) {
+        List<User> users = new ArrayList<>();
+        double[][] clusters = new double[40][];
+        for (int i = 0; i < clusters.length; i++) {
+            clusters[i] = new double[] { random.nextDouble() * 2000 - 1000, random.nextDouble() * 2000 - 1000, 1 + random.nextDouble() * 30 };
+        }
+        for (int i = 0; i < USERS; i++) {
+            User user = new User("user-" + i);
+            // The last world only gets one user
+            World world = i == 0 ? worlds.get(worlds.size() - 1) : worlds.get(random.nextInt(worlds.size() - 1));
+            double x;
+            double z;
+            if (random.nextInt(5) == 0) {
+                x = random.nextDouble() * 2000 - 1000;
+                z = random.nextDouble() * 2000 - 1000;
+            } else {
+                double[] cluster = clusters[random.nextInt(clusters.length)];
+                x = cluster[0] + random.nextGaussian() * cluster[2];
+                z = cluster[1] + random.nextGaussian() * cluster[2];
+            }
+            double speed = random.nextInt(50) == 0 ? 40 + random.nextDouble() * 55 : random.nextDouble() * 8;
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double vx = Math.cos(angle) * speed;
+            double vz = Math.sin(angle) * speed;
+            user.updateSnapshot(world, x, 64, z, random.nextFloat() * 360 - 180, START * SECOND);
+            user.updateSnapshot(world, x + vx, 64, z + vz, random.nextFloat() * 360 - 180, (START + 1) * SECOND);
+            if (random.nextInt(5) == 0) {
+                user.updateSpeaking(false, START * 1000 - random.nextInt(60_000));
+            }
+            users.add(user);
+        }
+        return users;
+    }
+
+    /**
+     * Move every user a second further along their velocity, turning a bit.
+     */
+    private static void moveUsers(List<User> users, Random random) {
+        for (User user : users) {
+            double speed = user.getSnapshotSpeed();
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double x = user.getSnapshotX() + Math.cos(angle) * speed * 0.3 + (random.nextDouble() - 0.5) * 4;
+            double z = user.getSnapshotZ() + Math.sin(angle) * speed * 0.3 + (random.nextDouble() - 0.5) * 4;
+            user.updateSnapshot(user.getSnapshotWorld(), x, user.getSnapshotY(), z, random.nextFloat() * 360 - 180, (START + 2) * SECOND);
+        }
+    }
+
+    /**
+     * Apply the commands to the hearing state of the users without sending
+     * anything.
+     */
+    private static void apply(ProximityPass pass, List<PassCommand> commands, Config config) {
+        if (config.sfuThreshold > 0) {
+            for (User user : pass.getUsers()) {
+                user.setInDenseCluster(pass.isInDenseCluster(user));
+            }
+        }
+        for (PassCommand command : commands) {
+            User user = command.user;
+            User other = command.other;
+            switch (command.type) {
+                case RECONNECT:
+                    user.forgetHearing(other);
+                    other.forgetHearing(user);
+                    // Fall through
+                case CONNECT:
+                    user.restoreHearing(other, command.forwarded, 0, 0);
+                    other.restoreHearing(user, command.forwarded, 0, 0);
+                    break;
+                case DISCONNECT:
+                    user.forgetHearing(other);
+                    other.forgetHearing(user);
+                    break;
+                case VOLUME:
+                    user.restoreHearing(other, user.isForwarded(other), command.volumePercent, command.azimuth);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Benchmark of per-message compression (permessage-deflate) for the messages
+ * the plugin sends, comparing bytes on the wire and cpu time for different
+ * thresholds and zlib settings.
+ * <p>
+ * Two streams are measured: the plugin link, which carries the messages for all
+ * users ("To u-abc: Volume u-def: 0.45 at -30"), and a browser link, which
+ * carries the messages of a single user with the "To u-abc: " prefix removed.
+ * The messages are generated from a fixed neighbourhood of users so that the
+ * same pairs repeat like they do when players stand together.
+ * <p>
+ * Messages are compressed the way ws and Java-WebSocket do it: a raw deflate
+ * stream flushed with Z_SYNC_FLUSH after every message, with the trailing
+ * 00 00 ff ff removed, and optionally reset after every message (no context
+ * takeover). Messages smaller than the threshold are sent uncompressed.
+ * <p>
+ * Usage: node bench/deflate.js [messages] [users]
+ */
+
+const zlib = require("zlib");
+
+const MESSAGES = parseInt(process.argv[2] || "50000");
+const USERS = parseInt(process.argv[3] || "200");
+/** The amount of users each user hears. */
+const NEIGHBOURS = 8;
+
+// === Messages ===
+
+/**
+ * A small deterministic random generator, so that every run compresses the
+ * same messages.
+ */
+function random(seed) {
+    let state = seed >>> 0;
+    return function() {
+        state = (state + 0x6D2B79F5) >>> 0;
+        let t = state;
+        t = Math.imul(t ^ (t >>> 15), t | 1);
+        t ^= t + Math.imul(t ^ (t >>> 7), t | 61);
+        return ((t ^ (t >>> 14)) >>> 0) / 4294967296;
+    };
+}
+
+const ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+function randomId(next, prefix) {
+    let id = prefix;
+    for (let i = 0; i < 8; i++) {
+        id += ALPHABET[Math.floor(next() * ALPHABET.length)];
+    }
+    return id;
+}
+
+function volume(percent) {
+    return Math.floor(percent / 100) + "." + String(percent % 100).padStart(2, "0");
+}
+
+/**
+ * Generate the messages of the plugin link, as [userId, message] pairs.
+ */
+function generateMessages(count, userCount) {
+    const next = random(42);
+    const ids = [];
+    for (let i = 0; i < userCount; i++) {
+        ids.push(randomId(next, "u-"));
+    }
+    const neighbours = ids.map((id, i) => {
+        const list = [];
+        for (let j = 1; j <= NEIGHBOURS; j++) {
+            list.push(ids[(i + j * 7) % userCount]);
+        }
+        return list;
+    });
+
+    const messages = [];
+    for (let i = 0; i < count; i++) {
+        const index = Math.floor(next() * userCount);
+        const user = ids[index];
+        const other = neighbours[index][Math.floor(next() * NEIGHBOURS)];
+        const type = next();
+        let message;
+        if (type < 0.62) {
+            const percent = Math.floor(next() * 101);
+            const azimuth = Math.floor(next() * 36) * 10 - 180;
+            message = "Volume " + other + ": " + volume(percent) + " at " + azimuth;
+        } else if (type < 0.70) {
+            message = "Volume " + other + ": 0.00 at 0";
+        } else if (type < 0.80) {
+            message = "Bitrate " + other + ": " + (8 + Math.floor(next() * 8) * 8);
+        } else if (type < 0.88) {
+            message = (next() < 0.5 ? "Connect to " : "Wait for ") + other + (next() < 0.1 ? " via sfu" : "");
+        } else if (type < 0.96) {
+            message = "Disconnect " + other;
+        } else {
+            message = "Heartbeat";
+        }
+        messages.push([user, message]);
+    }
+    return messages;
+}
+
+// === Compression ===
+
+const TAIL = Buffer.from([0x00, 0x00, 0xff, 0xff]);
+
+/**
+ * Compress the messages one by one like permessage-deflate does.
+ *
+ * @returns {Promise<Buffer[]>} The payloads, null for messages that were sent
+ * uncompressed.
+ */
+async function compressAll(payloads, options) {
+    const zlibOptions = { level: options.level, memLevel: options.memLevel, windowBits: options.windowBits };
+    let deflate = zlib.createDeflateRaw(zlibOptions);
+    const results = [];
+    for (const payload of payloads) {
+        if (payload.length < options.threshold) {
+            results.push(null);
+            continue;
+        }
+        const chunks = [];
+        const onData = chunk => chunks.push(chunk);
+        deflate.on("data", onData);
+        deflate.write(payload);
+        await new Promise(resolve => deflate.flush(zlib.constants.Z_SYNC_FLUSH, resolve));
+        deflate.removeListener("data", onData);
+        let data = Buffer.concat(chunks);
+        if (data.length >= 4 && data.subarray(data.length - 4).equals(TAIL)) {
+            data = data.subarray(0, data.length - 4);
+        }
+        results.push(data);
+        if (options.noContextTakeover) {
+            deflate.close();
+            deflate = zlib.createDeflateRaw(zlibOptions);
+        }
+    }
+    deflate.close();
+    return results;
+}
+
+/**
+ * Decompress the payloads like the receiving side does, and check that they
+ * match the messages.
+ */
+async function decompressAll(compressed, payloads, options) {
+    let inflate = zlib.createInflateRaw({ windowBits: options.windowBits });
+    for (let i = 0; i < compressed.length; i++) {
+        if (compressed[i] == null) {
+            continue;
+        }
+        const chunks = [];
+        const onData = chunk => chunks.push(chunk);
+        inflate.on("data", onData);
+        inflate.write(compressed[i]);
+        inflate.write(TAIL);
+        await new Promise(resolve => inflate.flush(zlib.constants.Z_SYNC_FLUSH, resolve));
+        inflate.removeListener("data", onData);
+        if (!Buffer.concat(chunks).equals(payloads[i])) {
+            throw new Error("Message " + i + " did not survive the round trip");
+        }
+        if (options.noContextTakeover) {
+            inflate.close();
+            inflate = zlib.createInflateRaw({ windowBits: options.windowBits });
+        }
+    }
+    inflate.close();
+}
+
+/**
+ * The size of a websocket frame header for a payload.
+ */
+function headerSize(length, masked) {
+    return (length < 126 ? 2 : length < 65536 ? 4 : 10) + (masked ? 4 : 0);
+}
+
+function cpuMicros(start) {
+    const usage = process.cpuUsage(start);
+    return usage.user + usage.system;
+}
+
+async function measure(payloads, options, masked) {
+    let start = process.cpuUsage();
+    const compressed = options == null ? payloads.map(() => null) : await compressAll(payloads, options);
+    const compressCpu = cpuMicros(start);
+    start = process.cpuUsage();
+    if (options != null) {
+        await decompressAll(compressed, payloads, options);
+    }
+    const decompressCpu = cpuMicros(start);
+
+    let raw = 0;
+    let wire = 0;
+    let compressedCount = 0;
+    for (let i = 0; i < payloads.length; i++) {
+        const length = compressed[i] != null ? compressed[i].length : payloads[i].length;
+        raw += payloads[i].length + headerSize(payloads[i].length, masked);
+        wire += length + headerSize(length, masked);
+        if (compressed[i] != null) {
+            compressedCount++;
+        }
+    }
+    return { raw, wire, compressedCount, compressCpu, decompressCpu };
+}
+
+// === Run ===
+
+const SCENARIOS = [
+    ["off", null],
+    ["threshold 1024 (library default)", { threshold: 1024, level: 6, memLevel: 8, windowBits: 15 }],
+    ["threshold 0, no context takeover", { threshold: 0, level: 6, memLevel: 8, windowBits: 15, noContextTakeover: true }],
+    ["threshold 64", { threshold: 64, level: 1, memLevel: 8, windowBits: 15 }],
+    ["threshold 32", { threshold: 32, level: 1, memLevel: 8, windowBits: 15 }],
+    ["threshold 0", { threshold: 0, level: 1, memLevel: 8, windowBits: 15 }],
+    ["threshold 0, level 6", { threshold: 0, level: 6, memLevel: 8, windowBits: 15 }],
+    ["threshold 0, memLevel 4", { threshold: 0, level: 1, memLevel: 4, windowBits: 15 }],
+    ["threshold 0, window 12, memLevel 4", { threshold: 0, level: 1, memLevel: 4, windowBits: 12 }],
+    ["threshold 0, window 10, memLevel 4", { threshold: 0, level: 1, memLevel: 4, windowBits: 10 }]
+];
+
+function pad(value, width) {
+    return String(value).padStart(width);
+}
+
+async function run(title, payloads, masked) {
+    console.log(title + ": " + payloads.length + " messages");
+    console.log("  " + "scenario".padEnd(36) + pad("compressed", 11) + pad("wire B/msg", 11) + pad("saved", 8)
+        + pad("deflate us/msg", 15) + pad("inflate us/msg", 15));
+    for (const [name, options] of SCENARIOS) {
+        const result = await measure(payloads, options, masked);
+        const saved = 100 * (1 - result.wire / result.raw);
+        console.log("  " + name.padEnd(36)
+            + pad((100 * result.compressedCount / payloads.length).toFixed(0) + "%", 11)
+            + pad((result.wire / payloads.length).toFixed(1), 11)
+            + pad(saved.toFixed(1) + "%", 8)
+            + pad((result.compressCpu / payloads.length).toFixed(2), 15)
+            + pad((result.decompressCpu / payloads.length).toFixed(2), 15));
+    }
+    console.log();
+}
+
+async function main() {
+    const messages = generateMessages(MESSAGES, USERS);
+
+    // Frames from the plugin (a client) are masked
+    const pluginLink = messages.map(([userId, message]) => Buffer.from("To " + userId + ": " + message));
+    await run("Plugin link (" + USERS + " users)", pluginLink, true);
+
+    const userId = messages[0][0];
+    const browserLink = messages
+        .filter(([id]) => id == userId)
+        .map(([, message]) => Buffer.from(message));
+    // Repeat the messages of the user to get stable timings
+    const repeated = [];
+    while (repeated.length < Math.min(MESSAGES, 5000)) {
+        repeated.push(...browserLink);
+    }
+    await run("Browser link (one user)", repeated, false);
+}
+
+main().catch(e => {
+    console.error(e);
+    process.exit(1);
+});
@@ -0,0 +1,57 @@
+/**
+ * Runs the svcraft-audio websocket server as several worker processes that share
+ * the same port, for when one process can't carry all servers and users.
+ * <p>
+ * The workers route messages to each other through the primary process, which
+ * holds the routing store (see routing.js). The peer connection broker can't be
+ * shared between processes, so it runs once, in the primary process, on
+ * PEER_PORT. Requests to /peer need to be sent to that port, for example by the
+ * reverse proxy in front of the server.
+ */
+const cluster = require("cluster");
+const http = require("http");
+const os = require("os");
+const path = require("path");
+const express = require("express");
+const { ExpressPeerServer } = require("peer");
+const { MemoryRoutingStore, serveClusterRouting } = require("./routing");
+
+const PORT = parseInt(process.env.WEB_PORT || "8000");
+const PEER_PORT = parseInt(process.env.PEER_PORT || String(PORT + 1));
+const WORKERS = parseInt(process.env.WORKERS || String(os.cpus().length));
+
+const store = new MemoryRoutingStore();
+
+cluster.setupMaster({
+    exec: path.resolve(__dirname, "server.js")
+});
+
+/**
+ * Start a worker process.
+ */
+function fork() {
+    const worker = cluster.fork({ PEER_SERVER: "false" });
+    serveClusterRouting(worker, store);
+    worker.on("exit", (code, signal) => {
+        console.warn("Worker " + worker.id + " exited (" + (signal || code) + "), starting a new worker");
+        fork();
+    });
+}
+
+for (let i = 0; i < WORKERS; i++) {
+    fork();
+}
+
+// === Peer Server ===
+
+const app = express();
+const peerHttpServer = http.createServer(app);
+app.use(ExpressPeerServer(peerHttpServer, {
+    proxied: true,
+    debug: true,
+    path: '/peer',
+    ssl: {}
+}));
+peerHttpServer.listen(PEER_PORT);
+
+console.log("Started " + WORKERS + " workers on port " + PORT + ", peer server listening on port " + PEER_PORT);
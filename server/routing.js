@@ -0,0 +1,366 @@
+/**
+ * Routing between several svcraft-audio websocket server processes (nodes) that
+ * run behind the same URL.
+ * <p>
+ * A plugin and the users of that plugin may be connected to different nodes, so
+ * the nodes share a routing store that knows on which node every server, user
+ * and forwarding service is connected, and that can deliver messages from one
+ * node to another.
+ * <p>
+ * The store only needs a few key-value operations and publish/subscribe, which
+ * makes it easy to replace with a networked store when the nodes run on
+ * different machines. The stores in this file keep everything in memory:
+ * {@link MemoryRoutingStore} for a single process, and
+ * {@link ClusterRoutingStore} for worker processes started by cluster.js, where
+ * the primary process holds the memory store.
+ */
+
+/**
+ * A store shared by all nodes.
+ * @abstract
+ */
+class RoutingStore {
+    /**
+     * Get a value.
+     *
+     * @param {string} key The key.
+     * @returns {Promise<any>} The value, or null if not set.
+     * @abstract
+     */
+    get(key) {
+        throw new Error("get is an abstract method that needs to be implemented.");
+    }
+
+    /**
+     * Set a value.
+     *
+     * @param {string} key The key.
+     * @param {any} value The value, must be serializable as json.
+     * @returns {Promise<void>}
+     * @abstract
+     */
+    set(key, value) {
+        throw new Error("set is an abstract method that needs to be implemented.");
+    }
+
+    /**
+     * Delete a value.
+     *
+     * @param {string} key The key.
+     * @param {any} [expected] If specified, the value is only deleted if it is
+     *                         equal to this value.
+     * @returns {Promise<boolean>} Whether the value was deleted.
+     * @abstract
+     */
+    delete(key, expected) {
+        throw new Error("delete is an abstract method that needs to be implemented.");
+    }
+
+    /**
+     * Send a message to a node.
+     *
+     * @param {string} nodeId The id of the node.
+     * @param {object} message The message, must be serializable as json.
+     * @abstract
+     */
+    publish(nodeId, message) {
+        throw new Error("publish is an abstract method that needs to be implemented.");
+    }
+
+    /**
+     * Send a message to all nodes, including this node.
+     *
+     * @param {object} message The message, must be serializable as json.
+     * @abstract
+     */
+    broadcast(message) {
+        throw new Error("broadcast is an abstract method that needs to be implemented.");
+    }
+
+    /**
+     * Receive the messages sent to a node.
+     *
+     * @param {string} nodeId The id of the node.
+     * @param {(message: object) => void} handler The function to call with the messages.
+     * @abstract
+     */
+    subscribe(nodeId, handler) {
+        throw new Error("subscribe is an abstract method that needs to be implemented.");
+    }
+}
+
+/**
+ * A routing store that keeps everything in the memory of this process.
+ */
+class MemoryRoutingStore extends RoutingStore {
+    constructor() {
+        super();
+        /**
+         * The values.
+         * @type {Map<string, any>}
+         */
+        this.values = new Map();
+        /**
+         * The message handler of each node.
+         * @type {Map<string, (message: object) => void>}
+         */
+        this.subscribers = new Map();
+    }
+
+    get(key) {
+        return Promise.resolve(this.values.has(key) ? this.values.get(key) : null);
+    }
+
+    set(key, value) {
+        this.values.set(key, value);
+        return Promise.resolve();
+    }
+
+    delete(key, expected) {
+        if (!this.values.has(key)) {
+            return Promise.resolve(false);
+        }
+        if (expected !== undefined && JSON.stringify(this.values.get(key)) != JSON.stringify(expected)) {
+            return Promise.resolve(false);
+        }
+        this.values.delete(key);
+        return Promise.resolve(true);
+    }
+
+    publish(nodeId, message) {
+        const handler = this.subscribers.get(nodeId);
+        if (handler != null) {
+            // Deliver asynchronously, like a networked store would
+            setImmediate(() => handler(message));
+        } else {
+            console.warn("Tried to send message to node that isn't subscribed: " + nodeId);
+        }
+    }
+
+    broadcast(message) {
+        for (const handler of this.subscribers.values()) {
+            setImmediate(() => handler(message));
+        }
+    }
+
+    subscribe(nodeId, handler) {
+        this.subscribers.set(nodeId, handler);
+    }
+
+    /**
+     * Stop delivering messages to a node.
+     *
+     * @param {string} nodeId The id of the node.
+     */
+    unsubscribe(nodeId) {
+        this.subscribers.delete(nodeId);
+    }
+}
+
+/**
+ * A routing store used by worker processes that forwards all operations to the
+ * primary process over the cluster IPC channel.
+ *
+ * @see serveClusterRouting
+ */
+class ClusterRoutingStore extends RoutingStore {
+    constructor() {
+        super();
+        /**
+         * The requests that are waiting for a reply, by request id.
+         * @type {Map<number, (value: any) => void>}
+         */
+        this.requests = new Map();
+        this.nextRequestId = 0;
+        /**
+         * The message handler of this node.
+         * @type {((message: object) => void) | null}
+         */
+        this.handler = null;
+
+        process.on("message", message => {
+            if (message == null || message.routing == null) {
+                return;
+            }
+            if (message.routing == "reply") {
+                const resolve = this.requests.get(message.requestId);
+                this.requests.delete(message.requestId);
+                if (resolve != null) {
+                    resolve(message.value);
+                }
+            }
+            if (message.routing == "message" && this.handler != null) {
+                this.handler(message.message);
+            }
+        });
+    }
+
+    /**
+     * Send a request to the primary process.
+     *
+     * @param {object} request The request.
+     * @returns {Promise<any>} The value the primary process replied with.
+     */
+    request(request) {
+        return new Promise(resolve => {
+            const requestId = this.nextRequestId++;
+            this.requests.set(requestId, resolve);
+            process.send(Object.assign({ requestId }, request));
+        });
+    }
+
+    get(key) {
+        return this.request({ routing: "get", key });
+    }
+
+    set(key, value) {
+        return this.request({ routing: "set", key, value });
+    }
+
+    delete(key, expected) {
+        return this.request({ routing: "delete", key, expected });
+    }
+
+    publish(nodeId, message) {
+        process.send({ routing: "publish", nodeId, message });
+    }
+
+    broadcast(message) {
+        process.send({ routing: "broadcast", message });
+    }
+
+    subscribe(nodeId, handler) {
+        this.handler = handler;
+        process.send({ routing: "subscribe", nodeId });
+    }
+}
+
+/**
+ * Serve the routing requests of a worker process from the primary process.
+ *
+ * @param {import("cluster").Worker} worker The worker.
+ * @param {MemoryRoutingStore} store The store holding the routing.
+ */
+function serveClusterRouting(worker, store) {
+    worker.on("message", async request => {
+        if (request == null || request.routing == null) {
+            return;
+        }
+        let value = null;
+        switch (request.routing) {
+            case "get":
+                value = await store.get(request.key);
+                break;
+            case "set":
+                await store.set(request.key, request.value);
+                break;
+            case "delete":
+                value = await store.delete(request.key, request.expected);
+                break;
+            case "publish":
+                store.publish(request.nodeId, request.message);
+                return;
+            case "broadcast":
+                store.broadcast(request.message);
+                return;
+            case "subscribe":
+                store.subscribe(request.nodeId, message => {
+                    if (worker.isConnected()) {
+                        worker.send({ routing: "message", message });
+                    }
+                });
+                worker.on("exit", () => store.unsubscribe(request.nodeId));
+                return;
+        }
+        if (worker.isConnected()) {
+            worker.send({ routing: "reply", requestId: request.requestId, value });
+        }
+    });
+}
+
+/**
+ * Routes messages to the node where something (a server or user) is connected.
+ * <p>
+ * The node of every key is looked up once in the store and then cached until
+ * {@link setRoute} changes it. Messages sent while the node is being looked up
+ * are queued so that messages to the same key are delivered in order.
+ */
+class Router {
+    /**
+     * Create a new Router.
+     *
+     * @param {RoutingStore} store The routing store.
+     */
+    constructor(store) {
+        /**
+         * The routing store.
+         * @type {RoutingStore}
+         */
+        this.store = store;
+        /**
+         * The cached node id of each key.
+         * @type {Map<string, string>}
+         */
+        this.routes = new Map();
+        /**
+         * The messages waiting for the node of a key to be looked up.
+         * @type {Map<string, object[]>}
+         */
+        this.pending = new Map();
+    }
+
+    /**
+     * Update the cached node of a key.
+     *
+     * @param {string} key The key.
+     * @param {string | null} nodeId The node id, or null if the key is no longer
+     *                               connected anywhere.
+     */
+    setRoute(key, nodeId) {
+        if (nodeId == null) {
+            this.routes.delete(key);
+        } else {
+            this.routes.set(key, nodeId);
+        }
+    }
+
+    /**
+     * Send a message to the node where a key is connected.
+     *
+     * @param {string} key The key, for example "user:abc".
+     * @param {object} message The message to publish to the node.
+     */
+    route(key, message) {
+        const nodeId = this.routes.get(key);
+        if (nodeId != null) {
+            this.store.publish(nodeId, message);
+            return;
+        }
+        let queue = this.pending.get(key);
+        if (queue != null) {
+            queue.push(message);
+            return;
+        }
+        queue = [message];
+        this.pending.set(key, queue);
+        this.store.get(key).then(nodeId => {
+            this.pending.delete(key);
+            if (nodeId == null) {
+                console.warn("Tried to send " + queue.length + " message(s) to " + key + " which isn't connected");
+                return;
+            }
+            this.routes.set(key, nodeId);
+            for (const queuedMessage of queue) {
+                this.store.publish(nodeId, queuedMessage);
+            }
+        });
+    }
+}
+
+module.exports = {
+    RoutingStore,
+    MemoryRoutingStore,
+    ClusterRoutingStore,
+    serveClusterRouting,
+    Router
+};
@@ -2,31 +2,77 @@ const express = require("express");
 const http = require("http");
 const ws = require("ws");
 const path = require("path");
+const cluster = require("cluster");
 const { ExpressPeerServer } = require("peer");
+const { MemoryRoutingStore, ClusterRoutingStore, Router } = require("./routing");
 
 const PORT = process.env.WEB_PORT || 8000;
 
+/**
+ * The secret the forwarding service (SFU) needs to provide to connect. When not
+ * set, no forwarding service can connect and forwarded connections fall back to
+ * direct peer-to-peer connections.
+ */
+const SFU_SECRET = process.env.SFU_SECRET;
+
+/**
+ * The id of this node (process). Servers and users may be connected to different
+ * nodes, see routing.js.
+ */
+const NODE_ID = process.env.NODE_ID || (cluster.isWorker ? "worker-" + cluster.worker.id : "local");
+
+/**
+ * The time in milliseconds a user that is switching servers waits for the new
+ * server to adopt it, see ServerData#handOff.
+ */
+const HANDOFF_TIMEOUT = parseInt(process.env.HANDOFF_TIMEOUT || "30") * 1000;
+
+/**
+ * The longest time in seconds connect ids registered ahead of time are kept
+ * before they are used.
+ */
+const MAX_CONNECT_ID_TTL = 60 * 60;
+
+/**
+ * The size in bytes from which messages to the plugin and the browsers are
+ * compressed (permessage-deflate), when they support it. -1 disables
+ * compression. The messages are short and alike, so most of the gain comes from
+ * keeping the compression context between messages, see bench/deflate.js.
+ */
+const DEFLATE_THRESHOLD = parseInt(process.env.DEFLATE_THRESHOLD || "0");
+/**
+ * The zlib settings of the compression. Every connection keeps a compression
+ * context of about 2^(DEFLATE_WINDOW_BITS + 2) + 2^(DEFLATE_MEM_LEVEL + 9) bytes.
+ */
+const DEFLATE_LEVEL = parseInt(process.env.DEFLATE_LEVEL || "1");
+const DEFLATE_WINDOW_BITS = parseInt(process.env.DEFLATE_WINDOW_BITS || "12");
+const DEFLATE_MEM_LEVEL = parseInt(process.env.DEFLATE_MEM_LEVEL || "4");
+
 const app = express();
 const httpServer = http.createServer(app);
 
 // === Peer Server ===
 
-const peerServer = ExpressPeerServer(httpServer, {
-    proxied: true,
-    debug: true,
-    path: '/peer',
-    ssl: {}
-});
+// When running several worker processes the peer server runs in the primary
+// process instead, see cluster.js.
+let peerWebSocketListener = null;
+if (process.env.PEER_SERVER != "false") {
+    const peerServer = ExpressPeerServer(httpServer, {
+        proxied: true,
+        debug: true,
+        path: '/peer',
+        ssl: {}
+    });
 
-app.use(peerServer);
+    app.use(peerServer);
 
-// Remove the upgrade listener, because we are running two websockets on the same
-// http server we need to handle upgrades manually and forward it to the correct
-// websocket. See below.
-let peerWebSocketListener;
-for (const func of httpServer.listeners("upgrade")) {
-    httpServer.removeListener("upgrade", func);
-    peerWebSocketListener = func;
+    // Remove the upgrade listener, because we are running two websockets on the same
+    // http server we need to handle upgrades manually and forward it to the correct
+    // websocket. See below.
+    for (const func of httpServer.listeners("upgrade")) {
+        httpServer.removeListener("upgrade", func);
+        peerWebSocketListener = func;
+    }
 }
 
 // === Static HTTP Server ===
@@ -46,17 +92,30 @@ app.post("/heartbeat", (request, response) => {
 // === Web Socket ===
 
 /**
- * A list of servers that have been registered on this svcraft-audio websocket.
+ * The routing store shared with the other nodes. Worker processes started by
+ * cluster.js use the store of the primary process, a single process keeps the
+ * routing in its own memory.
+ * @type {import("./routing").RoutingStore}
+ */
+const routing = cluster.isWorker ? new ClusterRoutingStore() : new MemoryRoutingStore();
+
+/**
+ * Routes messages to servers and users that are connected to other nodes.
+ * @type {Router}
+ */
+const router = new Router(routing);
+
+/**
+ * A list of servers that are connected to this node.
  * @type {ServerData[]}
  */
 const servers = [];
 
 /**
- * A list of connect ids that clients can use to connect. Holds information about
- * what server to connect to and the username of the player.
- * @type {ConnectIdData[]}
+ * The users that are connected to this node, by user id.
+ * @type {Map<string, ConnectedUser>}
  */
-const connectIds = [];
+const users = new Map();
 
 /**
  * A map of a websocket to a connection handler. Is used to send incoming messages
@@ -65,10 +124,27 @@ const connectIds = [];
  */
 const connections = new Map();
 
-const websocketServer = new ws.Server({ noServer: true });
+/**
+ * The forwarding service that is connected, or null if there is none. The
+ * forwarding service may be connected to another node.
+ * @type {ForwarderData | RemoteForwarder | null}
+ */
+let forwarder = null;
+
+const websocketServer = new ws.Server({
+    noServer: true,
+    perMessageDeflate: DEFLATE_THRESHOLD < 0 ? false : {
+        threshold: DEFLATE_THRESHOLD,
+        serverMaxWindowBits: DEFLATE_WINDOW_BITS,
+        zlibDeflateOptions: {
+            level: DEFLATE_LEVEL,
+            memLevel: DEFLATE_MEM_LEVEL
+        }
+    }
+});
 
 httpServer.on("upgrade", function(request, socket, head) {
-    if (request.url && request.url.startsWith("/peer")) {
+    if (request.url && request.url.startsWith("/peer") && peerWebSocketListener != null) {
         // A connection to the peer, let the peer server handle the request
         peerWebSocketListener(request, socket, head);
     } else {
@@ -81,9 +157,9 @@ httpServer.on("upgrade", function(request, socket, head) {
 });
 
 /**
- * Get a server by id.
+ * Get a server connected to this node by id.
  * 
- * @param {number} id The id of the server to get.
+ * @param {string} id The id of the server to get.
  * @returns {ServerData | null} The found server, or null.
  */
 function getServerById(id) {
@@ -96,50 +172,136 @@ function getServerById(id) {
 }
 
 /**
- * Get a server by websocket.
+ * Register in the routing store that something is connected to this node.
  * 
- * @param {ws} websocket The websocket to get the server for.
- * @returns {ServerData | null} The found server, or null.
+ * @param {string} key The routing key, for example "user:abc".
  */
- function getServerByWebsocket(websocket) {
-    for (const server of servers) {
-        if (server.websocket == websocket) {
-            return server;
+function claimRoute(key) {
+    routing.set(key, NODE_ID);
+    routing.broadcast({ type: "route", key, nodeId: NODE_ID });
+}
+
+/**
+ * Remove something that was connected to this node from the routing store,
+ * unless it has connected to another node since.
+ * 
+ * @param {string} key The routing key, for example "user:abc".
+ * @returns {Promise<boolean>} Whether the route was removed.
+ */
+function releaseRoute(key) {
+    return routing.delete(key, NODE_ID).then(deleted => {
+        if (deleted) {
+            routing.broadcast({ type: "route", key, nodeId: null });
         }
+        return deleted;
+    });
+}
+
+/**
+ * Send a message to a server (plugin) that may be connected to another node.
+ * 
+ * @param {string} serverId The id of the server.
+ * @param {string} message The message to send.
+ */
+function sendToServer(serverId, message) {
+    const server = getServerById(serverId);
+    if (server != null) {
+        server.send(message);
+    } else {
+        router.route("server:" + serverId, { type: "toServer", serverId, message });
     }
-    return null;
 }
 
 /**
- * Get a ConnectIdData from a connect id.
+ * Send a message from the server (plugin) to a user that may be connected to
+ * another node.
  * 
- * @param {string} id The connect id.
- * @returns {ConnectIdData | null} The ConnectIdData instance, or null if none was found.
+ * @param {string} userId The id of the user.
+ * @param {string} message The message to send.
  */
-function getConnectId(id) {
-    for (const connectId of connectIds) {
-        if (connectId.connectId == id) {
-            return connectId;
-        }
+function sendToUser(userId, message) {
+    const user = users.get(userId);
+    if (user != null) {
+        user.sendFromServer(message);
+    } else {
+        router.route("user:" + userId, { type: "toUser", userId, message });
     }
-    return null;
 }
 
 /**
- * Get a ConnectedUser instance from a websocket.
+ * Send a message to all users of a server on all nodes.
  * 
- * @param {ws} websocket The websocket to get the user for.
- * @returns {ConnectedUser | null} The ConnectedUser instance, or null if none is found.
+ * @param {string} serverId The id of the server.
+ * @param {string} message The message to send.
  */
-function getConnectedUserByWebsocket(websocket) {
-    for (const server of servers) {
-        for (const connectedUser of server.connectedUsers) {
-            if (connectedUser.websocket == websocket) {
-                return connectedUser;
-            }
+function sendToServerUsers(serverId, message) {
+    sendToLocalServerUsers(serverId, message);
+    routing.broadcast({ type: "toServerUsers", origin: NODE_ID, serverId, message });
+}
+
+/**
+ * Send a message to the users of a server that are connected to this node.
+ * 
+ * @param {string} serverId The id of the server.
+ * @param {string} message The message to send.
+ */
+function sendToLocalServerUsers(serverId, message) {
+    for (const user of users.values()) {
+        if (user.serverId == serverId && user.websocket.readyState == 1) {
+            user.websocket.send(message);
         }
     }
-    return null;
+}
+
+/**
+ * Make a user that is switching servers wait for a new server to adopt it. The
+ * user may be connected to another node.
+ * 
+ * @param {string} userId The id of the user.
+ */
+function startHandOff(userId) {
+    const user = users.get(userId);
+    if (user != null) {
+        user.startHandOff();
+    } else {
+        router.route("user:" + userId, { type: "handOff", userId });
+    }
+}
+
+/**
+ * Move a user that is switching servers to the new server. The user may be
+ * connected to another node.
+ * 
+ * @param {string} userId The id of the user.
+ * @param {string} username The username of the player.
+ * @param {string} serverId The id of the new server.
+ */
+function adoptUser(userId, username, serverId) {
+    const user = users.get(userId);
+    if (user != null) {
+        user.adopt(username, serverId);
+    } else {
+        router.route("user:" + userId, { type: "adopt", userId, username, serverId });
+    }
+}
+
+/**
+ * Delete a value from the routing store after a while, unless it has been
+ * changed since.
+ * 
+ * @param {string} key The key.
+ * @param {any} value The value that was set.
+ * @param {(() => void) | null} [onExpire] Called if the value expired.
+ * @param {number} [timeout] The time in milliseconds, HANDOFF_TIMEOUT by default.
+ */
+function expireLater(key, value, onExpire, timeout = HANDOFF_TIMEOUT) {
+    setTimeout(() => {
+        routing.delete(key, value).then(deleted => {
+            if (deleted && onExpire != null) {
+                onExpire();
+            }
+        });
+    }, timeout);
 }
 
 /**
@@ -179,38 +341,16 @@ class ServerData extends ConnectionHandler {
          * @type {ws}
          */
         this.websocket = websocket;
-        /**
-         * A list of users that are connected to this server.
-         * @type {ConnectedUser[]}
-         */
-        this.connectedUsers = [];
     }
 
     /**
-     * Get a connected user by id.
+     * Send a message to the server.
      * 
-     * @param {string} userId The id of the user to get.
-     * @returns {ConnectedUser | null} The connected user, or null if not found.
+     * @param {string} message The message to send.
      */
-    getConnectedUserById(userId) {
-        for (const connectedUser of this.connectedUsers) {
-            if (connectedUser.id == userId) {
-                return connectedUser;
-            }
-        }
-        return null;
-    }
-
-    /**
-     * Send a message to all connected users.
-     * 
-     * @param {string} message The message to send to all connected users.
-     */
-    sendToAll(message) {
-        for (const connectedUser of this.connectedUsers) {
-            if (connectedUser.websocket.readyState == 1) {
-                connectedUser.websocket.send(message);
-            }
+    send(message) {
+        if (this.websocket.readyState == this.websocket.OPEN) {
+            this.websocket.send(message);
         }
     }
 
@@ -225,12 +365,7 @@ class ServerData extends ConnectionHandler {
             const match = /^To (?<userId>[A-z0-9-]+): (?<userMessage>.*)/.exec(message);
             const { userId, userMessage } = match.groups;
 
-            const user = this.getConnectedUserById(userId);
-            if (user != null) {
-                user.websocket.send(userMessage);
-            } else {
-                console.warn("Tried to send message to user that wasn't connected: " + userId);
-            }
+            sendToUser(userId, userMessage);
         }
 
         // Creation of new connect ids
@@ -238,64 +373,227 @@ class ServerData extends ConnectionHandler {
             const match = /New connect id: (?<connectId>[A-z0-9]+) with user id (?<userId>[A-z0-9-]+) and with username: (?<username>.+)/.exec(message);
             const { connectId, userId, username } = match.groups;
 
-            const data = new ConnectIdData(connectId, userId, username, this);
-            connectIds.push(data);
+            /** @type {ConnectIdData} */
+            const data = { userId, username, serverId: this.id };
+            routing.get("connectId:" + connectId).then(existing => {
+                if (existing != null && existing.serverId != this.id) {
+                    this.send("Connect id taken: " + connectId);
+                    return;
+                }
+                routing.set("connectId:" + connectId, data);
+            });
+        }
+
+        // Connect ids registered ahead of time, see ConnectIdPool in the plugin
+        if (message.startsWith("New connect ids for ")) {
+            const match = /New connect ids for (?<seconds>[0-9]+) seconds: (?<connectIds>[A-z0-9 ]+)/.exec(message);
+            const timeout = Math.min(parseInt(match.groups.seconds), MAX_CONNECT_ID_TTL) * 1000;
+
+            /** @type {ConnectIdData} */
+            const data = { userId: null, username: null, serverId: this.id };
+            for (const connectId of match.groups.connectIds.split(" ")) {
+                routing.get("connectId:" + connectId).then(existing => {
+                    if (existing != null) {
+                        this.send("Connect id taken: " + connectId);
+                        return;
+                    }
+                    routing.set("connectId:" + connectId, data);
+                    // Deleted unless the id has been used by then
+                    expireLater("connectId:" + connectId, data, null, timeout);
+                });
+            }
         }
 
         // Resync
         if (message == "resync") {
-            this.sendToAll("resync");
+            sendToServerUsers(this.id, "resync");
         }
 
         // peers info
         if (message == "peersinfo") {
-            this.sendToAll("peersinfo");
+            sendToServerUsers(this.id, "peersinfo");
+        }
+
+        // A player with a user is switching to another server
+        if (message.startsWith("Hand off ")) {
+            const match = /Hand off (?<userId>[A-z0-9-]+) for (?<username>.+)/.exec(message);
+            const { userId, username } = match.groups;
+
+            this.handOff(userId, username).catch(e => {
+                console.error("Error while handing off user");
+                console.error(e);
+            });
+        }
+
+        // A player joined the server, it may be switching from another server
+        if (message.startsWith("Player joined ")) {
+            const username = message.substring("Player joined ".length);
+
+            this.playerJoined(username).catch(e => {
+                console.error("Error while adopting user");
+                console.error(e);
+            });
         }
     }
+
+    /**
+     * Hand off a user to the server the player is switching to. The user keeps its
+     * websocket and user id, and is adopted by the new server when the player
+     * joins it, so that the player does not have to open a new link.
+     * <p>
+     * The player may join the new server before or after leaving this server.
+     * 
+     * @param {string} userId The id of the user.
+     * @param {string} username The username of the player.
+     */
+    async handOff(userId, username) {
+        startHandOff(userId);
+
+        const joinedServerId = await routing.get("joined:" + username);
+        if (joinedServerId != null && joinedServerId != this.id
+            && await routing.delete("joined:" + username, joinedServerId)) {
+            // The player already joined the new server
+            adoptUser(userId, username, joinedServerId);
+            return;
+        }
+
+        // Wait for the player to join the new server
+        const handOff = { userId, serverId: this.id };
+        await routing.set("handoff:" + username, handOff);
+        expireLater("handoff:" + username, handOff, () => {
+            // The player didn't join another server
+            sendToUser(userId, "You left the game, goodbye");
+        });
+    }
+
+    /**
+     * Adopt the user of a player that joined this server if the player is
+     * switching from another server.
+     * 
+     * @param {string} username The username of the player.
+     */
+    async playerJoined(username) {
+        const handOff = await routing.get("handoff:" + username);
+        if (handOff != null && handOff.serverId != this.id
+            && await routing.delete("handoff:" + username, handOff)) {
+            adoptUser(handOff.userId, username, this.id);
+            return;
+        }
+
+        // The old server may hand off the user after the player joined here
+        await routing.set("joined:" + username, this.id);
+        expireLater("joined:" + username, this.id);
+    }
 }
 
 /**
  * An id that clients use to connect. Holds information about what server to
- * connect to and the username of the player.
+ * connect to and the username of the player. Stored in the routing store so that
+ * users can connect to another node than the server.
+ * 
+ * @typedef {object} ConnectIdData
+ * @property {string | null} userId The user id, null if the connect id was
+ *                                  registered ahead of time and is not used yet.
+ * @property {string | null} username The username of the player, or null.
+ * @property {string} serverId The id of the server to connect the user to.
  */
-class ConnectIdData {
+
+/**
+ * The forwarding service (SFU). Users in dense clusters upload their microphone
+ * once to the forwarding service, which forwards it to the users that should
+ * hear them. See web/forwarder.html.
+ */
+class ForwarderData extends ConnectionHandler {
     /**
-     * Create a new ConnectIdData.
+     * Create a new ForwarderData.
      * 
-     * @param {string} connectId The connect id.
-     * @param {string} userId The user id.
-     * @param {string} username The username of the player.
-     * @param {ServerData} server The server to connect the user to.
+     * @param {ws} websocket The connection to the forwarding service.
+     * @param {string} peerId The peer id of the forwarding service.
      */
-    constructor(connectId, userId, username, server) {
+    constructor(websocket, peerId) {
+        super();
         /**
-         * The connect id.
-         * @type {string}
+         * The websocket connection to the forwarding service.
+         * @type {ws}
          */
-        this.connectId = connectId;
+        this.websocket = websocket;
         /**
-         * The user id.
+         * The peer id of the forwarding service, users call this peer to upload
+         * their microphone.
          * @type {string}
          */
-        this.userId = userId;
+        this.peerId = peerId;
+    }
+
+    /**
+     * Check whether the forwarding service is connected.
+     * @returns {boolean} Whether the forwarding service is connected.
+     */
+    isOpen() {
+        return this.websocket.readyState == this.websocket.OPEN;
+    }
+
+    /**
+     * Send a message to the forwarding service.
+     * 
+     * @param {string} message The message to send.
+     */
+    send(message) {
+        if (this.isOpen()) {
+            this.websocket.send(message);
+        }
+    }
+
+    /**
+     * Called when the forwarding service sends a message to the svcraft-audio
+     * websocket server.
+     * 
+     * @param {string} message The message.
+     */
+    onMessage(message) {
+        // The forwarding service only logs, which is already done.
+    }
+}
+
+/**
+ * The forwarding service when it is connected to another node.
+ */
+class RemoteForwarder {
+    /**
+     * Create a new RemoteForwarder.
+     * 
+     * @param {string} nodeId The id of the node the forwarding service is connected to.
+     * @param {string} peerId The peer id of the forwarding service.
+     */
+    constructor(nodeId, peerId) {
         /**
-         * The username of the player.
+         * The id of the node the forwarding service is connected to.
          * @type {string}
          */
-        this.username = username;
+        this.nodeId = nodeId;
         /**
-         * The server to connect the user to.
-         * @type {ServerData}
+         * The peer id of the forwarding service.
+         * @type {string}
          */
-        this.server = server;
+        this.peerId = peerId;
+    }
+
+    /**
+     * Check whether the forwarding service is connected. The node tells all
+     * nodes when it disconnects.
+     * @returns {boolean} Always true.
+     */
+    isOpen() {
+        return true;
     }
 
     /**
-     * Check whether this connect id is still valid.
-     * @returns {boolean} Whether this connect id is valid.
+     * Send a message to the forwarding service.
+     * 
+     * @param {string} message The message to send.
      */
-    isValid() {
-        return this.server.websocket.readyState == this.server.websocket.OPEN;
+    send(message) {
+        routing.publish(this.nodeId, { type: "toForwarder", message });
     }
 }
 
@@ -308,9 +606,9 @@ class ConnectedUser extends ConnectionHandler {
      * 
      * @param {ws} websocket The web socket to the user.
      * @param {string} id The id of the user.
-     * @param {ServerData} server The server this user is connected to.
+     * @param {string} serverId The id of the server this user is connected to.
      */
-    constructor(websocket, id, server) {
+    constructor(websocket, id, serverId) {
         super();
         /**
          * The web socket to the user.
@@ -325,10 +623,69 @@ class ConnectedUser extends ConnectionHandler {
          */
         this.id = id;
         /**
-         * The server this user is connected to.
-         * @type {ServerData}
+         * The id of the server this user is connected to. The server may be
+         * connected to another node. Null while the player is switching servers.
+         * @type {string | null}
          */
-        this.server = server;
+        this.serverId = serverId;
+        /**
+         * The ids of the users whose audio is forwarded to this user by the
+         * forwarding service.
+         * @type {Set<string>}
+         */
+        this.forwardedUsers = new Set();
+    }
+
+    /**
+     * Send a message from the server (plugin) to this user.
+     * <p>
+     * Connections that the plugin wants to route through the forwarding service
+     * are subscribed here, so that users can't subscribe to the audio of users
+     * they should not hear. If no forwarding service is connected they fall back
+     * to direct peer-to-peer connections.
+     * 
+     * @param {string} message The message to send.
+     */
+    sendFromServer(message) {
+        const sfuMatch = /^(?<command>Connect to|Wait for) (?<otherId>[A-z0-9-]+) via sfu$/.exec(message);
+        if (sfuMatch != null) {
+            const { command, otherId } = sfuMatch.groups;
+            if (forwarder != null && forwarder.isOpen()) {
+                this.forwardedUsers.add(otherId);
+                this.websocket.send("Sfu forwarder " + forwarder.peerId);
+                forwarder.send("Subscribe " + this.id + " to " + otherId);
+            } else {
+                message = command + " " + otherId;
+            }
+        }
+
+        if (message.startsWith("Disconnect ")) {
+            const otherId = message.substring("Disconnect ".length);
+            if (this.forwardedUsers.delete(otherId) && forwarder != null) {
+                forwarder.send("Unsubscribe " + this.id + " from " + otherId);
+            }
+        }
+
+        this.websocket.send(message);
+    }
+
+    /**
+     * Detach this user from its server while the player is switching servers.
+     */
+    startHandOff() {
+        this.serverId = null;
+        this.websocket.send("Switching server");
+    }
+
+    /**
+     * Attach this user to the server the player switched to.
+     * 
+     * @param {string} username The username of the player.
+     * @param {string} serverId The id of the new server.
+     */
+    adopt(username, serverId) {
+        this.serverId = serverId;
+        sendToServer(serverId, "User connected with id: " + this.id + " and username: " + username);
     }
 
     /**
@@ -337,28 +694,140 @@ class ConnectedUser extends ConnectionHandler {
      * @param {string} message The message.
      */
     onMessage(message) {
+        if (this.serverId == null) {
+            // Switching server
+            return;
+        }
+
         if (message.startsWith("Warning ")) {
-            if (this.server != null) {
-                const match = /Warning (?<warning>.+)/.exec(message);
-                const { warning } = match.groups;
-                this.server.websocket.send("Warning from user " + this.id + ": " + warning);
-            }
+            const match = /Warning (?<warning>.+)/.exec(message);
+            const { warning } = match.groups;
+            sendToServer(this.serverId, "Warning from user " + this.id + ": " + warning);
         }
 
         if (message.startsWith("connected-peers ")) {
-            if (this.server.websocket.readyState == this.server.websocket.OPEN) {
-                this.server.websocket.send("Peer info from " + this.id + ": " + message.substring("connected-peers ".length));
-            }
+            sendToServer(this.serverId, "Peer info from " + this.id + ": " + message.substring("connected-peers ".length));
         }
 
         if (message == "Heartbeat response") {
-            if (this.server.websocket.readyState == this.server.websocket.OPEN) {
-                this.server.websocket.send("Heartbeat response from " + this.id);
-            }
+            sendToServer(this.serverId, "Heartbeat response from " + this.id);
+        }
+
+        if (message == "Speaking" || message == "Silent") {
+            sendToServer(this.serverId, message + " " + this.id);
         }
     }
 }
 
+/**
+ * Handle a user that wants to connect using a connect id. The connect id may
+ * have been created by a server connected to another node.
+ * 
+ * @param {ws} websocket The websocket to the user.
+ * @param {string} connectId The connect id.
+ */
+async function connectUser(websocket, connectId) {
+    /** @type {ConnectIdData | null} */
+    const connectIdData = await routing.get("connectId:" + connectId);
+    const serverNode = connectIdData != null ? await routing.get("server:" + connectIdData.serverId) : null;
+
+    if (websocket.readyState != websocket.OPEN) {
+        return;
+    }
+    if (connectIdData == null || connectIdData.userId == null || serverNode == null) {
+        websocket.send("Invalid link");
+        websocket.close();
+        return;
+    }
+
+    const user = new ConnectedUser(websocket, connectIdData.userId, connectIdData.serverId);
+    users.set(user.id, user);
+    connections.set(websocket, user);
+    claimRoute("user:" + user.id);
+
+    // Notify server
+    sendToServer(user.serverId, "User connected with id: " + connectIdData.userId + " and username: " + connectIdData.username);
+
+    // Notify user
+    websocket.send("Welcome, your user id: " + connectIdData.userId + " and your username is: " + connectIdData.username);
+}
+
+// Messages from other nodes
+
+routing.subscribe(NODE_ID, function(message) {
+    switch (message.type) {
+        case "toUser": {
+            const user = users.get(message.userId);
+            if (user != null) {
+                user.sendFromServer(message.message);
+            } else {
+                console.warn("Tried to send message to user that wasn't connected: " + message.userId);
+            }
+            break;
+        }
+        case "toServer": {
+            const server = getServerById(message.serverId);
+            if (server != null) {
+                server.send(message.message);
+            } else {
+                console.warn("Tried to send message to server that wasn't connected: " + message.serverId);
+            }
+            break;
+        }
+        case "handOff": {
+            const user = users.get(message.userId);
+            if (user != null) {
+                user.startHandOff();
+            }
+            break;
+        }
+        case "adopt": {
+            const user = users.get(message.userId);
+            if (user != null) {
+                user.adopt(message.username, message.serverId);
+            } else {
+                console.warn("Tried to adopt user that wasn't connected: " + message.userId);
+            }
+            break;
+        }
+        case "toServerUsers":
+            if (message.origin != NODE_ID) {
+                sendToLocalServerUsers(message.serverId, message.message);
+            }
+            break;
+        case "toForwarder":
+            if (forwarder instanceof ForwarderData) {
+                forwarder.send(message.message);
+            }
+            break;
+        case "route":
+            router.setRoute(message.key, message.nodeId);
+            break;
+        case "forwarder":
+            if (message.nodeId == NODE_ID) {
+                break;
+            }
+            if (message.nodeId == null) {
+                // Only forget the forwarding service if it hasn't connected elsewhere since
+                if (forwarder instanceof RemoteForwarder && forwarder.nodeId == message.previousNodeId) {
+                    forwarder = null;
+                }
+            } else {
+                // There can only be one forwarding service
+                if (forwarder instanceof ForwarderData && forwarder.isOpen()) {
+                    forwarder.websocket.close();
+                }
+                forwarder = new RemoteForwarder(message.nodeId, message.peerId);
+            }
+            break;
+    }
+});
+
+routing.get("forwarder").then(data => {
+    if (data != null && data.nodeId != NODE_ID && forwarder == null) {
+        forwarder = new RemoteForwarder(data.nodeId, data.peerId);
+    }
+});
 
 // Main handler
 
@@ -384,7 +853,6 @@ websocketServer.on("connection", function(websocket) {
                         // A new server
                         server = new ServerData(serverId, websocket);
                         servers.push(server);
-                        connections.set(websocket, server);
                     } else {
                         // Replace the server connection
                         if (server.websocket.readyState == server.websocket.OPEN) {
@@ -392,6 +860,30 @@ websocketServer.on("connection", function(websocket) {
                         }
                         server.websocket = websocket;
                     }
+                    connections.set(websocket, server);
+                    claimRoute("server:" + serverId);
+
+                    // Users stay connected while the plugin reloads
+                    sendToServerUsers(serverId, "Has plugin connection? true");
+                }
+
+                // The forwarding service
+                if (message.startsWith("I am a forwarder")) {
+                    const match = /I am a forwarder with peer id (?<peerId>[A-z0-9-]+), secret: (?<secret>.+)/.exec(message);
+                    const { peerId, secret } = match.groups;
+
+                    if (SFU_SECRET != null && secret == SFU_SECRET) {
+                        if (forwarder instanceof ForwarderData && forwarder.isOpen()) {
+                            forwarder.websocket.close();
+                        }
+                        forwarder = new ForwarderData(websocket, peerId);
+                        connections.set(websocket, forwarder);
+                        routing.set("forwarder", { nodeId: NODE_ID, peerId });
+                        routing.broadcast({ type: "forwarder", nodeId: NODE_ID, peerId });
+                        console.log("Forwarding service connected with peer id " + peerId);
+                    } else {
+                        websocket.close();
+                    }
                 }
 
                 // A new client (user)
@@ -399,23 +891,10 @@ websocketServer.on("connection", function(websocket) {
                     const match = /I am a user, connect id: (?<connectId>.+)/.exec(message);
                     const { connectId } = match.groups;
 
-                    const connectIdData = getConnectId(connectId);
-
-                    if (connectIdData != null && connectIdData.isValid()) {
-                        const server = connectIdData.server;
-                        const user = new ConnectedUser(websocket, connectIdData.userId, server);
-                        server.connectedUsers.push(user);
-                        connections.set(websocket, user);
-
-                        // Notify server
-                        server.websocket.send("User connected with id: " + connectIdData.userId + " and username: " + connectIdData.username);
-
-                        // Notify user
-                        websocket.send("Welcome, your user id: " + connectIdData.userId + " and your username is: " + connectIdData.username);
-                    } else {
-                        websocket.send("Invalid link");
-                        websocket.close();
-                    }
+                    connectUser(websocket, connectId).catch(e => {
+                        console.error("Error while connecting user");
+                        console.error(e);
+                    });
                 }
             }
         } catch (e) {
@@ -425,30 +904,46 @@ websocketServer.on("connection", function(websocket) {
     });
 
     websocket.on("close", function(code, reason) {
+        const handler = connections.get(websocket);
         connections.delete(websocket);
         
-        const user = getConnectedUserByWebsocket(websocket);
-        if (user != null) {
-            user.server.connectedUsers.splice(user.server.connectedUsers.indexOf(user), 1);
-            if (user.server.websocket != null && user.server.websocket.readyState == 1) {
-                // When a user gets kicked for being connected elsewhere another user with the
-                // same user id is about to connect and the plugin has already removed the user
-                // from the list of users, if the user(s) that got kicked disconnect would send
-                // "User disconnected" messages, chances are the new user would get disconnected
-                // and lost track of on the plugin. We therefore don't send user disconnected when
-                // the close reason is connected-elsewhere, the plugin has already removed the
-                // user from the user list, so it's fine.
-                if (reason != "connected-elsewhere") {
-                    user.server.websocket.send("User disconnected " + user.id);
-                }
+        if (handler instanceof ConnectedUser) {
+            const user = handler;
+            if (users.get(user.id) == user) {
+                users.delete(user.id);
+                releaseRoute("user:" + user.id);
+            }
+            if (forwarder != null) {
+                forwarder.send("User gone " + user.id);
+            }
+            // When a user gets kicked for being connected elsewhere another user with the
+            // same user id is about to connect and the plugin has already removed the user
+            // from the list of users, if the user(s) that got kicked disconnect would send
+            // "User disconnected" messages, chances are the new user would get disconnected
+            // and lost track of on the plugin. We therefore don't send user disconnected when
+            // the close reason is connected-elsewhere, the plugin has already removed the
+            // user from the user list, so it's fine.
+            if (reason != "connected-elsewhere" && user.serverId != null) {
+                sendToServer(user.serverId, "User disconnected " + user.id);
             }
         }
 
-        const server = getServerByWebsocket(websocket);
-        if (server != null) {
-            console.log("Plugin disconnected from " + server.id);
-            server.websocket = null;
-            server.sendToAll("Has plugin connection? false");
+        if (handler instanceof ForwarderData && forwarder == handler) {
+            console.log("Forwarding service disconnected");
+            forwarder = null;
+            routing.delete("forwarder", { nodeId: NODE_ID, peerId: handler.peerId });
+            routing.broadcast({ type: "forwarder", nodeId: null, previousNodeId: NODE_ID });
+        }
+
+        if (handler instanceof ServerData && handler.websocket == websocket) {
+            console.log("Plugin disconnected from " + handler.id);
+            servers.splice(servers.indexOf(handler), 1);
+            releaseRoute("server:" + handler.id).then(released => {
+                // Unless the plugin switched to another relay
+                if (released) {
+                    sendToServerUsers(handler.id, "Has plugin connection? false");
+                }
+            });
         }
     });
 });
@@ -456,4 +951,4 @@ websocketServer.on("connection", function(websocket) {
 // Start
 
 httpServer.listen(PORT);
-console.log("Server listening on port " + PORT);
\ No newline at end of file
+console.log("Server (node " + NODE_ID + ") listening on port " + PORT);
\ No newline at end of file
@@ -0,0 +1,332 @@
+/**
+ * Benchmark of the playback of many users in the browser, comparing the old
+ * playback, an audio element per user fed by its own panner, with the mixing
+ * graph in script.js, a gain node and a panner node per user in one audio
+ * context.
+ * <p>
+ * The users are simulated with pairs of local peer connections, so that their
+ * streams are remote WebRTC streams that are decoded like real calls. Their
+ * volumes change every UPDATE_INTERVAL like the plugin sends them, a part of the
+ * users are out of hearing range at zero volume.
+ * <p>
+ * The browser does not expose its cpu usage, so two things are measured: how
+ * much of the main thread is left, by counting how often a fixed piece of work
+ * can run compared to before the users were added, and the load of the audio
+ * rendering thread where the browser supports AudioContext.renderCapacity. The
+ * cpu usage of the tab in the task manager of the browser (Shift+Esc in Chrome)
+ * should be read alongside.
+ */
+
+/** The time in milliseconds between volume changes, like updateTaskInterval. */
+const UPDATE_INTERVAL = 1000;
+
+/** The time in milliseconds to measure each mode. */
+const MEASURE_TIME = 15000;
+
+/** The time in milliseconds to let a mode settle before measuring. */
+const SETTLE_TIME = 3000;
+
+/** The time constant in seconds of volume changes, like in script.js. */
+const VOLUME_SMOOTHING = 0.1;
+
+/** The time in milliseconds before a silent user is suspended, like in script.js. */
+const SUSPEND_DELAY = 500;
+
+/**
+ * The simulated users, with their remote stream.
+ * @type {{stream: MediaStream, close: function}[]}
+ */
+let remotes = [];
+
+/**
+ * The audio context that generates the microphone sound of the simulated users.
+ * @type {AudioContext}
+ */
+let generatorContext = null;
+
+function log(message) {
+    const output = document.getElementById("output");
+    output.textContent += message + "\n";
+    console.log(message);
+}
+
+function sleep(ms) {
+    return new Promise(resolve => setTimeout(resolve, ms));
+}
+
+// === Simulated users ===
+
+/**
+ * Create a microphone-like track: a tone with some noise.
+ */
+function createMicrophoneTrack() {
+    const context = generatorContext;
+    const oscillator = new OscillatorNode(context, { frequency: 180 + Math.random() * 120, type: "sawtooth" });
+    const noise = new AudioBufferSourceNode(context, { loop: true });
+    const buffer = context.createBuffer(1, context.sampleRate, context.sampleRate);
+    const data = buffer.getChannelData(0);
+    for (let i = 0; i < data.length; i++) {
+        data[i] = (Math.random() * 2 - 1) * 0.2;
+    }
+    noise.buffer = buffer;
+    const level = new GainNode(context, { gain: 0.1 });
+    const destination = context.createMediaStreamDestination();
+    oscillator.connect(level);
+    noise.connect(level);
+    level.connect(destination);
+    oscillator.start();
+    noise.start();
+    return destination.stream.getAudioTracks()[0];
+}
+
+/**
+ * Send a track over a pair of local peer connections.
+ *
+ * @returns {Promise<{stream: MediaStream, close: function}>} The remote stream.
+ */
+async function createRemote(track) {
+    const sender = new RTCPeerConnection();
+    const receiver = new RTCPeerConnection();
+    sender.onicecandidate = e => e.candidate && receiver.addIceCandidate(e.candidate);
+    receiver.onicecandidate = e => e.candidate && sender.addIceCandidate(e.candidate);
+    const stream = new Promise(resolve => receiver.ontrack = e => resolve(e.streams[0]));
+
+    sender.addTrack(track, new MediaStream([track]));
+    await sender.setLocalDescription(await sender.createOffer());
+    await receiver.setRemoteDescription(sender.localDescription);
+    await receiver.setLocalDescription(await receiver.createAnswer());
+    await sender.setRemoteDescription(receiver.localDescription);
+
+    return {
+        stream: await stream,
+        close() {
+            sender.close();
+            receiver.close();
+        }
+    };
+}
+
+async function createRemotes(count) {
+    generatorContext = new AudioContext();
+    const track = createMicrophoneTrack();
+    for (let i = 0; i < count; i++) {
+        remotes.push(await createRemote(track.clone()));
+    }
+}
+
+// === Playback ===
+
+function createPanner(context) {
+    return new PannerNode(context, {
+        panningModel: "HRTF",
+        distanceModel: "linear",
+        rolloffFactor: 0
+    });
+}
+
+/**
+ * The old playback: the stream is panned in the audio context and played by an
+ * audio element per user, with the volume set on the element.
+ */
+class ElementPlayer {
+    constructor(context, stream) {
+        this.sink = new Audio();
+        this.sink.muted = true;
+        this.sink.srcObject = stream;
+        this.panner = createPanner(context);
+        const destination = context.createMediaStreamDestination();
+        context.createMediaStreamSource(stream).connect(this.panner).connect(destination);
+        this.element = document.createElement("audio");
+        this.element.autoplay = true;
+        this.element.volume = 0;
+        this.element.srcObject = destination.stream;
+        document.body.appendChild(this.element);
+    }
+
+    setVolume(volume) {
+        this.element.volume = volume;
+    }
+
+    close() {
+        this.element.remove();
+        this.element.srcObject = null;
+        this.panner.disconnect();
+        this.sink.srcObject = null;
+    }
+}
+
+/**
+ * The mixing graph, the same as ConnectedUser in script.js.
+ */
+class GraphPlayer {
+    constructor(context, stream) {
+        this.stream = stream;
+        this.sink = new Audio();
+        this.sink.muted = true;
+        this.source = context.createMediaStreamSource(stream);
+        this.gain = new GainNode(context, { gain: 0 });
+        this.panner = createPanner(context);
+        this.gain.connect(this.panner).connect(context.destination);
+        this.volume = 0;
+        this.playing = false;
+        this.suspendTimeout = null;
+    }
+
+    setVolume(volume) {
+        this.volume = volume;
+        if (volume > 0) {
+            clearTimeout(this.suspendTimeout);
+            this.suspendTimeout = null;
+            if (!this.playing) {
+                this.playing = true;
+                this.sink.srcObject = this.stream;
+                this.source.connect(this.gain);
+            }
+        } else if (this.playing && this.suspendTimeout == null) {
+            this.suspendTimeout = setTimeout(() => {
+                this.suspendTimeout = null;
+                if (this.volume == 0) {
+                    this.stop();
+                }
+            }, SUSPEND_DELAY);
+        }
+        this.gain.gain.setTargetAtTime(volume, this.gain.context.currentTime, VOLUME_SMOOTHING);
+    }
+
+    stop() {
+        clearTimeout(this.suspendTimeout);
+        if (this.playing) {
+            this.playing = false;
+            this.source.disconnect();
+            this.sink.srcObject = null;
+            this.gain.gain.cancelScheduledValues(0);
+            this.gain.gain.setValueAtTime(0, this.gain.context.currentTime);
+        }
+    }
+
+    close() {
+        this.stop();
+        this.gain.disconnect();
+        this.panner.disconnect();
+    }
+}
+
+// === Measuring ===
+
+/**
+ * Count how many times a fixed piece of work runs on the main thread in a
+ * period, yielding to the event loop between runs.
+ */
+async function measureMainThread(duration) {
+    const channel = new MessageChannel();
+    const end = performance.now() + duration;
+    let runs = 0;
+    let sink = 0;
+    await new Promise(resolve => {
+        channel.port1.onmessage = () => {
+            for (let i = 0; i < 20000; i++) {
+                sink += Math.sqrt(i);
+            }
+            runs++;
+            if (performance.now() < end) {
+                channel.port2.postMessage(null);
+            } else {
+                resolve();
+            }
+        };
+        channel.port2.postMessage(null);
+    });
+    channel.port1.close();
+    return sink > 0 ? runs / (duration / 1000) : 0;
+}
+
+/**
+ * Start measuring the load of the audio rendering thread, if supported.
+ *
+ * @returns {function(): (string | null)} A function that stops measuring and
+ * describes the load.
+ */
+function measureRenderLoad(context) {
+    if (context == null || context.renderCapacity == null) {
+        return () => null;
+    }
+    const loads = [];
+    let peak = 0;
+    let underruns = 0;
+    const onUpdate = e => {
+        loads.push(e.averageLoad);
+        peak = Math.max(peak, e.peakLoad);
+        underruns = Math.max(underruns, e.underrunRatio);
+    };
+    context.renderCapacity.addEventListener("update", onUpdate);
+    context.renderCapacity.start({ updateInterval: 1 });
+    return () => {
+        context.renderCapacity.stop();
+        context.renderCapacity.removeEventListener("update", onUpdate);
+        const average = loads.reduce((a, b) => a + b, 0) / Math.max(loads.length, 1);
+        return "average " + (100 * average).toFixed(1) + "%, peak " + (100 * peak).toFixed(1)
+            + "%, underruns " + (100 * underruns).toFixed(2) + "%";
+    };
+}
+
+/**
+ * Play all simulated users in a mode, changing their volumes like the plugin,
+ * and measure.
+ */
+async function runMode(name, Player, silentShare, baseline) {
+    const context = new AudioContext();
+    await context.resume();
+    const players = remotes.map(remote => new Player(context, remote.stream));
+    const silent = Math.round(players.length * silentShare);
+    const update = () => {
+        players.forEach((player, i) => player.setVolume(i < silent ? 0 : 0.2 + Math.random() * 0.8));
+    };
+    update();
+    const interval = setInterval(update, UPDATE_INTERVAL);
+
+    await sleep(SETTLE_TIME);
+    const stopRenderLoad = measureRenderLoad(context);
+    const runs = await measureMainThread(MEASURE_TIME);
+    const renderLoad = stopRenderLoad();
+
+    clearInterval(interval);
+    players.forEach(player => player.close());
+    await context.close();
+
+    const busy = 100 * (1 - runs / baseline);
+    log(name.padEnd(10) + " main thread busy " + busy.toFixed(1).padStart(5) + "%"
+        + (renderLoad != null ? ", audio thread " + renderLoad : ""));
+}
+
+async function run() {
+    const count = parseInt(document.getElementById("users").value);
+    const silentShare = parseInt(document.getElementById("silent").value) / 100;
+    document.getElementById("run").disabled = true;
+    document.getElementById("output").textContent = "";
+
+    log("Measuring the main thread without users...");
+    const baseline = await measureMainThread(MEASURE_TIME / 3);
+
+    log("Connecting " + count + " simulated users...");
+    await createRemotes(count);
+    await sleep(SETTLE_TIME);
+    const connected = await measureMainThread(MEASURE_TIME / 3);
+    log("Connected, not played: main thread busy " + (100 * (1 - connected / baseline)).toFixed(1) + "%");
+
+    log("Each mode runs for " + (SETTLE_TIME + MEASURE_TIME) / 1000 + " seconds, "
+        + Math.round(silentShare * 100) + "% of the users are silent. Read the cpu usage in the task manager meanwhile.");
+    await runMode("elements", ElementPlayer, silentShare, baseline);
+    await runMode("graph", GraphPlayer, silentShare, baseline);
+
+    remotes.forEach(remote => remote.close());
+    remotes = [];
+    await generatorContext.close();
+    document.getElementById("run").disabled = false;
+    log("Done.");
+}
+
+window.addEventListener("DOMContentLoaded", function() {
+    document.getElementById("run").addEventListener("click", () => {
+        run().catch(e => log("Failed: " + e));
+    });
+});
@@ -0,0 +1,234 @@
+/**
+ * The forwarding service (SFU) for svcraft-audio.
+ *
+ * Users in dense clusters upload their microphone once to this peer, which then
+ * forwards the audio to each user that should hear them. The svcraft-audio
+ * websocket server tells the forwarding service who should hear who.
+ *
+ * The page can be opened in any browser (for example a headless browser running
+ * next to the svcraft-audio server, or a normal tab when testing locally) with
+ * the secret that the server was started with: /forwarder.html?secret=...
+ */
+
+/**
+ * The connection to the peer connection broker.
+ * @type {Peer}
+ */
+let peer;
+
+/**
+ * The connection to the svcraft-audio websocket.
+ * @type {WebSocket}
+ */
+let serverConnection;
+
+/**
+ * The calls from users that upload their microphone, by user id.
+ * @type {Map<string, Peer.MediaConnection>}
+ */
+const publishCalls = new Map();
+
+/**
+ * The microphone streams of users, by user id.
+ * @type {Map<string, MediaStream>}
+ */
+const publishedStreams = new Map();
+
+/**
+ * The subscriptions, the key is created by subscriptionKey. The value is the call
+ * that forwards the audio to the subscriber, or null if the publisher's stream
+ * is not available yet.
+ * @type {Map<string, Peer.MediaConnection | null>}
+ */
+const subscriptions = new Map();
+
+/**
+ * Get the key of a subscription.
+ * 
+ * @param {string} subscriberId The id of the user that hears the publisher.
+ * @param {string} publisherId The id of the user that is heard.
+ * @returns {string} The key.
+ */
+function subscriptionKey(subscriberId, publisherId) {
+    return subscriberId + ">" + publisherId;
+}
+
+/**
+ * Handle a call from a user that wants to upload their microphone.
+ * 
+ * @param {Peer.MediaConnection} call The call.
+ */
+function handlePublish(call) {
+    const userId = call.peer;
+    const existing = publishCalls.get(userId);
+    if (existing != null && existing != call) {
+        existing.close();
+    }
+    publishCalls.set(userId, call);
+    // Receive only
+    call.answer();
+
+    call.on("stream", function(stream) {
+        publishedStreams.set(userId, stream);
+        for (const [key, forwardCall] of subscriptions) {
+            const [subscriberId, publisherId] = key.split(">");
+            if (publisherId == userId && forwardCall == null) {
+                startForwarding(subscriberId, publisherId);
+            }
+        }
+        updateStatus();
+    });
+
+    call.on("close", function() {
+        if (publishCalls.get(userId) != call) {
+            return;
+        }
+        publishCalls.delete(userId);
+        publishedStreams.delete(userId);
+        // Keep the subscriptions so that they resume if the user publishes again
+        for (const [key, forwardCall] of subscriptions) {
+            if (key.endsWith(">" + userId) && forwardCall != null) {
+                subscriptions.set(key, null);
+                forwardCall.close();
+            }
+        }
+        updateStatus();
+    });
+}
+
+/**
+ * Start forwarding the audio of a publisher to a subscriber, if the stream of
+ * the publisher is available. Otherwise the subscription stays pending.
+ * 
+ * @param {string} subscriberId The id of the user that hears the publisher.
+ * @param {string} publisherId The id of the user that is heard.
+ */
+function startForwarding(subscriberId, publisherId) {
+    const key = subscriptionKey(subscriberId, publisherId);
+    const stream = publishedStreams.get(publisherId);
+    if (stream == null) {
+        subscriptions.set(key, null);
+        return;
+    }
+    const call = peer.call(subscriberId, stream, { metadata: { forwardedFrom: publisherId } });
+    subscriptions.set(key, call);
+    call.on("close", function() {
+        if (subscriptions.get(key) == call) {
+            subscriptions.delete(key);
+            updateStatus();
+        }
+    });
+}
+
+/**
+ * Stop forwarding the audio of a publisher to a subscriber.
+ * 
+ * @param {string} subscriberId The id of the user that hears the publisher.
+ * @param {string} publisherId The id of the user that is heard.
+ */
+function stopForwarding(subscriberId, publisherId) {
+    const key = subscriptionKey(subscriberId, publisherId);
+    const call = subscriptions.get(key);
+    subscriptions.delete(key);
+    if (call != null) {
+        call.close();
+    }
+}
+
+/**
+ * Handle an incomming message from the svcraft-audio websocket.
+ * 
+ * @param {string} message The message.
+ */
+function handleMessage(message) {
+    if (message.startsWith("Subscribe ")) {
+        const match = /Subscribe (?<subscriberId>[A-z0-9-]+) to (?<publisherId>[A-z0-9-]+)/.exec(message);
+        const { subscriberId, publisherId } = match.groups;
+        stopForwarding(subscriberId, publisherId);
+        startForwarding(subscriberId, publisherId);
+    }
+
+    if (message.startsWith("Unsubscribe ")) {
+        const match = /Unsubscribe (?<subscriberId>[A-z0-9-]+) from (?<publisherId>[A-z0-9-]+)/.exec(message);
+        const { subscriberId, publisherId } = match.groups;
+        stopForwarding(subscriberId, publisherId);
+    }
+
+    if (message.startsWith("User gone ")) {
+        const userId = message.substring("User gone ".length);
+        for (const key of Array.from(subscriptions.keys())) {
+            const [subscriberId, publisherId] = key.split(">");
+            if (subscriberId == userId || publisherId == userId) {
+                stopForwarding(subscriberId, publisherId);
+            }
+        }
+        const publishCall = publishCalls.get(userId);
+        if (publishCall != null) {
+            publishCall.close();
+        }
+    }
+
+    updateStatus();
+}
+
+/**
+ * Update the status table.
+ * 
+ * @param {string} [status] The new status, or undefined to keep the current one.
+ */
+function updateStatus(status) {
+    if (status != null) {
+        document.getElementById("forwarder-status").innerText = status;
+    }
+    document.getElementById("forwarder-publishers").innerText = publishedStreams.size;
+    document.getElementById("forwarder-subscriptions").innerText = subscriptions.size;
+}
+
+// Entrypoint
+
+window.addEventListener("DOMContentLoaded", function() {
+    const url = new URL(location.href);
+    const secret = url.searchParams.get("secret");
+    if (secret == null) {
+        updateStatus("Missing ?secret= in the url");
+        return;
+    }
+
+    const peerId = "sfu-" + Math.random().toString(36).substring(2, 10);
+    peer = new Peer(peerId, {
+        host: location.hostname,
+        port: location.port,
+        debug: 1,
+        path: '/peer'
+    });
+
+    peer.on("call", function(call) {
+        if (call.metadata != null && call.metadata.publish) {
+            handlePublish(call);
+        } else {
+            call.close();
+        }
+    });
+
+    peer.on("open", function() {
+        url.protocol = url.protocol.replace(/^http/, "ws");
+        url.pathname = "/";
+        url.search = "";
+        serverConnection = new WebSocket(url.href);
+        serverConnection.addEventListener("open", function() {
+            serverConnection.send("I am a forwarder with peer id " + peerId + ", secret: " + secret);
+            updateStatus("Running");
+        });
+        serverConnection.addEventListener("message", function(e) {
+            handleMessage(e.data + "");
+        });
+        serverConnection.addEventListener("close", function() {
+            updateStatus("Disconnected, reloading in 5 seconds");
+            setTimeout(() => location.reload(), 5000);
+        });
+    });
+
+    peer.on("error", function(err) {
+        console.error(err);
+    });
+});
@@ -22,6 +22,34 @@ let connectedUsers = [];
  */
 let expectedConnectedUsers = new Set();
 
+/**
+ * A set of user ids whose audio is forwarded to us by the forwarding service
+ * (SFU) instead of a direct peer-to-peer connection.
+ * @type {Set<string>}
+ */
+let forwardedUsers = new Set();
+
+/**
+ * The bitrates in kbit/s the plugin hinted we should upload at to each user,
+ * kept until the user disconnects since the hint can arrive before their call.
+ * @type {Map<string, number>}
+ */
+let maxBitrates = new Map();
+
+/**
+ * The call to the forwarding service that uploads our microphone, or null if we
+ * are not publishing to the forwarding service.
+ * @type {Peer.MediaConnection | null}
+ */
+let publishCall = null;
+
+/**
+ * The bitrate in kbit/s the plugin hinted we should upload to the forwarding
+ * service at, or 0 for no limit.
+ * @type {number}
+ */
+let forwarderMaxBitrate = 0;
+
 /**
  * The connection to the svcraft-audio websocket. Which indirectly connects to
  * the plugin.
@@ -76,6 +104,50 @@ let testingMicrophone = false;
  */
 let lastHeartbeat = Date.now();
 
+/**
+ * Whether the microphone picks up speech, as last reported to the plugin. The
+ * plugin assumes speech until told otherwise.
+ */
+let speaking = true;
+
+/**
+ * The microphone level (RMS) above which the user is considered to be speaking.
+ */
+const SPEAKING_LEVEL = 0.02;
+
+/**
+ * The time in milliseconds the level has to be above SPEAKING_LEVEL before the
+ * plugin is told that the user is speaking. Short so that few words are lost.
+ */
+const SPEAKING_DELAY = 60;
+
+/**
+ * The time in milliseconds the level has to be below SPEAKING_LEVEL before the
+ * plugin is told that the user is silent, so that pauses between words don't
+ * count.
+ */
+const SILENT_DELAY = 1500;
+
+/**
+ * The audio context that plays the audio of all other users. Every user gets a
+ * gain node and a panner node in it, which are mixed into the destination, so
+ * that there is a single audio output however many users are connected.
+ * @type {AudioContext}
+ */
+let audioContext = null;
+
+/**
+ * The time constant in seconds of volume changes. The plugin sends the volumes
+ * once per update, they are approached gradually instead of jumping.
+ */
+const VOLUME_SMOOTHING = 0.1;
+
+/**
+ * The time in milliseconds a user has to stay at zero volume before their audio
+ * is suspended, long enough for the volume to fade out.
+ */
+const SUSPEND_DELAY = 500;
+
 /**
  * A user that is connected.
  */
@@ -85,9 +157,8 @@ class ConnectedUser {
      * 
      * @param {Peer.MediaConnection} call The peer.js call to this user.
      * @param {string} userId The id of this user, also their peer id.
-     * @param HTMLAudioElement element The audio element where their microphone sound is being played.
      */
-    constructor(call, userId, element) {
+    constructor(call, userId) {
         /**
          * The peer.js call to this user.
          * @type {Peer.MediaConnection}
@@ -98,16 +169,194 @@ class ConnectedUser {
          * @type {string}
          */
         this.id = userId;
-        /**
-         * The audio element where their microphone sound is being played.
-         * @type {HTMLAudioElement}
-         */
-        this.element = element;
         /**
          * The microphone stream for this user.
          * @type {MediaStream}
          */
         this.stream = null;
+        /**
+         * The node that reads the microphone stream of this user into the audio
+         * context.
+         * @type {MediaStreamAudioSourceNode}
+         */
+        this.source = null;
+        /**
+         * The gain node that sets the volume of this user.
+         * @type {GainNode}
+         */
+        this.gain = null;
+        /**
+         * The panner node that positions the audio of this user.
+         * @type {PannerNode}
+         */
+        this.panner = null;
+        /**
+         * The volume the plugin last sent for this user.
+         * @type {number}
+         */
+        this.volume = 0;
+        /**
+         * Whether the audio of this user is being processed. Users at zero volume
+         * are suspended: their stream is disconnected from the audio context.
+         * @type {boolean}
+         */
+        this.playing = false;
+        /**
+         * The timeout that suspends the user after their volume reached zero.
+         * @type {number | null}
+         */
+        this.suspendTimeout = null;
+        /**
+         * The direction of this user relative to where we are looking, in degrees.
+         * @type {number}
+         */
+        this.azimuth = 0;
+        /**
+         * A muted audio element that plays the unprocessed stream. Chrome will not
+         * send audio from remote WebRTC streams to the audio context unless the
+         * stream is also played by a media element. Only holds the stream while the
+         * user is playing.
+         * @type {HTMLAudioElement}
+         */
+        this.sink = null;
+        /**
+         * The highest bitrate in kbit/s to upload our microphone to this user at,
+         * as hinted by the plugin, or 0 for no limit.
+         * @type {number}
+         */
+        this.maxBitrate = 0;
+    }
+
+    /**
+     * Route the stream through a gain node and a panner node into the shared
+     * audio context. The stream is only connected once the user can be heard.
+     *
+     * @param {MediaStream} stream The microphone stream for this user.
+     */
+    setStream(stream) {
+        if (this.source != null) {
+            this.stopPlaying();
+            this.gain.disconnect();
+        }
+        this.stream = stream;
+
+        const context = getAudioContext();
+        this.sink = new Audio();
+        this.sink.muted = true;
+
+        this.source = context.createMediaStreamSource(stream);
+        this.gain = new GainNode(context, { gain: 0 });
+        this.panner = new PannerNode(context, {
+            panningModel: "HRTF",
+            // The plugin already handles the volume, only use the panner for
+            // the direction.
+            distanceModel: "linear",
+            rolloffFactor: 0
+        });
+        this.gain.connect(this.panner).connect(context.destination);
+        this.setAzimuth(this.azimuth);
+        this.setVolume(this.volume);
+
+        // The call is established, the senders exist now
+        this.applyMaxBitrate();
+    }
+
+    /**
+     * Set the volume to hear this user at. The gain moves towards the volume
+     * smoothly. At zero volume the user is suspended once the audio has faded
+     * out, and resumed when the volume rises again.
+     *
+     * @param {number} volume The volume, between 0 and 1.
+     */
+    setVolume(volume) {
+        this.volume = volume;
+        if (this.gain == null) {
+            // Applied when the stream arrives
+            return;
+        }
+        if (volume > 0) {
+            if (this.suspendTimeout != null) {
+                clearTimeout(this.suspendTimeout);
+                this.suspendTimeout = null;
+            }
+            this.startPlaying();
+        } else if (this.playing && this.suspendTimeout == null) {
+            this.suspendTimeout = setTimeout(() => {
+                this.suspendTimeout = null;
+                if (this.volume == 0) {
+                    this.stopPlaying();
+                }
+            }, SUSPEND_DELAY);
+        }
+        // Starts from wherever the previous change got to
+        this.gain.gain.setTargetAtTime(volume, this.gain.context.currentTime, VOLUME_SMOOTHING);
+    }
+
+    /**
+     * Connect the stream of this user to the audio context.
+     */
+    startPlaying() {
+        if (this.playing) {
+            return;
+        }
+        this.playing = true;
+        this.sink.srcObject = this.stream;
+        this.source.connect(this.gain);
+    }
+
+    /**
+     * Disconnect the stream of this user from the audio context, so that the
+     * browser no longer processes it.
+     */
+    stopPlaying() {
+        if (this.suspendTimeout != null) {
+            clearTimeout(this.suspendTimeout);
+            this.suspendTimeout = null;
+        }
+        if (!this.playing) {
+            return;
+        }
+        this.playing = false;
+        this.source.disconnect();
+        this.sink.srcObject = null;
+        // Fade in from silence when resumed
+        this.gain.gain.cancelScheduledValues(0);
+        this.gain.gain.setValueAtTime(0, this.gain.context.currentTime);
+    }
+
+    /**
+     * Set the highest bitrate to upload our microphone to this user at.
+     *
+     * @param {number} kbps The bitrate in kbit/s, or 0 for no limit.
+     */
+    setMaxBitrate(kbps) {
+        this.maxBitrate = kbps;
+        this.applyMaxBitrate();
+    }
+
+    /**
+     * Apply the bitrate limit to the audio senders of the call, if the call has
+     * been established. Otherwise it is applied when the stream arrives.
+     */
+    applyMaxBitrate() {
+        applyMaxBitrate(this.call, this.maxBitrate, this.id);
+    }
+
+    /**
+     * Set the direction of this user relative to where we are looking.
+     *
+     * @param {number} azimuth The azimuth in degrees, 0 is straight ahead and
+     * positive values are to the right.
+     */
+    setAzimuth(azimuth) {
+        this.azimuth = azimuth;
+        if (this.panner != null) {
+            const radians = azimuth * Math.PI / 180;
+            // The listener is facing -z by default
+            this.panner.positionX.value = Math.sin(radians);
+            this.panner.positionY.value = 0;
+            this.panner.positionZ.value = -Math.cos(radians);
+        }
     }
 
     /**
@@ -116,8 +365,12 @@ class ConnectedUser {
     close() {
         // Close the call
         this.call.close();
-        // Remove the audio element
-        this.element.remove();
+        // Stop the audio processing
+        if (this.source != null) {
+            this.stopPlaying();
+            this.gain.disconnect();
+            this.panner.disconnect();
+        }
 
         // Remove them from the list
         if (connectedUsers.includes(this)) {
@@ -165,15 +418,23 @@ function connectToPeer() {
                 });
 
                 peer.on("call", function (call) {
+                    // Calls from the forwarding service carry the audio of another user
+                    const forwardedFrom = call.metadata != null ? call.metadata.forwardedFrom : null;
+                    const callUserId = forwardedFrom != null ? forwardedFrom : call.peer;
                     for (let i = connectedUsers.length - 1; i >= 0; i--) {
                         const user = connectedUsers[i];
-                        if (user.id == call.peer) {
-                            warningLog("Got call for already connected user " + call.peer + ", replacing them");
+                        if (user.id == callUserId) {
+                            warningLog("Got call for already connected user " + callUserId + ", replacing them");
                             user.close();
                         }
                     }
-                    call.answer(microphone);
-                    newUser(call);
+                    if (forwardedFrom != null) {
+                        // Our microphone is uploaded once through the publish call
+                        call.answer();
+                    } else {
+                        call.answer(microphone);
+                    }
+                    newUser(call, callUserId);
                 });
             });
         }
@@ -220,39 +481,92 @@ function getMicrophoneStream() {
     });
 }
 
+/**
+ * Start detecting when the user speaks, and tell the plugin about it so that it
+ * only sends volume updates for users that are speaking.
+ */
+function startVoiceActivityDetection() {
+    const context = getAudioContext();
+    const analyser = context.createAnalyser();
+    analyser.fftSize = 512;
+    context.createMediaStreamSource(microphone).connect(analyser);
+    const samples = new Float32Array(analyser.fftSize);
+    let aboveSince = null;
+    let belowSince = null;
+
+    setInterval(function () {
+        if (context.state != "running") {
+            // Nothing can be measured, keep the last state
+            return;
+        }
+        analyser.getFloatTimeDomainData(samples);
+        let sum = 0;
+        for (const sample of samples) {
+            sum += sample * sample;
+        }
+        const level = Math.sqrt(sum / samples.length);
+        const now = Date.now();
+
+        if (level > SPEAKING_LEVEL) {
+            belowSince = null;
+            if (aboveSince == null) {
+                aboveSince = now;
+            }
+            if (!speaking && now - aboveSince >= SPEAKING_DELAY) {
+                setSpeaking(true);
+            }
+        } else {
+            aboveSince = null;
+            if (belowSince == null) {
+                belowSince = now;
+            }
+            if (speaking && now - belowSince >= SILENT_DELAY) {
+                setSpeaking(false);
+            }
+        }
+    }, 20);
+}
+
+/**
+ * Tell the plugin whether the user is speaking.
+ *
+ * @param {boolean} value Whether the user is speaking.
+ */
+function setSpeaking(value) {
+    speaking = value;
+    if (serverConnection != null && serverConnection.readyState == WebSocket.OPEN) {
+        serverConnection.send(value ? "Speaking" : "Silent");
+    }
+}
+
 /**
  * Handle the call for a new user, this could either be a user that this user just
  * asked to connect to, or it could be an incomming call that was answered.
  *
  * @param {Peer.MediaConnection} call 
+ * @param {string} userId The id of the user, defaults to the peer id of the call.
+ * Differs for calls from the forwarding service.
  */
-function newUser(call) {
+function newUser(call, userId = call.peer) {
     for (let i = connectedUsers.length - 1; i >= 0; i--) {
         const user = connectedUsers[i];
-        if (user.id == call.peer) {
+        if (user.id == userId) {
             warningLog("Connecting a user that already exists, replacing it");
             user.close();
         }
     }
 
-    const element = document.createElement("audio");
-    element.autoplay = true;
-    element.volume = 0;
-    element.className = "user-audio";
-    element.setAttribute("data-user-id", call.peer);
-    document.body.appendChild(element);
-
-    const user = new ConnectedUser(call, call.peer, element);
+    const user = new ConnectedUser(call, userId);
+    user.maxBitrate = maxBitrates.get(userId) || 0;
     connectedUsers.push(user);
 
     call.on("stream", function(stream) {
-        user.stream = stream;
-        user.element.srcObject = stream;
+        user.setStream(stream);
     })
 
     call.on("close", function() {
-        console.log("call with " + call.peer + " was closed.");
-        disconnectUser(call.peer);
+        console.log("call with " + userId + " was closed.");
+        disconnectUser(userId);
         updateConnectionInfo();
     });
 }
@@ -410,31 +724,71 @@ function connectToServer(serverUrl, connectId) {
  */
 function handleMessage(message) {
     if (message.startsWith("Connect to ")) {
-        const userId = message.substring("Connect to ".length);
+        const match = /Connect to (?<userId>[A-z0-9-]+)(?<viaSfu> via sfu)?/.exec(message);
+        const { userId, viaSfu } = match.groups;
         expectedConnectedUsers.add(userId);
         // Might be temporary desync if the timing is unfortunate,
         // so avoid telling the server
         lastNotifyServerOfDesync = Date.now();
-        connectTo(userId);
+        if (viaSfu != null) {
+            // The forwarding service will call us with their audio
+            forwardedUsers.add(userId);
+        } else {
+            connectTo(userId);
+        }
     }
 
     if (message.startsWith("Wait for ")) {
-        const userId = message.substring("Wait for ".length);
+        const match = /Wait for (?<userId>[A-z0-9-]+)(?<viaSfu> via sfu)?/.exec(message);
+        const { userId, viaSfu } = match.groups;
         lastNotifyServerOfDesync = Date.now();
-        // The user is about to connect to us, we expect their call soon
+        // The user (or the forwarding service) is about to connect to us, we
+        // expect their call soon
         expectedConnectedUsers.add(userId);
+        if (viaSfu != null) {
+            forwardedUsers.add(userId);
+        }
+    }
+
+    if (message.startsWith("Sfu forwarder ")) {
+        const forwarderPeerId = message.substring("Sfu forwarder ".length);
+        publishToForwarder(forwarderPeerId);
     }
 
     if (message.startsWith("Disconnect ")) {
         const userId = message.substring("Disconnect ".length);
         expectedConnectedUsers.delete(userId);
+        maxBitrates.delete(userId);
         disconnectUser(userId);
+        if (forwardedUsers.delete(userId) && forwardedUsers.size == 0) {
+            stopPublishingToForwarder();
+            // The plugin hints again when we publish the next time
+            forwarderMaxBitrate = 0;
+        }
     }
 
     if (message.startsWith("Volume ")) {
-        const match = /Volume (?<userId>[A-z0-9-]+): (?<volume>.+)/.exec(message);
-        const { userId, volume } = match.groups;
-        setVolumeFor(userId, parseFloat(volume));
+        const match = /Volume (?<userId>[A-z0-9-]+): (?<volume>[0-9.]+)(?: at (?<azimuth>-?[0-9]+))?/.exec(message);
+        const { userId, volume, azimuth } = match.groups;
+        setVolumeFor(userId, parseFloat(volume), azimuth == null ? null : parseInt(azimuth));
+    }
+
+    if (message.startsWith("Bitrate ")) {
+        const match = /Bitrate (?<userId>[A-z0-9-]+): (?<kbps>[0-9]+)/.exec(message);
+        const { userId, kbps } = match.groups;
+        maxBitrates.set(userId, parseInt(kbps));
+        for (const user of connectedUsers) {
+            if (user.id == userId) {
+                user.setMaxBitrate(parseInt(kbps));
+            }
+        }
+    }
+
+    if (message.startsWith("Forwarder bitrate: ")) {
+        forwarderMaxBitrate = parseInt(message.substring("Forwarder bitrate: ".length));
+        if (publishCall != null) {
+            applyMaxBitrate(publishCall, forwarderMaxBitrate, "the forwarding service");
+        }
     }
 
     if (message.startsWith("Has plugin connection? ")) {
@@ -472,19 +826,14 @@ function handleMessage(message) {
 
     if (message == "resync") {
         console.log("Doing a resync");
+        closeAllUsers();
+    }
 
-        for (let i = connectedUsers.length - 1; i >= 0; i--) {
-            const user = connectedUsers[i];
-            user.close();
-        }
-
-        for (const element of document.getElementsByClassName("user-audio")) {
-            element.remove();
-            warningLog("(resync) An audio element existed even though it shouldn't, data-user-id=" + element.getAttribute("data-user-id"));
-        }
-
-        expectedConnectedUsers = new Set();
-        connectedUsers = [];
+    if (message == "Switching server") {
+        // The player is switching to another server on the network, the new
+        // server will tell us who to connect to
+        console.log("Switching server");
+        closeAllUsers();
     }
 
     if (message == "Heartbeat") {
@@ -493,6 +842,22 @@ function handleMessage(message) {
     }
 }
 
+/**
+ * Close the connections to all users, so that the plugin can tell us who to
+ * connect to from scratch.
+ */
+function closeAllUsers() {
+    for (let i = connectedUsers.length - 1; i >= 0; i--) {
+        const user = connectedUsers[i];
+        user.close();
+    }
+
+    expectedConnectedUsers = new Set();
+    connectedUsers = [];
+    forwardedUsers = new Set();
+    stopPublishingToForwarder();
+}
+
 /**
  * Show a page and hide all others.
  * 
@@ -528,16 +893,109 @@ function connectTo(userId) {
     newUser(call);
 }
 
+/**
+ * Upload our microphone to the forwarding service, unless it is already being
+ * uploaded.
+ * 
+ * @param {string} forwarderPeerId The peer id of the forwarding service.
+ */
+function publishToForwarder(forwarderPeerId) {
+    if (publishCall != null && publishCall.peer == forwarderPeerId) {
+        return;
+    }
+    stopPublishingToForwarder();
+    const call = peer.call(forwarderPeerId, microphone, { metadata: { publish: true } });
+    publishCall = call;
+    call.on("close", function() {
+        if (publishCall == call) {
+            publishCall = null;
+        }
+    });
+    // Nothing is received from the forwarding service, so the limit is applied
+    // once the connection is established instead of when a stream arrives
+    if (call.peerConnection != null) {
+        call.peerConnection.addEventListener("connectionstatechange", function() {
+            if (publishCall == call && call.peerConnection.connectionState == "connected") {
+                applyMaxBitrate(call, forwarderMaxBitrate, "the forwarding service");
+            }
+        });
+    }
+}
+
+/**
+ * Apply a bitrate limit to the audio senders of a call. Senders that have not
+ * been negotiated yet are skipped.
+ *
+ * @param {Peer.MediaConnection} call The call.
+ * @param {number} kbps The bitrate in kbit/s, or 0 for no limit.
+ * @param {string} name What the call is to, for the warning if it fails.
+ */
+function applyMaxBitrate(call, kbps, name) {
+    const peerConnection = call.peerConnection;
+    if (peerConnection == null) {
+        return;
+    }
+    for (const sender of peerConnection.getSenders()) {
+        if (sender.track == null || sender.track.kind != "audio") {
+            continue;
+        }
+        const parameters = sender.getParameters();
+        if (parameters.encodings == null || parameters.encodings.length == 0) {
+            continue;
+        }
+        for (const encoding of parameters.encodings) {
+            if (kbps > 0) {
+                encoding.maxBitrate = kbps * 1000;
+            } else {
+                delete encoding.maxBitrate;
+            }
+        }
+        sender.setParameters(parameters).catch(e => {
+            console.warn("Failed to set the bitrate for " + name, e);
+        });
+    }
+}
+
+/**
+ * Stop uploading our microphone to the forwarding service.
+ */
+function stopPublishingToForwarder() {
+    if (publishCall != null) {
+        publishCall.close();
+        publishCall = null;
+    }
+}
+
+/**
+ * Get the audio context, creating it if it does not exist yet.
+ * 
+ * @returns {AudioContext} The audio context.
+ */
+function getAudioContext() {
+    if (audioContext == null) {
+        audioContext = new AudioContext();
+    }
+    if (audioContext.state == "suspended") {
+        audioContext.resume();
+    }
+    return audioContext;
+}
+
 /**
  * Set the volume this user should hear the specified user at.
  * 
  * @param {string} userId The id of the user to set the volume for.
  * @param {number} volume The volume of the user.
+ * @param {number | null} azimuth The direction of the user in degrees, or null
+ * if spatial audio is disabled.
  */
-function setVolumeFor(userId, volume) {
+function setVolumeFor(userId, volume, azimuth) {
     for (const user of connectedUsers) {
         if (user.id == userId) {
-            user.element.volume = volume;
+            user.setVolume(volume);
+            if (azimuth != null) {
+                user.setAzimuth(azimuth);
+            }
         }
     }
 }
@@ -637,6 +1095,7 @@ window.addEventListener("DOMContentLoaded", async function() {
     url.protocol = url.protocol.replace(/^http/, "ws");
     url.search = "";
     await connectToServer(url.href, connectId);
+    startVoiceActivityDetection();
 
     await connectToPeer();
 